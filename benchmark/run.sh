@@ -0,0 +1,9 @@
+#!/bin/sh
+# Builds the library together with stubs of the Android APIs it uses, and runs
+# the benchmarks on a plain JVM. Arguments are passed on to the benchmarks, e.g.
+#   ./run.sh rows=100000 numeric=0.5 filter=NaiveBayes
+cd "$(dirname "$0")" || exit 1
+rm -rf bin && mkdir bin || exit 1
+javac -nowarn -encoding UTF-8 -cp ../libs/gson-2.2.2.jar -d bin \
+	$(find ../src stubs src -name '*.java') || exit 1
+exec java -cp bin:../libs/gson-2.2.2.jar com.ubhave.mltoolkit.benchmark.Benchmarks "$@"
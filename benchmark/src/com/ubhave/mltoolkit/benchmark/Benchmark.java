@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.benchmark;
+
+/**
+ * A single measured operation. The runner calls run() repeatedly, first to
+ * warm up the JIT, then for a number of timed iterations.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public abstract class Benchmark {
+
+	private final String d_name;
+	
+	private final String d_unit;
+	
+	// Results are folded in here, so that the JIT cannot drop the measured calls.
+	private int d_sink;
+	
+	protected Benchmark(String a_name, String a_unit) {
+		d_name = a_name;
+		d_unit = a_unit;
+	}
+	
+	public String getName() {
+		return d_name;
+	}
+	
+	/**
+	 * What a single operation is, e.g. a training row or a classified instance.
+	 */
+	public String getUnit() {
+		return d_unit;
+	}
+	
+	/**
+	 * Called once, before warm-up.
+	 */
+	public void setUp() throws Exception {
+	}
+	
+	/**
+	 * Runs one invocation and returns the number of operations it performed.
+	 */
+	public abstract int run() throws Exception;
+	
+	/**
+	 * Called once, after the last iteration.
+	 */
+	public void tearDown() throws Exception {
+	}
+	
+	protected void consume(Object a_result) {
+		d_sink += System.identityHashCode(a_result);
+	}
+	
+	protected void consume(int a_result) {
+		d_sink += a_result;
+	}
+	
+	int sink() {
+		return d_sink;
+	}
+}
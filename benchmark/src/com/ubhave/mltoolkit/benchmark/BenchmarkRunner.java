@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Runs benchmarks in the manner of JMH's average time mode: a number of 
+ * warm-up iterations, then timed iterations of a fixed duration, each of 
+ * which calls the benchmark as often as it fits. Reports the mean time per 
+ * operation with its 99.9% confidence interval, the throughput, the bytes 
+ * allocated per operation by the benchmark thread, and garbage collections.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class BenchmarkRunner {
+
+	// Student's t quantiles for a two-sided 99.9% interval, by degrees of freedom
+	private static final double[] T_999 = {636.62, 31.599, 12.924, 8.610, 6.869, 
+		5.959, 5.408, 5.041, 4.781, 4.587};
+	
+	private final int d_warmupIterations;
+	
+	private final int d_iterations;
+	
+	private final long d_iterationNanos;
+	
+	private final PrintStream d_out;
+	
+	public BenchmarkRunner(int a_warmupIterations, int a_iterations, long a_iterationMillis, PrintStream a_out) {
+		d_warmupIterations = a_warmupIterations;
+		d_iterations = Math.max(a_iterations, 1);
+		d_iterationNanos = a_iterationMillis * 1000000L;
+		d_out = a_out;
+	}
+	
+	public void printHeader() {
+		d_out.println(String.format("%-52s %14s %12s %16s %12s %6s %8s", 
+				"Benchmark", "ns/op", "error", "ops/s", "B/op", "gc", "gc ms"));
+	}
+	
+	public void run(Benchmark a_benchmark) throws Exception {
+		a_benchmark.setUp();
+		try {
+			for (int i=0; i<d_warmupIterations; i++) {
+				iterate(a_benchmark);
+			}
+			
+			double[] nanosPerOp = new double[d_iterations];
+			long totalOps = 0;
+			long totalNanos = 0;
+			long allocated = allocatedBytes();
+			long gcCount = gcCount();
+			long gcMillis = gcMillis();
+			for (int i=0; i<d_iterations; i++) {
+				long start = System.nanoTime();
+				long ops = iterate(a_benchmark);
+				long nanos = System.nanoTime() - start;
+				nanosPerOp[i] = nanos / (double) ops;
+				totalOps += ops;
+				totalNanos += nanos;
+			}
+			allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+			gcCount = gcCount() - gcCount;
+			gcMillis = gcMillis() - gcMillis;
+			
+			double mean = 0;
+			for (double value : nanosPerOp) {
+				mean += value / d_iterations;
+			}
+			double error = Double.NaN;
+			if (d_iterations > 1) {
+				double variance = 0;
+				for (double value : nanosPerOp) {
+					variance += (value - mean) * (value - mean) / (d_iterations - 1);
+				}
+				double t = T_999[Math.min(d_iterations - 2, T_999.length - 1)];
+				error = t * Math.sqrt(variance / d_iterations);
+			}
+			
+			d_out.println(String.format("%-52s %14.1f %12.1f %16.1f %12s %6d %8d", 
+					a_benchmark.getName() + " (" + a_benchmark.getUnit() + ")", mean, error, 
+					totalOps * 1e9 / totalNanos, 
+					allocated < 0 ? "n/a" : String.format("%.1f", allocated / (double) totalOps), 
+					gcCount, gcMillis));
+		} finally {
+			a_benchmark.tearDown();
+		}
+	}
+	
+	// Calls the benchmark until the iteration time is up, returns the number of operations.
+	private long iterate(Benchmark a_benchmark) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		do {
+			ops += a_benchmark.run();
+		} while (System.nanoTime() - start < d_iterationNanos);
+		return ops;
+	}
+	
+	// Only counts the allocations of the calling thread, and needs a HotSpot based JVM.
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(bean.getCollectionCount(), 0);
+		}
+		return count;
+	}
+	
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(bean.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+}
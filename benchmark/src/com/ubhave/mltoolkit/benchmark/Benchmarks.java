@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.MachineLearningManager;
+import com.ubhave.mltoolkit.classifier.Classifier;
+import com.ubhave.mltoolkit.classifier.OnlineClassifier;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Dataset;
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Benchmarks of training, classification and online updates of every 
+ * classifier, and of saving and loading the persistent snapshot.
+ * 
+ * Parameters are given as name=value arguments:
+ * features, categories, numeric (fraction of numeric features), classes, 
+ * rows (training set size), queries (instances per classify invocation), 
+ * warmup and iterations (counts), time (milliseconds per iteration) and 
+ * filter (only benchmarks whose name contains it).
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class Benchmarks {
+
+	private static final long SEED = 42;
+	
+	private static final String[] CLASSIFIERS = {"ZeroR", "NaiveBayes", "ID3", "DensityClustering"};
+	
+	private static final int[] TYPES = {Constants.TYPE_ZERO_R, Constants.TYPE_NAIVE_BAYES, 
+		Constants.TYPE_ID3, Constants.TYPE_DENSITY_CLUSTER};
+	
+	private final HashMap<String, String> d_params;
+	
+	private final SyntheticData d_data;
+	
+	private final int d_rows;
+	
+	private final int d_queries;
+	
+	private MachineLearningManager d_manager;
+	
+	private File d_managerDir;
+	
+	public Benchmarks(HashMap<String, String> a_params) {
+		d_params = a_params;
+		d_data = new SyntheticData(param("features", 8), param("categories", 4), 
+				Double.parseDouble(param("numeric", "0.25")), param("classes", 3));
+		d_rows = param("rows", 20000);
+		d_queries = param("queries", 1000);
+	}
+	
+	private String param(String a_name, String a_default) {
+		String value = d_params.get(a_name);
+		return value == null ? a_default : value;
+	}
+	
+	private int param(String a_name, int a_default) {
+		return Integer.parseInt(param(a_name, String.valueOf(a_default)));
+	}
+	
+	public static void main(String[] a_args) throws Exception {
+		HashMap<String, String> params = new HashMap<String, String>();
+		for (String arg : a_args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				System.err.println("Arguments are name=value pairs, not "+arg);
+				System.exit(1);
+			}
+			params.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		
+		Benchmarks benchmarks = new Benchmarks(params);
+		BenchmarkRunner runner = new BenchmarkRunner(benchmarks.param("warmup", 3), 
+				benchmarks.param("iterations", 5), benchmarks.param("time", 1000), System.out);
+		String filter = benchmarks.param("filter", "");
+		
+		System.out.println("Parameters: "+params);
+		runner.printHeader();
+		for (Benchmark benchmark : benchmarks.create()) {
+			if (benchmark.getName().contains(filter)) {
+				runner.run(benchmark);
+			}
+		}
+		benchmarks.close();
+	}
+	
+	private Signature signature(int a_type) throws Exception {
+		return a_type == Constants.TYPE_DENSITY_CLUSTER ? d_data.coordinateSignature() : d_data.mixedSignature();
+	}
+	
+	private Classifier classifier(int a_type, Signature a_signature) {
+		return ClassifierList.createClassifier(a_type, a_signature, config(a_type, a_signature));
+	}
+	
+	private ClassifierConfig config(int a_type, Signature a_signature) {
+		ClassifierConfig config = new ClassifierConfig();
+		if (a_type == Constants.TYPE_DENSITY_CLUSTER) {
+			config.addParam(Constants.MAX_CLUSTER_DISTANCE, d_data.clusterDistance(a_signature));
+		}
+		return config;
+	}
+	
+	public ArrayList<Benchmark> create() {
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int i=0; i<CLASSIFIERS.length; i++) {
+			benchmarks.add(train(CLASSIFIERS[i], TYPES[i]));
+			benchmarks.add(classify(CLASSIFIERS[i], TYPES[i], false));
+			benchmarks.add(classify(CLASSIFIERS[i], TYPES[i], true));
+			if (TYPES[i] == Constants.TYPE_ZERO_R || TYPES[i] == Constants.TYPE_NAIVE_BAYES) {
+				benchmarks.add(update(CLASSIFIERS[i], TYPES[i]));
+			}
+		}
+		benchmarks.add(save());
+		benchmarks.add(load());
+		return benchmarks;
+	}
+	
+	// A fresh classifier is trained on the whole dataset by every invocation.
+	private Benchmark train(String a_name, final int a_type) {
+		return new Benchmark(a_name+".train", "row") {
+			private Signature d_signature;
+			private Dataset d_dataset;
+			
+			public void setUp() throws Exception {
+				d_signature = signature(a_type);
+				d_dataset = d_data.dataset(d_signature, d_rows, SEED);
+			}
+			
+			public int run() throws Exception {
+				Classifier classifier = classifier(a_type, d_signature);
+				classifier.train(d_dataset);
+				consume(classifier);
+				return d_dataset.size();
+			}
+		};
+	}
+	
+	private Benchmark classify(String a_name, final int a_type, final boolean a_batch) {
+		return new Benchmark(a_name+(a_batch ? ".classifyBatch" : ".classify"), "instance") {
+			private Classifier d_classifier;
+			private ArrayList<Instance> d_instances;
+			private int[] d_classes;
+			private double[] d_posteriors;
+			
+			public void setUp() throws Exception {
+				Signature signature = signature(a_type);
+				d_classifier = classifier(a_type, signature);
+				d_classifier.train(d_data.dataset(signature, d_rows, SEED));
+				d_instances = d_data.queries(signature, d_queries, SEED + 1);
+				d_classes = new int[d_queries];
+				d_posteriors = new double[d_queries * d_classifier.numberOfClassValues()];
+			}
+			
+			public int run() throws Exception {
+				if (a_batch) {
+					d_classifier.classifyBatch(d_instances, d_classes, d_posteriors);
+					consume(d_classes[d_classes.length - 1]);
+				} else {
+					for (Instance instance : d_instances) {
+						consume(d_classifier.classify(instance));
+					}
+				}
+				return d_instances.size();
+			}
+		};
+	}
+	
+	private Benchmark update(String a_name, final int a_type) {
+		return new Benchmark(a_name+".update", "instance") {
+			private Classifier d_classifier;
+			private ArrayList<Instance> d_instances;
+			
+			public void setUp() throws Exception {
+				Signature signature = signature(a_type);
+				d_classifier = classifier(a_type, signature);
+				d_instances = d_data.instances(signature, d_queries, SEED + 2);
+			}
+			
+			public int run() throws Exception {
+				for (Instance instance : d_instances) {
+					((OnlineClassifier) d_classifier).update(instance);
+				}
+				return d_instances.size();
+			}
+		};
+	}
+	
+	private Benchmark save() {
+		return new Benchmark("MachineLearningManager.saveToPersistent", "snapshot") {
+			public void setUp() throws Exception {
+				manager();
+			}
+			
+			public int run() throws Exception {
+				// Only changed classifiers are saved, so every one is marked changed to measure a full save
+				for (int i=0; i<CLASSIFIERS.length; i++) {
+					Classifier classifier = d_manager.getClassifier(CLASSIFIERS[i]);
+					classifier.markSaved(classifier.getChanges() - 1);
+				}
+				d_manager.saveToPersistent();
+				return 1;
+			}
+		};
+	}
+	
+	private Benchmark load() {
+		return new Benchmark("MachineLearningManager.loadFromPersistent", "snapshot") {
+			public void setUp() throws Exception {
+				manager().saveToPersistent();
+			}
+			
+			public int run() throws Exception {
+				ClassifierList classifiers = d_manager.loadFromPersistent();
+				// Classifiers are read on first access, so every one is requested to measure a full load
+				for (int i=0; i<CLASSIFIERS.length; i++) {
+					consume(classifiers.getClassifier(CLASSIFIERS[i]));
+				}
+				return 1;
+			}
+		};
+	}
+	
+	// The manager is a singleton, so it is set up once, with a trained classifier of every type.
+	private MachineLearningManager manager() throws Exception {
+		if (d_manager == null) {
+			d_managerDir = File.createTempFile("mltoolkit", "benchmark");
+			if (!d_managerDir.delete() || !d_managerDir.mkdirs()) {
+				throw new IllegalStateException("Cannot create "+d_managerDir);
+			}
+			d_manager = MachineLearningManager.getMLManager(new Context(d_managerDir));
+			d_manager.setCompactionPeriod(0, TimeUnit.MINUTES);
+			for (int i=0; i<CLASSIFIERS.length; i++) {
+				Signature signature = signature(TYPES[i]);
+				Classifier classifier = d_manager.addClassifier(TYPES[i], signature, config(TYPES[i], signature), CLASSIFIERS[i]);
+				classifier.train(d_data.dataset(signature, d_rows, SEED));
+			}
+		}
+		return d_manager;
+	}
+	
+	public void close() {
+		if (d_managerDir != null) {
+			File[] files = d_managerDir.listFiles();
+			for (int i=0; files != null && i<files.length; i++) {
+				files[i].delete();
+			}
+			d_managerDir.delete();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.ubhave.mltoolkit.utils.Dataset;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Generates reproducible data for benchmarks. Every row first draws its class,
+ * then the features depend on the class (with noise), so that the classifiers 
+ * have a structure to learn rather than uniform noise.
+ * 
+ * The mixed signature has the given number of attribute features, the first 
+ * ones numeric according to the numeric fraction, the rest nominal with the 
+ * given number of categories, followed by the class feature. The coordinate 
+ * signature, for DensityClustering, only has numeric attributes; with two of 
+ * them they are GPS coordinates, in clusters of a few hundred metres.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class SyntheticData {
+
+	// Probability that a nominal value follows the class
+	private static final double SIGNAL = 0.6;
+	
+	private final int d_numFeatures;
+	
+	private final int d_numNumeric;
+	
+	private final int d_numCategories;
+	
+	private final int d_numClasses;
+	
+	public SyntheticData(int a_numFeatures, int a_numCategories, double a_numericFraction, int a_numClasses) {
+		d_numFeatures = Math.max(a_numFeatures, 1);
+		d_numNumeric = (int) Math.round(d_numFeatures * Math.max(0, Math.min(1, a_numericFraction)));
+		d_numCategories = Math.max(a_numCategories, 2);
+		d_numClasses = Math.max(a_numClasses, 2);
+	}
+	
+	public Signature mixedSignature() throws MLException {
+		ArrayList<Feature> features = new ArrayList<Feature>();
+		for (int i=0; i<d_numFeatures; i++) {
+			if (i < d_numNumeric) {
+				features.add(new Feature("num"+i, Feature.NUMERIC));
+			} else {
+				features.add(new Feature("nom"+i, Feature.NOMINAL, categories("v", d_numCategories)));
+			}
+		}
+		features.add(new Feature("class", Feature.NOMINAL, categories("c", d_numClasses)));
+		return new Signature(features);
+	}
+	
+	/**
+	 * A signature of numeric coordinates, as many as there are numeric features
+	 * in the mixed signature, but at least one.
+	 */
+	public Signature coordinateSignature() throws MLException {
+		ArrayList<Feature> features = new ArrayList<Feature>();
+		for (int i=0; i<Math.max(d_numNumeric, 1); i++) {
+			features.add(new Feature("x"+i, Feature.NUMERIC));
+		}
+		features.add(new Feature("class", Feature.NOMINAL, categories("c", d_numClasses)));
+		return new Signature(features);
+	}
+	
+	/**
+	 * A DensityClustering neighbourhood radius well below the spread of a cluster 
+	 * of the coordinate data, as with location traces.
+	 */
+	public double clusterDistance(Signature a_signature) {
+		return a_signature.size() - 1 == 2 ? 50.0 : 0.25 * Math.sqrt(a_signature.size() - 1);
+	}
+	
+	private static String[] categories(String a_prefix, int a_count) {
+		String[] categories = new String[a_count];
+		for (int i=0; i<a_count; i++) {
+			categories[i] = a_prefix + i;
+		}
+		return categories;
+	}
+	
+	public Dataset dataset(Signature a_signature, int a_rows, long a_seed) throws MLException {
+		Dataset dataset = new Dataset(a_signature, a_rows);
+		Random random = new Random(a_seed);
+		int classIndex = a_signature.getClassIndex();
+		for (int r=0; r<a_rows; r++) {
+			int row = dataset.addRow();
+			int c = random.nextInt(d_numClasses);
+			for (int i=0; i<a_signature.size(); i++) {
+				if (i == classIndex) {
+					dataset.setNominal(row, i, c);
+				} else if (a_signature.getFeatureAtIndex(i).getFeatureType() == Feature.NUMERIC) {
+					dataset.setNumeric(row, i, numericValue(a_signature, i, c, random));
+				} else {
+					dataset.setNominal(row, i, nominalValue(a_signature, i, c, random));
+				}
+			}
+		}
+		return dataset;
+	}
+	
+	/**
+	 * Instances with a class value, for online updates.
+	 */
+	public ArrayList<Instance> instances(Signature a_signature, int a_count, long a_seed) throws MLException {
+		return instances(a_signature, a_count, a_seed, true);
+	}
+	
+	/**
+	 * Instances without a class value, for classification.
+	 */
+	public ArrayList<Instance> queries(Signature a_signature, int a_count, long a_seed) throws MLException {
+		return instances(a_signature, a_count, a_seed, false);
+	}
+	
+	private ArrayList<Instance> instances(Signature a_signature, int a_count, long a_seed, boolean a_withClass) throws MLException {
+		Dataset dataset = dataset(a_signature, a_count, a_seed);
+		int classIndex = a_signature.getClassIndex();
+		ArrayList<Instance> instances = new ArrayList<Instance>(a_count);
+		for (int r=0; r<a_count; r++) {
+			Instance row = dataset.getInstance(r);
+			Instance instance = new Instance(a_signature.size());
+			for (int i=0; i<a_signature.size(); i++) {
+				if (i != classIndex || a_withClass) {
+					instance.addValue(row.getValueAtIndex(i));
+				}
+			}
+			instances.add(instance);
+		}
+		return instances;
+	}
+	
+	private double numericValue(Signature a_signature, int a_feature, int a_class, Random a_random) {
+		if (a_signature.size() - 1 == 2 && isCoordinates(a_signature)) {
+			// Latitude and longitude around Birmingham, one cluster per class
+			double base = a_feature == 0 ? 52.45 : -1.93;
+			return base + a_class * 0.01 + a_random.nextGaussian() * 0.002;
+		}
+		return a_class + a_random.nextGaussian();
+	}
+	
+	private static boolean isCoordinates(Signature a_signature) {
+		for (int i=0; i<a_signature.size(); i++) {
+			if (i != a_signature.getClassIndex() && a_signature.getFeatureAtIndex(i).getFeatureType() != Feature.NUMERIC) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int nominalValue(Signature a_signature, int a_feature, int a_class, Random a_random) {
+		int numCategories = a_signature.getFeatureAtIndex(a_feature).numberOfCategories();
+		if (a_random.nextDouble() < SIGNAL) {
+			return (a_class * 7 + a_feature) % numCategories;
+		}
+		return a_random.nextInt(numCategories);
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Stand-in for the Android context, with the private file storage of an 
+ * application kept in a given directory.
+ */
+public class Context {
+
+	public static final int MODE_PRIVATE = 0;
+	
+	private final File d_dir;
+	
+	public Context(File a_dir) {
+		d_dir = a_dir;
+	}
+	
+	public String[] fileList() {
+		String[] files = d_dir.list();
+		return files == null ? new String[0] : files;
+	}
+	
+	public FileOutputStream openFileOutput(String a_name, int a_mode) throws FileNotFoundException {
+		return new FileOutputStream(getFileStreamPath(a_name));
+	}
+	
+	public FileInputStream openFileInput(String a_name) throws FileNotFoundException {
+		return new FileInputStream(getFileStreamPath(a_name));
+	}
+	
+	public File getFilesDir() {
+		return d_dir;
+	}
+	
+	public File getFileStreamPath(String a_name) {
+		return new File(d_dir, a_name);
+	}
+	
+	public boolean deleteFile(String a_name) {
+		return getFileStreamPath(a_name).delete();
+	}
+}
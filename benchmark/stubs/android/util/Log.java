@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package android.util;
+
+/**
+ * Stand-in for the Android logger, so that the library runs on a plain JVM. 
+ * Debug and info messages are dropped, to keep them out of the measurements.
+ */
+public final class Log {
+
+	public static int d(String a_tag, String a_message) {
+		return 0;
+	}
+	
+	public static int i(String a_tag, String a_message) {
+		return 0;
+	}
+	
+	public static int w(String a_tag, String a_message) {
+		System.err.println("W/"+a_tag+": "+a_message);
+		return 0;
+	}
+	
+	public static int e(String a_tag, String a_message) {
+		System.err.println("E/"+a_tag+": "+a_message);
+		return 0;
+	}
+	
+	public static int e(String a_tag, String a_message, Throwable a_throwable) {
+		System.err.println("E/"+a_tag+": "+a_message+" "+a_throwable);
+		return 0;
+	}
+}
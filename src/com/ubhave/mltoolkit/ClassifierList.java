@@ -21,6 +21,8 @@
  ******************************************************************************/
 package com.ubhave.mltoolkit;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Random;
 
@@ -41,6 +43,10 @@ import android.util.Log;
  * Takes care of classifier instantiation and registration. 
  * Every classifier that is created has a unique name.
  * 
+ * Classifiers can also be registered as stored, with a loader that reads them 
+ * from storage the first time they are requested. Concurrent first requests
+ * for the same classifier wait for a single load.
+ * 
  * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
  *
  */
@@ -49,16 +55,20 @@ public class ClassifierList {
 	private static final String TAG = "ClassifierList";
 	
 	private HashMap<String, Classifier> d_namedClassifiers;
+	
+	// Classifiers that are stored but have not been requested yet
+	private final HashMap<String, StoredClassifier> d_storedClassifiers;
 
 	//private final Random d_keyGenerator;
 	
 	public ClassifierList(){
 		Log.d(TAG, "ClassifierList empty constructor");
 		d_namedClassifiers = new HashMap<String, Classifier>();
+		d_storedClassifiers = new HashMap<String, StoredClassifier>();
 		//d_keyGenerator = new Random();	
 	}
 	
-	private static Classifier createClassifier(
+	public static Classifier createClassifier(
 			int a_type, 
 			Signature a_signature, 
 			ClassifierConfig a_config){
@@ -84,27 +94,151 @@ public class ClassifierList {
 		}
 	}
 
-	public void removeClassifier(String a_classifierID) {
-		
-		if (d_namedClassifiers.containsKey(a_classifierID)) {
-			d_namedClassifiers.remove(a_classifierID);
-		}
+	public synchronized void removeClassifier(String a_classifierID) {
+		d_namedClassifiers.remove(a_classifierID);
+		d_storedClassifiers.remove(a_classifierID);
 	}
 
+	/**
+	 * Returns the named classifier, loading it if it is stored and has not been 
+	 * loaded yet. Returns null if there is no such classifier, or if loading it 
+	 * failed, in which case it stays stored, so that it is not lost when saving.
+	 */
 	public Classifier getClassifier(String a_classifierID)
 	{
-		if (d_namedClassifiers.containsKey(a_classifierID)) {
+		StoredClassifier stored;
+		synchronized (this) {
+			Classifier classifier = d_namedClassifiers.get(a_classifierID);
+			if (classifier != null) {
+				return classifier;
+			}
+			stored = d_storedClassifiers.get(a_classifierID);
+			if (stored == null) {
+				return null;
+			}
+		}
+		Classifier classifier = stored.load();
+		synchronized (this) {
+			// Unless loading failed, or the classifier was replaced or removed while it was loading
+			if (classifier != null && d_storedClassifiers.get(a_classifierID) == stored) {
+				d_storedClassifiers.remove(a_classifierID);
+				d_namedClassifiers.put(a_classifierID, classifier);
+			}
 			return d_namedClassifiers.get(a_classifierID);
-		} else {
-			return null;
 		}
 	}	
 	
+	public synchronized void putClassifier(String a_name, Classifier a_classifier) {
+		d_storedClassifiers.remove(a_name);
+		d_namedClassifiers.put(a_name, a_classifier);
+	}
+	
+	/**
+	 * Loads a classifier from storage, see putStoredClassifier.
+	 */
+	public interface Loader {
+		
+		public Classifier load(String a_name) throws IOException;
+	}
+	
+	/**
+	 * Registers a stored classifier of the given type, which the loader reads 
+	 * when the classifier is first requested.
+	 */
+	public synchronized void putStoredClassifier(String a_name, int a_type, Loader a_loader) {
+		d_namedClassifiers.remove(a_name);
+		d_storedClassifiers.put(a_name, new StoredClassifier(a_name, a_type, a_loader));
+	}
+	
+	/**
+	 * Returns the type of the named classifier without loading it, or -1 if there is no such classifier.
+	 */
+	public synchronized int getType(String a_classifierID) {
+		Classifier classifier = d_namedClassifiers.get(a_classifierID);
+		if (classifier != null) {
+			return classifier.getType();
+		}
+		StoredClassifier stored = d_storedClassifiers.get(a_classifierID);
+		return stored == null ? -1 : stored.d_type;
+	}
+	
+	/**
+	 * Returns whether any stored classifier has not been loaded yet, 
+	 * including those that could not be loaded.
+	 */
+	public synchronized boolean hasStoredClassifiers() {
+		return !d_storedClassifiers.isEmpty();
+	}
+	
+	/**
+	 * Returns whether the named classifier is stored and has not been loaded yet.
+	 */
+	public synchronized boolean isStored(String a_classifierID) {
+		return d_storedClassifiers.containsKey(a_classifierID);
+	}
+	
+	/**
+	 * Returns a copy of the name to classifier map, safe for iteration.
+	 * Stored classifiers are loaded first.
+	 */
+	public HashMap<String, Classifier> getClassifiers() {
+		ArrayList<String> stored;
+		synchronized (this) {
+			stored = new ArrayList<String>(d_storedClassifiers.keySet());
+		}
+		for (String name : stored) {
+			getClassifier(name);
+		}
+		synchronized (this) {
+			return new HashMap<String, Classifier>(d_namedClassifiers);
+		}
+	}
+	
+	/**
+	 * Returns a copy of the name to classifier map without the stored classifiers 
+	 * that have not been loaded yet.
+	 */
+	public synchronized HashMap<String, Classifier> getLoadedClassifiers() {
+		return new HashMap<String, Classifier>(d_namedClassifiers);
+	}
+	
 	public synchronized Classifier addClassifier(int a_type, Signature a_signature, ClassifierConfig a_config, String a_name) {
 		Log.d(TAG, "addClassifier");
 		Classifier classifier = createClassifier(a_type, a_signature, a_config);
-		d_namedClassifiers.put(a_name, classifier);
+		putClassifier(a_name, classifier);
 		return classifier;
 	}
+	
+	private static class StoredClassifier {
+		
+		private final String d_name;
+		
+		private final int d_type;
+		
+		private final Loader d_loader;
+		
+		private boolean d_loaded;
+		
+		private Classifier d_classifier;
+		
+		StoredClassifier(String a_name, int a_type, Loader a_loader) {
+			d_name = a_name;
+			d_type = a_type;
+			d_loader = a_loader;
+		}
+		
+		// Loads the classifier once, other callers wait for it
+		synchronized Classifier load() {
+			if (!d_loaded) {
+				try {
+					d_classifier = d_loader.load(d_name);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				d_loaded = true;
+			}
+			return d_classifier;
+		}
+	}
 		
 }
@@ -22,40 +22,55 @@
 package com.ubhave.mltoolkit;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.lang.reflect.Type;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-
 import com.ubhave.mltoolkit.classifier.Classifier;
-import com.ubhave.mltoolkit.classifier.DensityClustering;
-import com.ubhave.mltoolkit.classifier.ID3;
-import com.ubhave.mltoolkit.classifier.NaiveBayes;
-import com.ubhave.mltoolkit.classifier.ZeroR;
+import com.ubhave.mltoolkit.classifier.MergeableClassifier;
+import com.ubhave.mltoolkit.classifier.OnlineClassifier;
+import com.ubhave.mltoolkit.metrics.ClassifierMetrics;
+import com.ubhave.mltoolkit.metrics.MetricsRegistry;
+import com.ubhave.mltoolkit.persistence.JsonSnapshot;
+import com.ubhave.mltoolkit.persistence.LazySnapshot;
+import com.ubhave.mltoolkit.persistence.ModelSnapshot;
+import com.ubhave.mltoolkit.persistence.UpdateJournal;
 import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.ComplianceException;
 import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Dataset;
+import com.ubhave.mltoolkit.utils.Instance;
 import com.ubhave.mltoolkit.utils.MLException;
 import com.ubhave.mltoolkit.utils.Signature;
+import com.ubhave.mltoolkit.utils.Value;
 
 
 /**
@@ -81,6 +96,30 @@ public class MachineLearningManager {
 	
 	private final Context d_context;
 	
+	// Updates take the read lock, saving a snapshot takes the write lock
+	private final ReentrantReadWriteLock d_persistenceLock = new ReentrantReadWriteLock();
+	
+	private final HashMap<String, UpdateJournal> d_journals = new HashMap<String, UpdateJournal>();
+	
+	// Generation of the snapshot of each classifier, journals are only valid for the same generation
+	private final HashMap<String, Long> d_generations = new HashMap<String, Long>();
+	
+	private final AtomicLong d_pendingUpdates = new AtomicLong();
+	
+	// Set if classifiers were read from the JSON store of earlier versions, 
+	// which is deleted once they are all saved to snapshots of their own
+	private boolean d_jsonStoreLoaded;
+	
+	private final MetricsRegistry d_metrics = new MetricsRegistry();
+	
+	private ScheduledExecutorService d_compactor;
+	
+	private ScheduledFuture<?> d_compaction;
+	
+	private final HashMap<String, TrainingQueue> d_trainingQueues = new HashMap<String, TrainingQueue>();
+	
+	private ExecutorService d_trainer;
+	
 	public static MachineLearningManager getMLManager(Context a_context) throws MLException{
 		
 		if (a_context == null) {
@@ -108,14 +147,33 @@ public class MachineLearningManager {
 	private MachineLearningManager(Context a_context) throws IOException{
 		d_context = a_context;
 		// automatic loading if classifiers exist on the device
-		if (Arrays.asList(d_context.fileList()).contains(Constants.CLASSIFIER_STORAGE_FILE)){	
-			d_classifiers = loadFromPersistent();
-		}
-		else{
-			d_classifiers = new ClassifierList();
+		d_classifiers = loadFromPersistent();
+		recoverJournals();
+		setCompactionPeriod(Constants.DEFAULT_COMPACTION_PERIOD, TimeUnit.MINUTES);
+	}
+	
+	private void recoverJournals() {
+		for (String file : d_context.fileList()) {
+			if (!file.endsWith(Constants.CLASSIFIER_JOURNAL_SUFFIX)) {
+				continue;
+			}
+			try {
+				UpdateJournal journal = UpdateJournal.recover(d_context.getFileStreamPath(file), d_classifiers, d_generations);
+				if (journal != null) {
+					d_journals.put(journal.getName(), journal);
+					d_pendingUpdates.addAndGet(journal.size());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 	
+	/**
+	 * Returns the named classifier, or creates it if there is none. Returns null 
+	 * if the classifier is stored but could not be loaded, rather than replace 
+	 * the stored model with an empty one the next time classifiers are saved.
+	 */
 	public Classifier addClassifier(int a_type, Signature a_signature, ClassifierConfig a_config, String a_name) {
 		Log.d(TAG, "addClassifier");
 
@@ -127,13 +185,389 @@ public class MachineLearningManager {
 			//Log.d(TAG, "return existing classifier");
 			return cls;
 		}
+		if (d_classifiers.isStored(a_name)) {
+			Log.e(TAG, "Classifier "+a_name+" is stored but could not be loaded.");
+			return null;
+		}
 		//throw new MLException(MLException.CLASSIFIER_EXISTS, "Classifier "+a_name+" already exists.");
 		//Log.d(TAG, "return brand new classifier");
 		return d_classifiers.addClassifier(a_type, a_signature, a_config, a_name);
 	}
 	
 	public void removeClassifier(String a_classifierID){
-		d_classifiers.removeClassifier(a_classifierID);
+		d_persistenceLock.writeLock().lock();
+		try {
+			d_classifiers.removeClassifier(a_classifierID);
+			d_metrics.remove(a_classifierID);
+			d_generations.remove(a_classifierID);
+			d_context.getFileStreamPath(ModelSnapshot.fileName(a_classifierID)).delete();
+			synchronized (d_trainingQueues) {
+				d_trainingQueues.remove(a_classifierID);
+			}
+			UpdateJournal journal = d_journals.remove(a_classifierID);
+			if (journal != null) {
+				journal.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			d_persistenceLock.writeLock().unlock();
+		}
+	}
+	
+	private Classifier classifierFor(String a_classifierID) throws MLException {
+		Classifier classifier = d_classifiers.getClassifier(a_classifierID);
+		if (classifier == null) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Classifier "+a_classifierID+" does not exist.");
+		}
+		return classifier;
+	}
+	
+	/**
+	 * Trains the named classifier, and records the call in its metrics.
+	 * Training is not journaled, but it makes the next background compaction 
+	 * save the classifiers; call saveToPersistent to save them right away.
+	 */
+	public void train(String a_classifierID, ArrayList<Instance> a_instances) throws MLException {
+		Classifier classifier = classifierFor(a_classifierID);
+		ClassifierMetrics metrics = d_metrics.get(a_classifierID);
+		long start = System.nanoTime();
+		try {
+			classifier.train(a_instances);
+		} catch (ComplianceException e) {
+			metrics.recordComplianceFailure();
+			throw e;
+		}
+		metrics.recordTrain(System.nanoTime() - start, a_instances.size());
+		d_pendingUpdates.incrementAndGet();
+	}
+	
+	/**
+	 * Trains the named classifier from a dataset, see train(String, ArrayList).
+	 */
+	public void train(String a_classifierID, Dataset a_dataset) throws MLException {
+		Classifier classifier = classifierFor(a_classifierID);
+		ClassifierMetrics metrics = d_metrics.get(a_classifierID);
+		long start = System.nanoTime();
+		try {
+			classifier.train(a_dataset);
+		} catch (ComplianceException e) {
+			metrics.recordComplianceFailure();
+			throw e;
+		}
+		metrics.recordTrain(System.nanoTime() - start, a_dataset.size());
+		d_pendingUpdates.incrementAndGet();
+	}
+	
+	/**
+	 * Merges models trained elsewhere, e.g. on other devices and loaded with 
+	 * loadFromExternalPersistent, into the named classifier, without replaying 
+	 * the instances they were trained with. The models have to have the type and 
+	 * signature of the classifier, otherwise none of them is merged. Like training, 
+	 * merging is not journaled, see train.
+	 */
+	public void merge(String a_classifierID, Collection<? extends Classifier> a_models) throws MLException {
+		Classifier classifier = classifierFor(a_classifierID);
+		if (!(classifier instanceof MergeableClassifier)) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Classifier "+a_classifierID+" does not support merging.");
+		}
+		for (Classifier model : a_models) {
+			if (model.getType() != classifier.getType() || !classifier.getSignature().matches(model.getSignature())) {
+				throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
+						"Model does not match classifier "+a_classifierID+".");
+			}
+		}
+		for (Classifier model : a_models) {
+			((MergeableClassifier) classifier).merge(model);
+		}
+		d_pendingUpdates.incrementAndGet();
+	}
+	
+	/**
+	 * Classifies an instance with the named classifier, and records the call in its metrics.
+	 */
+	public Value classify(String a_classifierID, Instance a_instance) throws MLException {
+		Classifier classifier = classifierFor(a_classifierID);
+		ClassifierMetrics metrics = d_metrics.get(a_classifierID);
+		long start = System.nanoTime();
+		Value value;
+		try {
+			value = classifier.classify(a_instance);
+		} catch (ComplianceException e) {
+			metrics.recordComplianceFailure();
+			throw e;
+		}
+		metrics.recordClassify(System.nanoTime() - start);
+		return value;
+	}
+	
+	/**
+	 * Updates the named online classifier with a training instance. The instance 
+	 * is first appended to the classifier's update journal, so that the update 
+	 * survives a restart without saving all classifiers. Journals are folded into 
+	 * the snapshot by saveToPersistent, which also runs periodically in the background.
+	 * 
+	 * The updates of one thread are replayed in the order they were made. Updates 
+	 * made concurrently by several threads are applied without waiting for each 
+	 * other, and may be replayed in a different order than they were applied in;
+	 * this only matters to classifiers that forget old instances or cluster them.
+	 * 
+	 * Only updates made through this method are journaled; classifiers that are 
+	 * trained or updated directly have to be saved with saveToPersistent.
+	 */
+	public void update(String a_classifierID, Instance a_instance) throws MLException {
+		Classifier classifier = classifierFor(a_classifierID);
+		if (!(classifier instanceof OnlineClassifier)) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Classifier "+a_classifierID+" does not support updates.");
+		}
+		ClassifierMetrics metrics = d_metrics.get(a_classifierID);
+		long start = System.nanoTime();
+		
+		d_persistenceLock.readLock().lock();
+		try {
+			UpdateJournal journal = journalFor(a_classifierID, classifier);
+			if (journal == null) {
+				((OnlineClassifier) classifier).update(a_instance);
+			} else {
+				// Only the write to the journal is serialized, the classifier 
+				// takes concurrent updates as it would without a journal
+				try {
+					journal.append(a_instance);
+				} catch (IOException e) {
+					// The update is kept in memory and saved with the next snapshot
+					e.printStackTrace();
+					requestCompaction();
+				}
+				((OnlineClassifier) classifier).update(a_instance);
+			}
+			d_pendingUpdates.incrementAndGet();
+		} catch (ComplianceException e) {
+			metrics.recordComplianceFailure();
+			throw e;
+		} finally {
+			d_persistenceLock.readLock().unlock();
+		}
+		metrics.recordUpdate(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Applies a batch of updates to the named online classifier, journaling them 
+	 * with a single write. Instead of throwing, the exception of each failed 
+	 * update is put in a_failures, at the index of its instance.
+	 */
+	void update(String a_classifierID, List<Instance> a_instances, Exception[] a_failures) {
+		Classifier classifier = d_classifiers.getClassifier(a_classifierID);
+		if (!(classifier instanceof OnlineClassifier)) {
+			Arrays.fill(a_failures, new MLException(MLException.INVALID_PARAMETER, 
+					"Classifier "+a_classifierID+" does not exist or does not support updates."));
+			return;
+		}
+		ClassifierMetrics metrics = d_metrics.get(a_classifierID);
+		
+		d_persistenceLock.readLock().lock();
+		try {
+			UpdateJournal journal = journalFor(a_classifierID, classifier);
+			if (journal == null) {
+				update((OnlineClassifier) classifier, metrics, a_instances, a_failures);
+			} else {
+				MLException[] rejected = new MLException[a_instances.size()];
+				try {
+					journal.append(a_instances, rejected);
+				} catch (IOException e) {
+					e.printStackTrace();
+					requestCompaction();
+				}
+				for (int i=0; i<rejected.length; i++) {
+					if (rejected[i] != null) {
+						metrics.recordComplianceFailure();
+						a_failures[i] = rejected[i];
+					}
+				}
+				update((OnlineClassifier) classifier, metrics, a_instances, a_failures);
+			}
+		} finally {
+			d_persistenceLock.readLock().unlock();
+		}
+	}
+	
+	// Applies the instances whose failures are not set yet
+	private void update(OnlineClassifier a_classifier, ClassifierMetrics a_metrics, 
+			List<Instance> a_instances, Exception[] a_failures) {
+		for (int i=0; i<a_failures.length; i++) {
+			if (a_failures[i] != null) {
+				continue;
+			}
+			long start = System.nanoTime();
+			try {
+				a_classifier.update(a_instances.get(i));
+			} catch (ComplianceException e) {
+				a_metrics.recordComplianceFailure();
+				a_failures[i] = e;
+				continue;
+			} catch (MLException e) {
+				a_failures[i] = e;
+				continue;
+			} catch (RuntimeException e) {
+				a_failures[i] = e;
+				continue;
+			}
+			a_metrics.recordUpdate(System.nanoTime() - start);
+			d_pendingUpdates.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Trains the named classifier in the background, see train(String, ArrayList).
+	 * The list must not be modified until the returned future is done; its get 
+	 * method throws an ExecutionException if the training failed.
+	 * 
+	 * Trainings and updates submitted for a classifier through trainAsync and 
+	 * updateAsync run one after another, in the order they were submitted. 
+	 * While a classifier trains, classify does not wait for it, but keeps using
+	 * the model from before the training: NaiveBayes and ZeroR classify from
+	 * the copy of their parameters that was published last, and ID3 and
+	 * DensityClustering replace their model when it is complete. It never sees
+	 * a model that is trained partially.
+	 * 
+	 * Throws an MLException if the classifier does not exist, or if it has
+	 * Constants.MAX_PENDING_TRAINING trainings and updates waiting already.
+	 */
+	public Future<Void> trainAsync(final String a_classifierID, final ArrayList<Instance> a_instances) throws MLException {
+		classifierFor(a_classifierID);
+		return trainingQueueFor(a_classifierID).train(new Callable<Void>() {
+			public Void call() throws MLException {
+				train(a_classifierID, a_instances);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Trains the named classifier from a dataset in the background, see 
+	 * trainAsync(String, ArrayList).
+	 */
+	public Future<Void> trainAsync(final String a_classifierID, final Dataset a_dataset) throws MLException {
+		classifierFor(a_classifierID);
+		return trainingQueueFor(a_classifierID).train(new Callable<Void>() {
+			public Void call() throws MLException {
+				train(a_classifierID, a_dataset);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Updates the named online classifier in the background, see update and 
+	 * trainAsync. Updates that are waiting when the classifier's previous 
+	 * operation ends are journaled and applied together.
+	 */
+	public Future<Void> updateAsync(String a_classifierID, Instance a_instance) throws MLException {
+		if (!(classifierFor(a_classifierID) instanceof OnlineClassifier)) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Classifier "+a_classifierID+" does not support updates.");
+		}
+		return trainingQueueFor(a_classifierID).update(a_instance);
+	}
+	
+	private TrainingQueue trainingQueueFor(String a_name) {
+		synchronized (d_trainingQueues) {
+			TrainingQueue queue = d_trainingQueues.get(a_name);
+			if (queue == null) {
+				queue = new TrainingQueue(this, a_name, Constants.MAX_PENDING_TRAINING);
+				d_trainingQueues.put(a_name, queue);
+			}
+			return queue;
+		}
+	}
+	
+	synchronized ExecutorService trainer() {
+		if (d_trainer == null) {
+			int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+			d_trainer = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable a_runnable) {
+					Thread thread = new Thread(a_runnable, "MLManager training");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return d_trainer;
+	}
+	
+	private UpdateJournal journalFor(String a_name, Classifier a_classifier) {
+		synchronized (d_journals) {
+			UpdateJournal journal = d_journals.get(a_name);
+			if (journal == null) {
+				try {
+					Long generation = d_generations.get(a_name);
+					journal = UpdateJournal.create(d_context.getFileStreamPath(UpdateJournal.fileName(a_name)), 
+							a_name, a_classifier, generation == null ? 0 : generation.longValue());
+					d_journals.put(a_name, journal);
+				} catch (IOException e) {
+					e.printStackTrace();
+					requestCompaction();
+				}
+			}
+			return journal;
+		}
+	}
+	
+	private final Runnable d_compactionTask = new Runnable() {
+		public void run() {
+			if (d_pendingUpdates.get() > 0) {
+				saveToPersistent();
+			}
+		}
+	};
+	
+	private synchronized ScheduledExecutorService compactor() {
+		if (d_compactor == null) {
+			d_compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable a_runnable) {
+					Thread thread = new Thread(a_runnable, "MLManager compaction");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return d_compactor;
+	}
+	
+	private void requestCompaction() {
+		compactor().execute(d_compactionTask);
+	}
+	
+	/**
+	 * Sets how often update journals are compacted into a fresh snapshot in the 
+	 * background, if there were any updates. A period of zero stops compaction.
+	 */
+	public synchronized void setCompactionPeriod(long a_period, TimeUnit a_unit) {
+		if (d_compaction != null) {
+			d_compaction.cancel(false);
+			d_compaction = null;
+		}
+		if (a_period > 0) {
+			d_compaction = compactor().scheduleWithFixedDelay(d_compactionTask, a_period, a_period, a_unit);
+		}
+	}
+	
+	/**
+	 * Returns the metrics of the classifiers used through this manager.
+	 */
+	public MetricsRegistry getMetrics() {
+		return d_metrics;
+	}
+	
+	/**
+	 * Logs and returns a report of the metrics of all classifiers.
+	 */
+	public String dumpMetrics() {
+		String dump = d_metrics.dump();
+		Log.i(TAG, dump);
+		return dump;
 	}
 	
 	// This will return null in case there is no such classifier
@@ -142,133 +576,221 @@ public class MachineLearningManager {
 	}
 	
 	public String getJSON() {
-		Gson gson = new Gson();
-		String JSONstring = gson.toJson(d_classifiers);
-		return JSONstring;
+		StringWriter writer = new StringWriter();
+		try {
+			JsonSnapshot.write(writer, d_classifiers);
+		} catch (IOException e) {
+			// Not thrown by a StringWriter
+			e.printStackTrace();
+		}
+		return writer.toString();
 	}
 	
+	/**
+	 * Streams all classifiers as JSON to a file on the external storage.
+	 */
 	public void saveToPersistentExternal(String a_filename) {
-		Gson gson = new Gson();
-		String JSONstring = gson.toJson(d_classifiers);
-	
 		try {
 			String root = Environment.getExternalStorageDirectory().toString();
 			File file = new File(root + a_filename);  			
-			FileOutputStream fos = new FileOutputStream(file);		
-			OutputStreamWriter osw = new OutputStreamWriter(fos);
-			osw.write(JSONstring);
-			osw.flush();
-			osw.close();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			try {
+				JsonSnapshot.write(writer, d_classifiers);
+			} finally {
+				writer.close();
+			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 	
-	public void saveToPersistent() {
-		Gson gson = new Gson();
-		String JSONstring = gson.toJson(d_classifiers);
+	private final ModelSnapshot.RecordListener d_persistenceMetrics = new ModelSnapshot.RecordListener() {
+		public void recordWritten(String a_name, long a_bytes, long a_nanos) {
+			d_metrics.get(a_name).recordPersistence(a_nanos, a_bytes);
+		}
+	};
 	
+	/**
+	 * Saves the classifiers that changed since they were last saved or loaded, 
+	 * each to a binary snapshot of its own in the application's private storage. 
+	 * A snapshot is written to a temporary file first and then renamed over the 
+	 * previous one, so a failed save leaves the previous snapshot, and those of 
+	 * the other classifiers, intact. Once a snapshot is in place, the update 
+	 * journal of its classifier is discarded.
+	 * 
+	 * If there is a snapshot of all classifiers, written by an earlier version, 
+	 * every classifier is saved, after which that snapshot is deleted. So is the 
+	 * JSON store of earlier versions, once the classifiers read from it are saved.
+	 */
+	public void saveToPersistent() {
+		d_persistenceLock.writeLock().lock();
 		try {
-			FileOutputStream fos = d_context.openFileOutput(Constants.CLASSIFIER_STORAGE_FILE, Context.MODE_PRIVATE);		
-			OutputStreamWriter osw = new OutputStreamWriter(fos);
-			osw.write(JSONstring);
-			osw.flush();
-			osw.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+			File combined = d_context.getFileStreamPath(Constants.CLASSIFIER_SNAPSHOT_FILE);
+			boolean migrate = combined.exists();
+			HashMap<String, Classifier> classifiers = migrate ? 
+					d_classifiers.getClassifiers() : d_classifiers.getLoadedClassifiers();
+			boolean saved = true;
+			for (Map.Entry<String, Classifier> entry : classifiers.entrySet()) {
+				try {
+					save(entry.getKey(), entry.getValue());
+				} catch (IOException e) {
+					e.printStackTrace();
+					saved = false;
+				}
+			}
+			if (saved) {
+				d_pendingUpdates.set(0);
+				if (migrate && !d_classifiers.hasStoredClassifiers()) {
+					combined.delete();
+				}
+				// Classifiers read from the JSON store are all loaded, so they were all saved
+				if (d_jsonStoreLoaded) {
+					d_context.getFileStreamPath(Constants.CLASSIFIER_STORAGE_FILE).delete();
+					d_jsonStoreLoaded = false;
+				}
+			}
+		} finally {
+			d_persistenceLock.writeLock().unlock();
 		}
 	}
 	
-	public ClassifierList loadFromExternalPersistent(String a_filename) {
+	// Saves the classifier unless it is saved already, and discards its journal.
+	private void save(String a_name, Classifier a_classifier) throws IOException {
+		String fileName = ModelSnapshot.fileName(a_name);
+		if (!a_classifier.isDirty() && d_context.getFileStreamPath(fileName).exists()) {
+			return;
+		}
+		int changes = a_classifier.getChanges();
+		Long previous = d_generations.get(a_name);
+		long generation = (previous == null ? 0 : previous.longValue()) + 1;
 		
-		StringBuilder JSONstring = new StringBuilder();
+		String tmpName = fileName + ".tmp";
+		FileOutputStream fos = d_context.openFileOutput(tmpName, Context.MODE_PRIVATE);
+		try {
+			ModelSnapshot.write(fos.getChannel(), Collections.singletonMap(a_name, a_classifier), 
+					generation, d_persistenceMetrics);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!d_context.getFileStreamPath(tmpName).renameTo(d_context.getFileStreamPath(fileName))) {
+			throw new IOException("Could not replace "+fileName);
+		}
+		d_generations.put(a_name, generation);
+		a_classifier.markSaved(changes);
 		
+		// Journals of older generations are ignored on loading, so it does not 
+		// matter if deleting it fails.
+		UpdateJournal journal = d_journals.remove(a_name);
+		if (journal != null) {
+			journal.delete();
+		}
+	}
+	
+	/**
+	 * Loads classifiers saved by saveToPersistentExternal, reading them 
+	 * straight from the file stream. Returns null if the file cannot be read.
+	 */
+	public ClassifierList loadFromExternalPersistent(String a_filename) {
 		try {
 			File sdcard = Environment.getExternalStorageDirectory();
 			File file = new File(sdcard,a_filename);
-			FileReader fr = new FileReader(file);
-			BufferedReader br = new BufferedReader(fr);
-			
-			String line;
-			while ((line = br.readLine()) != null) {
-				JSONstring.append(line);
-				Log.d(TAG, "Read "+line);
+			Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				return JsonSnapshot.read(reader);
+			} finally {
+				reader.close();
 			}
-			br.close();			
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
-
-		Gson gson = new GsonBuilder()
-			.registerTypeHierarchyAdapter(Classifier.class, new ClassifierAdapter())
-			.create();
-		
-		ClassifierList list = (ClassifierList) gson.fromJson(JSONstring.toString(), ClassifierList.class);
-		return list;
 	}
 	
+	/**
+	 * Loads the classifiers from their binary snapshots in the application's private 
+	 * storage. Only the index of each snapshot is read; a classifier is read when 
+	 * it is first requested from the list, see LazySnapshot. Classifiers saved by 
+	 * earlier versions, to a snapshot of all classifiers or as JSON, are loaded as 
+	 * well, unless they have a snapshot of their own. Those files are kept until 
+	 * all their classifiers are saved, so a partial save loses none of them.
+	 */
 	public ClassifierList loadFromPersistent() {
-		
-		StringBuilder JSONstring = new StringBuilder();
-		
+		d_persistenceLock.writeLock().lock();
 		try {
-			FileInputStream is = d_context.openFileInput(Constants.CLASSIFIER_STORAGE_FILE);			
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
+			d_generations.clear();
+			d_jsonStoreLoaded = false;
+			List<String> files = Arrays.asList(d_context.fileList());
+			ArrayList<String> shards = new ArrayList<String>();
+			for (String file : files) {
+				if (file.endsWith(Constants.CLASSIFIER_SHARD_SUFFIX)) {
+					shards.add(file);
+				}
+			}
 			
-			String line;
-			while ((line = br.readLine()) != null) {
-				JSONstring.append(line);
+			ClassifierList list;
+			if (files.contains(Constants.CLASSIFIER_SNAPSHOT_FILE)) {
+				list = loadCombinedSnapshot();
+			} else if (files.contains(Constants.CLASSIFIER_STORAGE_FILE)) {
+				list = loadFromPersistentJSON();
+			} else {
+				list = new ClassifierList();
+			}
+			for (String file : shards) {
+				try {
+					LazySnapshot.open(d_context.getFileStreamPath(file), list, d_generations);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			return list;
+		} finally {
+			d_persistenceLock.writeLock().unlock();
+		}
+	}
+	
+	private ClassifierList loadCombinedSnapshot() {
+		ClassifierList list = new ClassifierList();
+		try {
+			LazySnapshot.open(d_context.getFileStreamPath(Constants.CLASSIFIER_SNAPSHOT_FILE), list, d_generations);
+			return list;
+		} catch (IOException e) {
+			// Snapshots of earlier versions have no index, and are read as a whole
+			Log.d(TAG, "Reading the whole snapshot: "+e.getMessage());
+		}
+		try {
+			FileInputStream is = d_context.openFileInput(Constants.CLASSIFIER_SNAPSHOT_FILE);
+			try {
+				HashMap<String, Classifier> classifiers = new HashMap<String, Classifier>();
+				long generation = ModelSnapshot.read(is.getChannel(), classifiers);
+				for (Map.Entry<String, Classifier> entry : classifiers.entrySet()) {
+					list.putClassifier(entry.getKey(), entry.getValue());
+					d_generations.put(entry.getKey(), generation);
+				}
+				return list;
+			} finally {
+				is.close();
 			}
-			br.close();			
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-
-		Gson gson = new GsonBuilder()
-			.registerTypeHierarchyAdapter(Classifier.class, new ClassifierAdapter())
-			.create();
-		
-		ClassifierList list = (ClassifierList) gson.fromJson(JSONstring.toString(), ClassifierList.class);
-		return list;
+		return loadFromPersistentJSON();
 	}
 	
-	static class ClassifierAdapter implements JsonDeserializer<Classifier> {
-		
-		Gson gson;		
-		
-		ClassifierAdapter(){
-			GsonBuilder gsonBuilder = new GsonBuilder();
-		    gson = gsonBuilder.create();		    
-		}
-		
-		public Classifier deserialize(JsonElement a_elem, Type a_type, JsonDeserializationContext a_context) throws JsonParseException {
-			Classifier result = null;
-			
-			JsonObject object = a_elem.getAsJsonObject();
-			int type = object.get("d_type").getAsInt();
-			switch(type){
-				case Constants.TYPE_NAIVE_BAYES:
-					result = gson.fromJson(a_elem, NaiveBayes.class);					
-					break;
-				case Constants.TYPE_ID3:
-					result = gson.fromJson(a_elem, ID3.class);
-					break;
-				case Constants.TYPE_DENSITY_CLUSTER:
-					result = gson.fromJson(a_elem, DensityClustering.class);
-					break;					
-				case Constants.TYPE_ZERO_R:
-					result = gson.fromJson(a_elem, ZeroR.class);
-					break;
+	private ClassifierList loadFromPersistentJSON() {
+		try {
+			FileInputStream is = d_context.openFileInput(Constants.CLASSIFIER_STORAGE_FILE);			
+			Reader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+			try {
+				ClassifierList list = JsonSnapshot.read(reader);
+				d_jsonStoreLoaded = true;
+				return list;
+			} finally {
+				reader.close();
 			}
-			result.printClassifierInfo();
-			return result;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ClassifierList();
 		}
 	}
 }
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.MLException;
+
+/**
+ * Asynchronous training operations of one classifier, see 
+ * MachineLearningManager.trainAsync and updateAsync. Operations run one at a 
+ * time, in the order they were submitted, on the manager's training threads. 
+ * Updates submitted in a row are coalesced into a batch, which is journaled 
+ * with a single write.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+class TrainingQueue implements Runnable {
+
+	private final MachineLearningManager d_manager;
+	
+	private final String d_name;
+	
+	private final int d_capacity;
+	
+	// Trainings (FutureTask) and update batches that have not started yet
+	private final LinkedList<Object> d_operations = new LinkedList<Object>();
+	
+	// Number of trainings and updates that have not started yet
+	private int d_pending;
+	
+	// Whether the queue is waiting for or running on a training thread
+	private boolean d_scheduled;
+	
+	TrainingQueue(MachineLearningManager a_manager, String a_name, int a_capacity) {
+		d_manager = a_manager;
+		d_name = a_name;
+		d_capacity = a_capacity;
+	}
+	
+	Future<Void> train(Callable<Void> a_training) throws MLException {
+		FutureTask<Void> task = new FutureTask<Void>(a_training);
+		synchronized (this) {
+			checkCapacity();
+			d_operations.add(task);
+			d_pending++;
+			schedule();
+		}
+		return task;
+	}
+	
+	Future<Void> update(Instance a_instance) throws MLException {
+		Result result = new Result();
+		synchronized (this) {
+			checkCapacity();
+			UpdateBatch batch;
+			if (!d_operations.isEmpty() && d_operations.getLast() instanceof UpdateBatch) {
+				batch = (UpdateBatch) d_operations.getLast();
+			} else {
+				batch = new UpdateBatch();
+				d_operations.add(batch);
+			}
+			batch.d_instances.add(a_instance);
+			batch.d_results.add(result);
+			d_pending++;
+			schedule();
+		}
+		return result;
+	}
+	
+	private void checkCapacity() throws MLException {
+		if (d_pending >= d_capacity) {
+			throw new MLException(MLException.INVALID_STATE, 
+					"Classifier "+d_name+" has too many pending trainings and updates.");
+		}
+	}
+	
+	private void schedule() {
+		if (!d_scheduled) {
+			d_manager.trainer().execute(this);
+			d_scheduled = true;
+		}
+	}
+	
+	/**
+	 * Runs the queued operations until the queue is empty.
+	 */
+	public void run() {
+		while (true) {
+			Object operation;
+			synchronized (this) {
+				if (d_operations.isEmpty()) {
+					d_scheduled = false;
+					return;
+				}
+				operation = d_operations.removeFirst();
+				d_pending -= operation instanceof UpdateBatch ? ((UpdateBatch) operation).d_instances.size() : 1;
+			}
+			if (operation instanceof UpdateBatch) {
+				UpdateBatch batch = (UpdateBatch) operation;
+				Exception[] failures = new Exception[batch.d_instances.size()];
+				try {
+					d_manager.update(d_name, batch.d_instances, failures);
+				} catch (RuntimeException e) {
+					for (int i=0; i<failures.length; i++) {
+						if (failures[i] == null) {
+							failures[i] = e;
+						}
+					}
+				}
+				for (int i=0; i<failures.length; i++) {
+					batch.d_results.get(i).complete(failures[i]);
+				}
+			} else {
+				((FutureTask<?>) operation).run();
+			}
+		}
+	}
+	
+	private static class UpdateBatch {
+		
+		final ArrayList<Instance> d_instances = new ArrayList<Instance>();
+		
+		final ArrayList<Result> d_results = new ArrayList<Result>();
+	}
+	
+	/**
+	 * The future of a single update in a batch.
+	 */
+	private static class Result extends FutureTask<Void> {
+		
+		private static final Runnable NOTHING = new Runnable() {
+			public void run() {
+			}
+		};
+		
+		Result() {
+			super(NOTHING, null);
+		}
+		
+		void complete(Exception a_failure) {
+			if (a_failure == null) {
+				set(null);
+			} else {
+				setException(a_failure);
+			}
+		}
+	}
+}
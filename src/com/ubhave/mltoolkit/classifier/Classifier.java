@@ -21,12 +21,23 @@
  ******************************************************************************/
 package com.ubhave.mltoolkit.classifier;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
 import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Dataset;
 import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceSource;
+import com.ubhave.mltoolkit.utils.InstanceStream;
 import com.ubhave.mltoolkit.utils.MLException;
 import com.ubhave.mltoolkit.utils.Signature;
 import com.ubhave.mltoolkit.utils.Value;
@@ -48,6 +59,17 @@ public abstract class Classifier {
 	
 	private static final String TAG = "Classifier";
 	
+	// Number of instances of a stream that are held in memory at a time
+	protected static final int STREAM_CHUNK_ROWS = 65536;
+	
+	private static final AtomicIntegerFieldUpdater<Classifier> CHANGES = 
+			AtomicIntegerFieldUpdater.newUpdater(Classifier.class, "d_changes");
+	
+	// Number of times the model was trained or updated, see isDirty
+	private transient volatile int d_changes;
+	
+	private transient volatile int d_savedChanges;
+	
 	public Classifier(Signature a_signature, ClassifierConfig a_config) {
 		d_signature = a_signature;
 		d_config = a_config;
@@ -55,8 +77,230 @@ public abstract class Classifier {
 	
 	public abstract void train(ArrayList<Instance> instances) throws MLException;
 
+	/**
+	 * Trains the classifier from a columnar dataset. The dataset has to be 
+	 * built with the same signature as the classifier.
+	 */
+	public abstract void train(Dataset dataset) throws MLException;
+	
+	/**
+	 * Trains the classifier from instances that are pulled one at a time. 
+	 */
+	public void train(final Iterator<Instance> a_instances) throws MLException {
+		train(new InstanceStream() {
+			public Instance next() {
+				return a_instances.hasNext() ? a_instances.next() : null;
+			}
+			
+			public void close() {
+			}
+		});
+	}
+	
+	/**
+	 * Trains the classifier from a stream, which is closed afterwards. Classifiers 
+	 * that learn in a single pass (NaiveBayes, ZeroR) hold only a chunk of the 
+	 * stream in memory at a time, others collect the whole stream into a Dataset.
+	 */
+	public void train(InstanceStream a_stream) throws MLException {
+		Dataset dataset = new Dataset(d_signature, STREAM_CHUNK_ROWS);
+		try {
+			Instance instance;
+			while ((instance = a_stream.next()) != null) {
+				dataset.addInstance(instance);
+			}
+		} finally {
+			a_stream.close();
+		}
+		train(dataset);
+	}
+	
+	/**
+	 * Trains the classifier from a source that can be read more than once. 
+	 * Classifiers that need several passes over the instances (ID3, 
+	 * DensityClustering) read the source once per pass, rather than hold 
+	 * the instances in memory; others read it once, as a stream.
+	 */
+	public void train(InstanceSource a_source) throws MLException {
+		train(a_source.open());
+	}
+	
+	// Trains on one chunk of the stream after another, for classifiers whose 
+	// training adds up. The stream is closed afterwards.
+	protected void trainInChunks(InstanceStream a_stream) throws MLException {
+		Dataset chunk = new Dataset(d_signature, STREAM_CHUNK_ROWS);
+		try {
+			while (nextChunk(a_stream, chunk)) {
+				train(chunk);
+			}
+		} finally {
+			a_stream.close();
+		}
+	}
+	
+	// Refills the dataset with the next instances of the stream, at most 
+	// STREAM_CHUNK_ROWS of them. Returns false once the stream is exhausted.
+	protected static boolean nextChunk(InstanceStream a_stream, Dataset a_chunk) throws MLException {
+		a_chunk.clear();
+		Instance instance;
+		while (a_chunk.size() < STREAM_CHUNK_ROWS && (instance = a_stream.next()) != null) {
+			a_chunk.addInstance(instance);
+		}
+		return a_chunk.size() > 0;
+	}
+
 	public abstract Value classify(Instance instance) throws MLException;
 	
+	/**
+	 * Classifies a batch of instances at once. Instances are checked for compliance
+	 * only once per batch, and results are written to buffers supplied by the caller,
+	 * so that they can be reused across batches.
+	 * 
+	 * The index (in the class feature) of the class value predicted for the i-th 
+	 * instance is written to a_classes[i]. If a_posteriors is not null, the probability 
+	 * of class value c is written to a_posteriors[i * numberOfClassValues() + c]. 
+	 * Classifiers that do not estimate a distribution give all probability to 
+	 * the predicted class. For a NUMERIC class feature, the class index is -1 
+	 * and the predicted value is written to the posteriors buffer.
+	 */
+	public abstract void classifyBatch(ArrayList<Instance> instances, int[] classes, double[] posteriors) throws MLException;
+	
+	public int numberOfClassValues() {
+		return d_signature.getClassFeature().numberOfCategories();
+	}
+	
+	protected void checkBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+		if (a_classes == null || a_classes.length < a_instances.size()) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Class buffer has to hold at least one entry per instance.");
+		}
+		if (a_posteriors != null && a_posteriors.length < a_instances.size() * numberOfClassValues()) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Posterior buffer has to hold at least one entry per instance and class value.");
+		}
+		d_signature.getValidator().validateAll(a_instances, false);
+	}
+	
+	// Gives all probability to the predicted class of the i-th instance.
+	protected void writeOneHot(int a_instance, int a_class, double[] a_posteriors) {
+		int numClasses = numberOfClassValues();
+		Arrays.fill(a_posteriors, a_instance * numClasses, (a_instance + 1) * numClasses, 0.0);
+		a_posteriors[a_instance * numClasses + a_class] = 1.0;
+	}
+	
+	// See MergeableClassifier
+	protected void checkMergeable(Classifier a_other) throws MLException {
+		if (a_other.getClass() != getClass() || a_other.getType() != d_type) {
+			throw new MLException(MLException.INVALID_PARAMETER, 
+					"Only classifiers of the same type can be merged.");
+		}
+		if (!d_signature.matches(a_other.getSignature())) {
+			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
+					"Only classifiers with the same signature can be merged.");
+		}
+	}
+	
+	// A dataset does not have to share the signature object with the classifier
+	// (e.g. when the classifier was loaded from a file), but its features have to match.
+	protected void checkDataset(Dataset a_dataset) throws MLException {
+		Signature signature = a_dataset.getSignature();
+		boolean compatible = signature.size() == d_signature.size() 
+				&& signature.getClassIndex() == d_signature.getClassIndex();
+		for (int i=0; compatible && i<signature.size(); i++) {
+			compatible = signature.getFeatureAtIndex(i).getFeatureType() 
+					== d_signature.getFeatureAtIndex(i).getFeatureType()
+					&& signature.getFeatureAtIndex(i).numberOfCategories() 
+					== d_signature.getFeatureAtIndex(i).numberOfCategories();
+		}
+		if (!compatible) {
+			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
+					"Dataset is not compatible with the dataset used for classifier construction.");
+		}
+	}
+	
 	public abstract void printClassifierInfo();
 	
+	/**
+	 * Writes the trained state of the classifier to a binary snapshot. 
+	 * The type, signature and configuration are written by the snapshot itself.
+	 */
+	public abstract void writeState(SnapshotWriter out) throws IOException;
+	
+	/**
+	 * Restores the state written by writeState into a classifier that was 
+	 * constructed with the same signature and configuration. State written by 
+	 * earlier versions is told apart by the version of the reader.
+	 */
+	public abstract void readState(SnapshotReader in) throws IOException;
+	
+	/**
+	 * Writes the tables the classifier classifies with, such as log-probabilities
+	 * or tree nodes, in the layout that a MappedClassifier of the same type reads 
+	 * from a memory-mapped file, see MappedModel.
+	 */
+	public abstract void writeMapped(SnapshotWriter out) throws IOException;
+	
+	/**
+	 * Writes the trained state of the classifier as fields of a JSON object.
+	 * The type, signature and configuration are written by the caller.
+	 */
+	public abstract void writeJSON(JsonWriter out) throws IOException;
+	
+	/**
+	 * Reads a single field written by writeJSON into a classifier that was 
+	 * constructed with the same signature and configuration. Returns false 
+	 * (without consuming the value) if the field is not known.
+	 */
+	public abstract boolean readJSONField(String name, JsonReader in) throws IOException;
+	
+	/**
+	 * Called by subclasses after every training and update.
+	 */
+	protected void changed() {
+		CHANGES.incrementAndGet(this);
+	}
+	
+	/**
+	 * Makes all updates so far visible to classifications, e.g. once the updates
+	 * of a journal are replayed. Classifiers that publish updates in batches 
+	 * (NaiveBayes, ZeroR) override this; others classify with every update at once.
+	 */
+	public void publishUpdates() {
+	}
+	
+	/**
+	 * Returns the number of times the classifier was trained or updated, 
+	 * which is passed to markSaved once the classifier is saved.
+	 */
+	public int getChanges() {
+		return d_changes;
+	}
+	
+	/**
+	 * Records that the classifier was saved after the given number of changes.
+	 */
+	public void markSaved(int a_changes) {
+		d_savedChanges = a_changes;
+	}
+	
+	/**
+	 * Returns whether the classifier changed since it was last saved or loaded.
+	 * A new classifier is not dirty until it is trained.
+	 */
+	public boolean isDirty() {
+		return d_changes != d_savedChanges;
+	}
+	
+	public int getType() {
+		return d_type;
+	}
+	
+	public Signature getSignature() {
+		return d_signature;
+	}
+	
+	public ClassifierConfig getConfig() {
+		return d_config;
+	}
+	
 }
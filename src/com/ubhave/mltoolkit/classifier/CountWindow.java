@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.JsonArrays;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
+
+/**
+ * Sliding window over tables of counts, kept as a ring of buckets. New counts 
+ * go to the current bucket. Once it holds its share of the window's instances, 
+ * or once its share of the window's duration has passed, the oldest bucket is 
+ * dropped and cleared to become the current one. The window thus covers between 
+ * (buckets - 1) and all buckets' worth of instances (or time), in bounded memory.
+ * 
+ * Not thread safe, the owner guards it with its own lock.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+final class CountWindow {
+
+	// Instances per bucket, or zero if buckets are timed
+	private final long d_bucketSize;
+	
+	// Milliseconds per bucket, or zero if buckets are counted
+	private final long d_bucketDuration;
+	
+	private final double[][] d_buckets;
+	
+	// Number of instances in each bucket, and when it became the current one
+	private final long[] d_sizes;
+	
+	private final long[] d_starts;
+	
+	private int d_current;
+	
+	/**
+	 * Creates a window of the last a_size instances, or if a_size is zero, of 
+	 * the last a_duration milliseconds, over tables of the given length.
+	 */
+	CountWindow(long a_size, long a_duration, int a_numBuckets, int a_tableLength) {
+		int numBuckets = Math.max(a_numBuckets, 1);
+		if (a_size > 0) {
+			d_bucketSize = Math.max(a_size / numBuckets, 1);
+			d_bucketDuration = 0;
+		} else {
+			d_bucketSize = 0;
+			d_bucketDuration = Math.max(a_duration / numBuckets, 1);
+		}
+		d_buckets = new double[numBuckets][a_tableLength];
+		d_sizes = new long[numBuckets];
+		d_starts = new long[numBuckets];
+		d_current = 0;
+	}
+	
+	/**
+	 * Returns true if the current bucket is timed out.
+	 */
+	boolean isDue(long a_now) {
+		return a_now >= dueTime();
+	}
+	
+	/**
+	 * Returns the time the current bucket times out, or Long.MAX_VALUE if buckets are counted.
+	 */
+	long dueTime() {
+		return d_bucketDuration > 0 ? d_starts[d_current] + d_bucketDuration : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Moves past the buckets that timed out. Returns true if any counts were dropped.
+	 */
+	boolean expire(long a_now) {
+		if (!isDue(a_now)) {
+			return false;
+		}
+		long elapsed = (a_now - d_starts[d_current]) / d_bucketDuration;
+		boolean dropped = false;
+		for (long i=0; i<Math.min(elapsed, d_buckets.length); i++) {
+			dropped |= rotate();
+		}
+		d_starts[d_current] = a_now;
+		return dropped;
+	}
+	
+	/**
+	 * Makes room for one more instance in the current bucket, which is then 
+	 * returned by current(). Returns true if any counts were dropped.
+	 */
+	boolean next(long a_now) {
+		boolean dropped = expire(a_now);
+		if (d_bucketSize > 0 && d_sizes[d_current] >= d_bucketSize) {
+			dropped |= rotate();
+			d_starts[d_current] = a_now;
+		}
+		d_sizes[d_current]++;
+		return dropped;
+	}
+	
+	// Moves on to the oldest bucket and clears it. Returns true if it held any counts.
+	private boolean rotate() {
+		d_current = (d_current + 1) % d_buckets.length;
+		boolean dropped = d_sizes[d_current] > 0;
+		Arrays.fill(d_buckets[d_current], 0.0);
+		d_sizes[d_current] = 0;
+		return dropped;
+	}
+	
+	double[] current() {
+		return d_buckets[d_current];
+	}
+	
+	/**
+	 * Writes the sum of all buckets to the given tables, which together are 
+	 * as long as the bucket tables. 
+	 */
+	void sumTo(double[]... a_tables) {
+		for (double[] target : a_tables) {
+			Arrays.fill(target, 0.0);
+		}
+		for (double[] bucket : d_buckets) {
+			int position = 0;
+			for (double[] target : a_tables) {
+				for (int i=0; i<target.length; i++) {
+					target[i] += bucket[position++];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the buckets with a single current bucket holding the given tables, 
+	 * for counts that were saved without a window.
+	 */
+	void reset(long a_size, long a_now, double[]... a_tables) {
+		for (int b=0; b<d_buckets.length; b++) {
+			Arrays.fill(d_buckets[b], 0.0);
+			d_sizes[b] = 0;
+			d_starts[b] = 0;
+		}
+		d_current = 0;
+		int position = 0;
+		for (double[] table : a_tables) {
+			System.arraycopy(table, 0, d_buckets[0], position, table.length);
+			position += table.length;
+		}
+		d_sizes[0] = a_size;
+		d_starts[0] = a_now;
+	}
+	
+	void write(SnapshotWriter a_out) throws IOException {
+		a_out.writeInt(d_buckets.length);
+		a_out.writeInt(d_current);
+		for (int b=0; b<d_buckets.length; b++) {
+			a_out.writeLong(d_sizes[b]);
+			a_out.writeLong(d_starts[b]);
+			a_out.writeDoubleArray(d_buckets[b]);
+		}
+	}
+	
+	void read(SnapshotReader a_in) throws IOException {
+		int numBuckets = a_in.readInt();
+		int current = a_in.readInt();
+		if (numBuckets != d_buckets.length || current < 0 || current >= numBuckets) {
+			throw new IOException("Stored window does not match the classifier configuration.");
+		}
+		for (int b=0; b<numBuckets; b++) {
+			d_sizes[b] = a_in.readLong();
+			d_starts[b] = a_in.readLong();
+			setBucket(b, a_in.readDoubleArray());
+		}
+		d_current = current;
+	}
+	
+	void writeJSON(JsonWriter a_out) throws IOException {
+		a_out.beginObject();
+		a_out.name("current").value(d_current);
+		a_out.name("buckets").beginArray();
+		for (int b=0; b<d_buckets.length; b++) {
+			a_out.beginObject();
+			a_out.name("size").value(d_sizes[b]);
+			a_out.name("start").value(d_starts[b]);
+			a_out.name("counts");
+			JsonArrays.writeDoubleArray(a_out, d_buckets[b]);
+			a_out.endObject();
+		}
+		a_out.endArray();
+		a_out.endObject();
+	}
+	
+	void readJSON(JsonReader a_in) throws IOException {
+		int current = -1;
+		int numBuckets = 0;
+		a_in.beginObject();
+		while (a_in.hasNext()) {
+			String name = a_in.nextName();
+			if (name.equals("current")) {
+				current = a_in.nextInt();
+			} else if (name.equals("buckets")) {
+				a_in.beginArray();
+				while (a_in.hasNext()) {
+					if (numBuckets == d_buckets.length) {
+						throw new IOException("Stored window does not match the classifier configuration.");
+					}
+					a_in.beginObject();
+					while (a_in.hasNext()) {
+						String field = a_in.nextName();
+						if (field.equals("size")) {
+							d_sizes[numBuckets] = a_in.nextLong();
+						} else if (field.equals("start")) {
+							d_starts[numBuckets] = a_in.nextLong();
+						} else if (field.equals("counts")) {
+							setBucket(numBuckets, JsonArrays.readDoubleArray(a_in));
+						} else {
+							a_in.skipValue();
+						}
+					}
+					a_in.endObject();
+					numBuckets++;
+				}
+				a_in.endArray();
+			} else {
+				a_in.skipValue();
+			}
+		}
+		a_in.endObject();
+		if (numBuckets != d_buckets.length || current < 0 || current >= numBuckets) {
+			throw new IOException("Stored window does not match the classifier configuration.");
+		}
+		d_current = current;
+	}
+	
+	private void setBucket(int a_bucket, double[] a_counts) throws IOException {
+		if (a_counts.length != d_buckets[a_bucket].length) {
+			throw new IOException("Stored window does not match the classifier signature.");
+		}
+		d_buckets[a_bucket] = a_counts;
+	}
+}
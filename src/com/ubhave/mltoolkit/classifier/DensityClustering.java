@@ -21,16 +21,24 @@
  ******************************************************************************/
 package com.ubhave.mltoolkit.classifier;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.JsonArrays;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
 import com.ubhave.mltoolkit.utils.ClassifierConfig;
 import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Dataset;
 import com.ubhave.mltoolkit.utils.Feature;
 import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceSource;
+import com.ubhave.mltoolkit.utils.InstanceStream;
 import com.ubhave.mltoolkit.utils.MLException;
 import com.ubhave.mltoolkit.utils.Signature;
 import com.ubhave.mltoolkit.utils.Value;
@@ -40,8 +48,14 @@ import com.ubhave.mltoolkit.utils.Value;
  * The classifier first removes cluster outliers using the density method,
  * i.e. if less than a given percentage of other data instances are in the 
  * epsilon environment of a point, the point is removed as an outlier. 
- * Cluster centroids are then calculated. The classifier is not an online 
- * classifier, and is batch trained from given instances. 
+ * Cluster centroids are then calculated. Training replaces the model with
+ * the one calculated from the given instances.
+ * 
+ * The classifier can also be updated one instance at a time. An update is 
+ * judged against a bounded sample (reservoir) of the earlier points with the 
+ * same label, and, unless it is an outlier among them, moves the centroid 
+ * of its label. An update thus takes constant time, however the points added 
+ * earlier are not judged again.
  * 
  * At the classification time, an instance is given a label that corresponds
  * to the closest cluster centroid. The distance used for density and closeness
@@ -58,22 +72,57 @@ import com.ubhave.mltoolkit.utils.Value;
  * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
  *
  */
-public class DensityClustering extends Classifier {
+public class DensityClustering extends Classifier implements OnlineClassifier {
 
 	private static final String TAG = "DensityClustering";
 	
-	private HashMap<String,double[]> d_centroids;
+	// in km
+	static final double EARTH_RADIUS = 6371.0;
+	
+	// Number of points whose neighbours are counted by a single task
+	private static final int DENSITY_CHUNK = 1024;
+	
+	// Replaced as a whole when training ends, so classify never sees a half-trained model
+	private volatile HashMap<String,double[]> d_centroids;
 	
-	private HashMap<String,Integer> d_numTrains;
+	private volatile HashMap<String,Integer> d_numTrains;
 	
 	private double d_maxDistance;
 	
 	private double d_minInclusionPct;	
 	
+	private transient int d_numThreads;
+	
+	// A uniform sample of the points of each label, in the order of class values.
+	// The first d_reservoirFill points of a reservoir are in use, and were drawn 
+	// from d_reservoirSeen points. Guarded by the lock of the classifier.
+	private transient int d_reservoirSize;
+	
+	private transient double[][] d_reservoirs;
+	
+	private transient int[] d_reservoirFill;
+	
+	private transient long[] d_reservoirSeen;
+	
 	private static double toRad(double a_degree) {
 		return Math.PI*a_degree/180.0;
 	}
 	
+	// Haversine distance in metres
+	static double gpsDistance(double lat1, double lon1, double lat2, double lon2) {
+		double R = EARTH_RADIUS;
+		double dLat = toRad(lat2 - lat1);
+		double dLon = toRad(lon2 - lon1);
+		double radLat1 = toRad(lat1);
+		double radLat2 = toRad(lat2);
+		
+		double a = Math.sin(dLat/2.0) * Math.sin(dLat/2.0) + 
+				Math.sin(dLon/2.0) * Math.sin(dLon/2.0) * Math.cos(radLat1) * Math.cos(radLat2);
+		double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
+		
+		return R * c * 1000.0;
+	}
+	
 	public static double distance(final double[] a_coordsA,final double[] a_coordsB) throws MLException {
 		
 		if (a_coordsA.length != a_coordsB.length) {
@@ -83,22 +132,7 @@ public class DensityClustering extends Classifier {
 		
 		// We assume GPS coordinates if vectors of size two are given
 		if (a_coordsA.length == 2) {
-			
-			double lat1 = a_coordsA[0];
-			double lon1 = a_coordsA[1];
-			double lat2 = a_coordsB[0];
-			double lon2 = a_coordsB[1];			
-			double R = 6371.0;
-			double dLat = toRad(lat2 - lat1);
-			double dLon = toRad(lon2 - lon1);
-			double radLat1 = toRad(lat1);
-			double radLat2 = toRad(lat2);
-			
-			double a = Math.sin(dLat/2.0) * Math.sin(dLat/2.0) + 
-					Math.sin(dLon/2.0) * Math.sin(dLon/2.0) * Math.cos(radLat1) * Math.cos(radLat2);
-			double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-			
-			return R * c * 1000.0;		
+			return gpsDistance(a_coordsA[0], a_coordsA[1], a_coordsB[0], a_coordsB[1]);
 		} 
 		// Otherwise Euclidean distance
 		else {
@@ -126,6 +160,7 @@ public class DensityClustering extends Classifier {
 		} else {
 			d_minInclusionPct = Constants.DEFAULT_MIN_INCLUSION_PERCENT;
 		}
+		d_numThreads = TrainingTasks.numThreads(a_config);
 		
 		Feature classFeature = a_signature.getClassFeature();
 		ArrayList<String> classValues = classFeature.getValues();
@@ -141,116 +176,428 @@ public class DensityClustering extends Classifier {
 
 	@Override
 	public void train(ArrayList<Instance> instances) throws MLException {
-		//Log.d(TAG, "train with "+instances.size()+" instances");
+		train(Dataset.fromInstances(d_signature, instances));
+	}
+
+	@Override
+	public synchronized void train(Dataset a_dataset) throws MLException {
+		checkDataset(a_dataset);
+		//Log.d(TAG, "train with "+a_dataset.size()+" instances");
 		
-		// Remove outliers (density based)
-		String curLabel;
-		double curCoordValues[] = new double[d_signature.size()-1];
+		int classIndex = d_signature.getClassIndex();
+		int numRows = a_dataset.size();
+		int numCoords = d_signature.size()-1;
 		
-		for (Iterator<Instance> curIter = instances.iterator(); curIter.hasNext();) {
+		int[] labels = a_dataset.getNominalColumn(classIndex);
+		double[][] coordColumns = new double[numCoords][];
+		for (int i=0, j=0; i<d_signature.size(); i++) {
+			if (i != classIndex) {
+				coordColumns[j++] = a_dataset.getNumericColumn(i);
+			}
+		}
 		
-			Instance curInstance = curIter.next();
-			
-			if (!d_signature.checkCompliance(curInstance, true)){
-				throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-						"Instance is not compatible with the dataset used for classifier construction.");					
+		// Instances with missing values can be neither clustered nor compared.
+		boolean[] removed = new boolean[numRows];
+		for (int row=0; row<numRows; row++) {
+			removed[row] = !isComplete(a_dataset, row);
+		}
+		
+		// Remove outliers (density based). Every point is judged against all the 
+		// other points with the same label, through a spatial index, so that only
+		// nearby points are compared. The points are independent of each other, 
+		// thus they are split among threads, and the result does not depend on 
+		// the order of the points nor on the number of threads.
+		int numClasses = d_signature.getClassFeature().numberOfCategories();
+		int[] classSizes = new int[numClasses];
+		for (int row=0; row<numRows; row++) {
+			if (!removed[row]) {
+				classSizes[labels[row]]++;
 			}
-			
-			curLabel = (String) curInstance.getValueAtIndex(d_signature.getClassIndex()).getValue();
-			
-			for(int i=0; i<d_signature.size()-1; i++) {
-				curCoordValues[i] = (Double) curInstance.getValueAtIndex(i).getValue();
+		}
+		int[][] classRows = new int[numClasses][];
+		for (int c=0; c<numClasses; c++) {
+			classRows[c] = new int[classSizes[c]];
+		}
+		int[] fill = new int[numClasses];
+		for (int row=0; row<numRows; row++) {
+			if (!removed[row]) {
+				classRows[labels[row]][fill[labels[row]]++] = row;
 			}
-			
-			String otherLabel;
-			double otherCoordValues[] = new double[d_signature.size()-1];
-			
-			int total = 0;
-    		int totalInside = 0;
-    		
-			for (Iterator<Instance> otherIter = instances.iterator(); otherIter.hasNext();) {
-				
-				Instance otherInstance = otherIter.next();
-				
-				if (otherInstance != curInstance) {
-					
-					if (!d_signature.checkCompliance(otherInstance, true)){
-						throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-								"Instance is not compatible with the dataset used for classifier construction.");					
-					}
-					
-					otherLabel = (String) otherInstance.getValueAtIndex(d_signature.getClassIndex()).getValue();
-					
-					if (otherLabel.equals(curLabel)) {
-					
-						for(int i=0; i<d_signature.size()-1; i++) {
-							otherCoordValues[i] = (Double) otherInstance.getValueAtIndex(i).getValue();
-						}
-						
-						double distance = distance(curCoordValues, otherCoordValues);
-						
-						total++;
-						
-						if (distance<d_maxDistance) totalInside++;						
-					}
+		}
+		
+		// The reservoirs sample all the points, outliers included, as the density
+		// of later updates is judged against all of them.
+		resetReservoirs();
+		double[] coords = new double[numCoords];
+		for (int c=0; c<numClasses; c++) {
+			for (int i=0; i<classSizes[c]; i++) {
+				for (int j=0; j<numCoords; j++) {
+					coords[j] = coordColumns[j][classRows[c][i]];
 				}
+				sample(c, coords);
 			}
-			
-			//Log.d(TAG, "Points: "+totalInside+"/"+total+" vs "+d_minInclusionPct+"/100");
-			if (total > 0) {
-				if (totalInside/(double)total < (d_minInclusionPct/100.0)){
-					//Log.d(TAG, "Remove instance");
-					curIter.remove();					
-	    		}
+		}
+		
+		boolean[] outliers = new boolean[numRows];
+		ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		for (int c=0; c<numClasses; c++) {
+			NeighbourIndex index = NeighbourIndex.create(coordColumns, classRows[c], classSizes[c], d_maxDistance);
+			for (int from=0; from<classSizes[c]; from+=DENSITY_CHUNK) {
+				tasks.add(new DensityTask(index, classRows[c], from, Math.min(from + DENSITY_CHUNK, classSizes[c]), 
+						removed, outliers));
 			}
-			
 		}
-		// At this point only those instances that are tightly packed are in d_instanceQ
-		//Log.d(TAG, "Outliers removed. "+instances.size()+" instances left.");
+		TrainingTasks.run(tasks, d_numThreads, "DensityClustering training");
+		
+		for (int row=0; row<numRows; row++) {
+			removed[row] |= outliers[row];
+		}
+		// At this point only those instances that are tightly packed are not removed
 		
-		// Find cluster centroids
+		// Find cluster centroids. They are computed from scratch, and replace 
+		// the current ones once complete.
+		Feature classFeature = d_signature.getClassFeature();
+		HashMap<String,double[]> centroids = new HashMap<String, double[]>();
+		HashMap<String,Integer> trains = new HashMap<String, Integer>();
+		for (String classValue : classFeature.getValues()) {
+			centroids.put(classValue, new double[numCoords]);
+			trains.put(classValue, 0);
+		}
 		double centroidCoords[];
-		for (Instance curInstance : instances) {
+		for (int row=0; row<numRows; row++) {
 			
-			curLabel = (String) curInstance.getValueAtIndex(d_signature.getClassIndex()).getValue();
-			centroidCoords = d_centroids.get(curLabel);
+			if (removed[row]) {
+				continue;
+			}
 			
-			//Log.d(TAG, "Current instance label "+curLabel);
+			String curLabel = classFeature.categoryOfIndex(labels[row]);
+			centroidCoords = centroids.get(curLabel);
 			
-			for(int i=0; i<d_signature.size()-1; i++) {
-				//Log.d(TAG, "added coord "+i+ " with value "+(Double) curInstance.getValueAtIndex(i).getValue());
-				centroidCoords[i] += (Double) curInstance.getValueAtIndex(i).getValue();
+			for(int j=0; j<numCoords; j++) {
+				centroidCoords[j] += coordColumns[j][row];
 			}
 			
-			d_numTrains.put(curLabel, d_numTrains.get(curLabel)+1);
-
+			trains.put(curLabel, trains.get(curLabel)+1);
 		}
 		
+		setCentroids(centroids, trains);
+	}
+	
+	// Divides the sums of the points of each label by their number, and 
+	// replaces the model with the resulting centroids.
+	private void setCentroids(HashMap<String,double[]> a_sums, HashMap<String,Integer> a_trains) {
+		int numCoords = d_signature.size()-1;
+		double centroidCoords[];
 		int numTrains;
-		for (String classValue : d_centroids.keySet()) {
-			centroidCoords = d_centroids.get(classValue);
-			numTrains = d_numTrains.get(classValue);
+		for (String classValue : a_sums.keySet()) {
+			centroidCoords = a_sums.get(classValue);
+			numTrains = a_trains.get(classValue);
 			
 			//Log.d(TAG, "Centroid with label "+classValue+" contains " +numTrains+ " points.");
 			
-			for (int i=0; i<d_signature.size()-1; i++) {
+			for (int i=0; i<numCoords; i++) {
 				if (numTrains > 0)
 					centroidCoords[i] =  centroidCoords[i]/numTrains;
 				// otherwise keep them to zero
 			}
+		}
+		
+		d_numTrains = a_trains;
+		d_centroids = a_sums;
+		changed();
+	}
+	
+	private boolean isComplete(Dataset a_dataset, int a_row) {
+		for (int i=0; i<d_signature.size(); i++) {
+			if (a_dataset.isMissing(a_row, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Trains from a source that is read once per label, plus once to count the 
+	 * points of each label. Only the coordinates of the points of one label are 
+	 * held in memory at a time, as the density of a point depends on all the 
+	 * others with the same label. The result is the same as training on a 
+	 * Dataset of the instances.
+	 */
+	@Override
+	public synchronized void train(InstanceSource a_source) throws MLException {
+		
+		int classIndex = d_signature.getClassIndex();
+		int numCoords = d_signature.size()-1;
+		Feature classFeature = d_signature.getClassFeature();
+		int numClasses = classFeature.numberOfCategories();
+		
+		Dataset chunk = new Dataset(d_signature, STREAM_CHUNK_ROWS);
+		int[] classSizes = new int[numClasses];
+		InstanceStream stream = a_source.open();
+		try {
+			while (nextChunk(stream, chunk)) {
+				for (int row=0; row<chunk.size(); row++) {
+					if (isComplete(chunk, row)) {
+						classSizes[chunk.getNominal(row, classIndex)]++;
+					}
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		
+		resetReservoirs();
+		HashMap<String,double[]> centroids = new HashMap<String, double[]>();
+		HashMap<String,Integer> trains = new HashMap<String, Integer>();
+		double[] coords = new double[numCoords];
+		for (int c=0; c<numClasses; c++) {
+			String classValue = classFeature.categoryOfIndex(c);
+			double[] centroidCoords = new double[numCoords];
+			centroids.put(classValue, centroidCoords);
+			trains.put(classValue, 0);
+			int numPoints = classSizes[c];
+			if (numPoints == 0) {
+				continue;
+			}
 			
-			d_centroids.put(classValue, centroidCoords); 
+			// The points of the label, in the order of the source
+			double[][] coordColumns = new double[numCoords][numPoints];
+			int point = 0;
+			stream = a_source.open();
+			try {
+				while (nextChunk(stream, chunk) && point < numPoints) {
+					for (int row=0; row<chunk.size() && point < numPoints; row++) {
+						if (!isComplete(chunk, row) || chunk.getNominal(row, classIndex) != c) {
+							continue;
+						}
+						for (int i=0, j=0; i<d_signature.size(); i++) {
+							if (i != classIndex) {
+								coordColumns[j++][point] = chunk.getNumeric(row, i);
+							}
+						}
+						point++;
+					}
+				}
+			} finally {
+				stream.close();
+			}
+			if (point < numPoints) {
+				throw new MLException(MLException.INVALID_STATE, "Instance source changed during training.");
+			}
+			
+			int[] points = new int[numPoints];
+			for (int p=0; p<numPoints; p++) {
+				points[p] = p;
+				for (int j=0; j<numCoords; j++) {
+					coords[j] = coordColumns[j][p];
+				}
+				sample(c, coords);
+			}
+			
+			boolean[] removed = new boolean[numPoints];
+			boolean[] outliers = new boolean[numPoints];
+			NeighbourIndex index = NeighbourIndex.create(coordColumns, points, numPoints, d_maxDistance);
+			ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+			for (int from=0; from<numPoints; from+=DENSITY_CHUNK) {
+				tasks.add(new DensityTask(index, points, from, Math.min(from + DENSITY_CHUNK, numPoints), 
+						removed, outliers));
+			}
+			TrainingTasks.run(tasks, d_numThreads, "DensityClustering training");
+			
+			int numTrains = 0;
+			for (int p=0; p<numPoints; p++) {
+				if (outliers[p]) {
+					continue;
+				}
+				for (int j=0; j<numCoords; j++) {
+					centroidCoords[j] += coordColumns[j][p];
+				}
+				numTrains++;
+			}
+			trains.put(classValue, numTrains);
 		}
+		setCentroids(centroids, trains);
+	}
+
+	/**
+	 * Adds the point to the centroid of its label, unless less than the minimum 
+	 * inclusion percentage of the points in the reservoir of the label are within 
+	 * the maximum cluster distance. Instances with missing values are ignored, as 
+	 * in training.
+	 */
+	public synchronized void update(Instance a_instance) throws MLException {
+		
+		d_signature.validate(a_instance, true);
 		
+		int classIndex = d_signature.getClassIndex();
+		Value classValue = a_instance.getValueAtIndex(classIndex);
+		if (classValue.getValueType() == Value.MISSING_VALUE) {
+			return;
+		}
+		double[] coords = new double[d_signature.size()-1];
+		for (int i=0, j=0; i<d_signature.size(); i++) {
+			if (i != classIndex) {
+				Value value = a_instance.getValueAtIndex(i);
+				if (value.getValueType() == Value.MISSING_VALUE) {
+					return;
+				}
+				coords[j++] = (Double) value.getValue();
+			}
+		}
+		
+		String label = (String) classValue.getValue();
+		int classValueIndex = d_signature.getClassFeature().indexOfCategory(label);
+		ensureReservoirs();
+		boolean outlier = isOutlier(classValueIndex, coords);
+		sample(classValueIndex, coords);
+		
+		if (!outlier) {
+			// The running mean is computed on a copy, so classify never sees a half-updated centroid
+			HashMap<String,double[]> centroids = new HashMap<String, double[]>(d_centroids);
+			HashMap<String,Integer> trains = new HashMap<String, Integer>(d_numTrains);
+			int numTrains = trains.get(label) + 1;
+			double[] centroidCoords = centroids.get(label).clone();
+			for (int j=0; j<coords.length; j++) {
+				centroidCoords[j] += (coords[j] - centroidCoords[j]) / numTrains;
+			}
+			centroids.put(label, centroidCoords);
+			trains.put(label, numTrains);
+			d_numTrains = trains;
+			d_centroids = centroids;
+		}
+		changed();
+	}
+	
+	// Same rule as DensityTask, with the reservoir of the label as the other points.
+	private boolean isOutlier(int a_classValueIndex, double[] a_coords) {
+		int total = d_reservoirFill[a_classValueIndex];
+		if (total == 0) {
+			return false;
+		}
+		int totalInside = 0;
+		double[] reservoir = d_reservoirs[a_classValueIndex];
+		for (int p=0; p<total; p++) {
+			if (distance(a_coords, reservoir, p * a_coords.length) < d_maxDistance) {
+				totalInside++;
+			}
+		}
+		return totalInside/(double)total < (d_minInclusionPct/100.0);
+	}
+	
+	private static double distance(double[] a_coords, double[] a_points, int a_offset) {
+		if (a_coords.length == 2) {
+			return gpsDistance(a_coords[0], a_coords[1], a_points[a_offset], a_points[a_offset+1]);
+		}
+		double sqrSum = 0;
+		for (int i=0; i<a_coords.length; i++) {
+			sqrSum += Math.pow(a_coords[i] - a_points[a_offset+i], 2);
+		}
+		return Math.sqrt(sqrSum);
+	}
+	
+	private void ensureReservoirs() {
+		if (d_reservoirs == null) {
+			resetReservoirs();
+		}
+	}
+	
+	private void resetReservoirs() {
+		if (d_config != null && d_config.containsParam(Constants.RESERVOIR_SIZE)) {
+			d_reservoirSize = ((Number) d_config.getParam(Constants.RESERVOIR_SIZE)).intValue();
+		} else {
+			d_reservoirSize = Constants.DEFAULT_RESERVOIR_SIZE;
+		}
+		int numClasses = d_signature.getClassFeature().numberOfCategories();
+		d_reservoirs = new double[numClasses][d_reservoirSize * (d_signature.size()-1)];
+		d_reservoirFill = new int[numClasses];
+		d_reservoirSeen = new long[numClasses];
+	}
+	
+	// Reservoir sampling: the n-th point replaces a sampled one with probability 
+	// size/n. The slot is derived from n rather than drawn at random, so that 
+	// replaying the same updates (see UpdateJournal) gives the same sample.
+	private void sample(int a_classValueIndex, double[] a_coords) {
+		long seen = ++d_reservoirSeen[a_classValueIndex];
+		int slot;
+		if (d_reservoirFill[a_classValueIndex] < d_reservoirSize) {
+			slot = d_reservoirFill[a_classValueIndex]++;
+		} else {
+			long draw = (mix(seen) >>> 1) % seen;
+			if (draw >= d_reservoirSize) {
+				return;
+			}
+			slot = (int) draw;
+		}
+		System.arraycopy(a_coords, 0, d_reservoirs[a_classValueIndex], slot * a_coords.length, a_coords.length);
+	}
+	
+	// The finalizer of SplitMix64, which spreads consecutive values evenly.
+	private static long mix(long a_value) {
+		long z = a_value * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	// The points in use of a reservoir
+	private double[] reservoirPoints(int a_classValueIndex) {
+		int length = d_reservoirFill[a_classValueIndex] * (d_signature.size()-1);
+		double[] points = new double[length];
+		System.arraycopy(d_reservoirs[a_classValueIndex], 0, points, 0, length);
+		return points;
+	}
+	
+	private void readReservoir(int a_classValueIndex, long a_seen, double[] a_points) throws IOException {
+		int numCoords = d_signature.size()-1;
+		int fill = numCoords > 0 ? a_points.length / numCoords : 0;
+		if (a_points.length != fill * numCoords || fill > d_reservoirSize || a_seen < fill) {
+			throw new IOException("Stored reservoir does not match the classifier configuration.");
+		}
+		System.arraycopy(a_points, 0, d_reservoirs[a_classValueIndex], 0, a_points.length);
+		d_reservoirFill[a_classValueIndex] = fill;
+		d_reservoirSeen[a_classValueIndex] = a_seen;
 	}
 
+	/**
+	 * Marks the outliers among a range of the points with one label. 
+	 */
+	private class DensityTask implements Runnable {
+		
+		private final NeighbourIndex d_index;
+		private final int[] d_rows;
+		private final int d_from;
+		private final int d_to;
+		private final boolean[] d_removed;
+		private final boolean[] d_outliers;
+		
+		DensityTask(NeighbourIndex a_index, int[] a_rows, int a_from, int a_to, boolean[] a_removed, boolean[] a_outliers) {
+			d_index = a_index;
+			d_rows = a_rows;
+			d_from = a_from;
+			d_to = a_to;
+			d_removed = a_removed;
+			d_outliers = a_outliers;
+		}
+		
+		public void run() {
+			// The other points with the same label
+			int total = d_rows.length - 1;
+			if (total == 0) {
+				return;
+			}
+			for (int i=d_from; i<d_to; i++) {
+				int cur = d_rows[i];
+				int totalInside = d_index.countWithin(cur, d_removed);
+				//Log.d(TAG, "Points: "+totalInside+"/"+total+" vs "+d_minInclusionPct+"/100");
+				d_outliers[cur] = totalInside/(double)total < (d_minInclusionPct/100.0);
+			}
+		}
+	}
+	
 	@Override
 	public Value classify(Instance instance) throws MLException {
 
-		if (!d_signature.checkCompliance(instance, false)){
-			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-					"Instance is not compatible with the dataset used for classifier construction.");					
-		}
+		d_signature.validate(instance, false);
 		
 		// Calculate the centroid that is the closest 
 		double minDistance = Double.MAX_VALUE;
@@ -263,8 +610,9 @@ public class DensityClustering extends Classifier {
 			curCoordValues[i] = (Double) instance.getValueAtIndex(i).getValue();
 		}
 		
-		for (String classValue : d_centroids.keySet()) {
-			centroidCoords = d_centroids.get(classValue);
+		HashMap<String,double[]> centroids = d_centroids;
+		for (String classValue : centroids.keySet()) {
+			centroidCoords = centroids.get(classValue);
 			double curDistance = Double.MAX_VALUE;
 			try {
 				curDistance = distance(curCoordValues, centroidCoords);
@@ -281,6 +629,188 @@ public class DensityClustering extends Classifier {
 		return new Value(minStringValue, Value.NOMINAL_VALUE);
 	}
 
+	@Override
+	public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+		checkBatch(a_instances, a_classes, a_posteriors);
+		
+		Feature classFeature = d_signature.getClassFeature();
+		int numClasses = classFeature.numberOfCategories();
+		int numCoords = d_signature.size()-1;
+		
+		HashMap<String,double[]> current = d_centroids;
+		double[][] centroids = new double[numClasses][];
+		for (int c=0; c<numClasses; c++) {
+			centroids[c] = current.get(classFeature.categoryOfIndex(c));
+		}
+		
+		double curCoordValues[] = new double[numCoords];
+		for (int i=0; i<a_instances.size(); i++) {
+			Instance instance = a_instances.get(i);
+			for(int j=0; j<numCoords; j++) {
+				curCoordValues[j] = (Double) instance.getValueAtIndex(j).getValue();
+			}
+			
+			// if not yet trained, we return the first label
+			double minDistance = Double.MAX_VALUE;
+			int minIndex = 0;
+			for (int c=0; c<numClasses; c++) {
+				double curDistance = distance(curCoordValues, centroids[c]);
+				if (curDistance < minDistance){
+					minIndex = c;
+					minDistance = curDistance;
+				}
+			}
+			
+			a_classes[i] = minIndex;
+			if (a_posteriors != null) {
+				writeOneHot(i, minIndex, a_posteriors);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void writeState(SnapshotWriter a_out) throws IOException {
+		a_out.writeDouble(d_maxDistance);
+		a_out.writeDouble(d_minInclusionPct);
+		// Centroids are written in the order of class values
+		for (String classValue : d_signature.getClassFeature().getValues()) {
+			a_out.writeInt(d_numTrains.get(classValue));
+			a_out.writeDoubleArray(d_centroids.get(classValue));
+		}
+		ensureReservoirs();
+		for (int c=0; c<d_reservoirs.length; c++) {
+			a_out.writeLong(d_reservoirSeen[c]);
+			a_out.writeDoubleArray(reservoirPoints(c));
+		}
+	}
+	
+	@Override
+	public void writeMapped(SnapshotWriter a_out) throws IOException {
+		HashMap<String,double[]> centroids = d_centroids;
+		for (String classValue : d_signature.getClassFeature().getValues()) {
+			a_out.writeDoubleArray(centroids.get(classValue));
+		}
+	}
+	
+	@Override
+	public synchronized void readState(SnapshotReader a_in) throws IOException {
+		d_maxDistance = a_in.readDouble();
+		d_minInclusionPct = a_in.readDouble();
+		// The model is read into new maps, so that classify sees either the old or the new one
+		HashMap<String,double[]> centroids = new HashMap<String, double[]>();
+		HashMap<String,Integer> trains = new HashMap<String, Integer>();
+		for (String classValue : d_signature.getClassFeature().getValues()) {
+			int numTrains = a_in.readInt();
+			double[] centroidCoords = a_in.readDoubleArray();
+			if (centroidCoords.length != d_signature.size()-1) {
+				throw new IOException("Snapshot does not match the classifier signature.");
+			}
+			trains.put(classValue, numTrains);
+			centroids.put(classValue, centroidCoords);
+		}
+		d_numTrains = trains;
+		d_centroids = centroids;
+		// Snapshots of earlier versions have no reservoirs, updates then start sampling anew
+		resetReservoirs();
+		if (a_in.getVersion() >= 4) {
+			for (int c=0; c<d_reservoirs.length; c++) {
+				long seen = a_in.readLong();
+				readReservoir(c, seen, a_in.readDoubleArray());
+			}
+		}
+	}
+
+	@Override
+	public synchronized void writeJSON(JsonWriter a_out) throws IOException {
+		a_out.name("d_maxDistance").value(d_maxDistance);
+		a_out.name("d_minInclusionPct").value(d_minInclusionPct);
+		a_out.name("d_numTrains").beginObject();
+		for (String classValue : d_signature.getClassFeature().getValues()) {
+			a_out.name(classValue).value(d_numTrains.get(classValue));
+		}
+		a_out.endObject();
+		a_out.name("d_centroids").beginObject();
+		for (String classValue : d_signature.getClassFeature().getValues()) {
+			a_out.name(classValue);
+			JsonArrays.writeDoubleArray(a_out, d_centroids.get(classValue));
+		}
+		a_out.endObject();
+		ensureReservoirs();
+		a_out.name("d_reservoirs").beginObject();
+		for (int c=0; c<d_reservoirs.length; c++) {
+			a_out.name(d_signature.getClassFeature().categoryOfIndex(c)).beginObject();
+			a_out.name("seen").value(d_reservoirSeen[c]);
+			a_out.name("points");
+			JsonArrays.writeDoubleArray(a_out, reservoirPoints(c));
+			a_out.endObject();
+		}
+		a_out.endObject();
+	}
+	
+	@Override
+	public synchronized boolean readJSONField(String a_name, JsonReader a_in) throws IOException {
+		if (a_name.equals("d_maxDistance")) {
+			d_maxDistance = a_in.nextDouble();
+		} else if (a_name.equals("d_minInclusionPct")) {
+			d_minInclusionPct = a_in.nextDouble();
+		} else if (a_name.equals("d_numTrains")) {
+			HashMap<String,Integer> trains = new HashMap<String, Integer>(d_numTrains);
+			a_in.beginObject();
+			while (a_in.hasNext()) {
+				String classValue = checkClassValue(a_in.nextName());
+				trains.put(classValue, a_in.nextInt());
+			}
+			a_in.endObject();
+			d_numTrains = trains;
+		} else if (a_name.equals("d_centroids")) {
+			// Read into a copy, so that classify sees either the old or the new centroids
+			HashMap<String,double[]> centroids = new HashMap<String, double[]>(d_centroids);
+			a_in.beginObject();
+			while (a_in.hasNext()) {
+				String classValue = checkClassValue(a_in.nextName());
+				double[] centroidCoords = JsonArrays.readDoubleArray(a_in);
+				if (centroidCoords.length != d_signature.size()-1) {
+					throw new IOException("Stored centroid does not match the classifier signature.");
+				}
+				centroids.put(classValue, centroidCoords);
+			}
+			a_in.endObject();
+			d_centroids = centroids;
+		} else if (a_name.equals("d_reservoirs")) {
+			ensureReservoirs();
+			a_in.beginObject();
+			while (a_in.hasNext()) {
+				int classValueIndex = d_signature.getClassFeature().indexOfCategory(checkClassValue(a_in.nextName()));
+				long seen = 0;
+				double[] points = new double[0];
+				a_in.beginObject();
+				while (a_in.hasNext()) {
+					String name = a_in.nextName();
+					if (name.equals("seen")) {
+						seen = a_in.nextLong();
+					} else if (name.equals("points")) {
+						points = JsonArrays.readDoubleArray(a_in);
+					} else {
+						a_in.skipValue();
+					}
+				}
+				a_in.endObject();
+				readReservoir(classValueIndex, seen, points);
+			}
+			a_in.endObject();
+		} else {
+			return false;
+		}
+		return true;
+	}
+	
+	private String checkClassValue(String a_classValue) throws IOException {
+		if (!d_signature.getClassFeature().getValues().contains(a_classValue)) {
+			throw new IOException("Unknown class value "+a_classValue+".");
+		}
+		return a_classValue;
+	}
+
 	@Override
 	public void printClassifierInfo() {
 		StringBuilder builder = new StringBuilder();
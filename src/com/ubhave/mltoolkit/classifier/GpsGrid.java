@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+import java.util.HashMap;
+
+/**
+ * Uniform latitude/longitude grid over GPS coordinates, with cells at least as 
+ * large as the search radius, so that all neighbours of a point are in its own 
+ * cell or in one of the eight around it. 
+ * 
+ * Two points within distance d differ by at most d/R radians in latitude, and 
+ * by at most 2*asin(sin(d/2R)/cos(lat)) in longitude, where lat is the largest
+ * absolute latitude of the indexed points. Longitude cells wrap around at 180 degrees.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+final class GpsGrid extends NeighbourIndex {
+
+	// Cells are made slightly larger than needed, so that rounding never hides a neighbour.
+	private static final double MARGIN = 1.0 + 1e-6;
+	
+	// Keeps cell keys within a long for tiny radii; larger cells are still correct.
+	private static final double MIN_LAT_CELL = 1e-7;
+	
+	private static final int MAX_LON_CELLS = 1 << 30;
+	
+	private final double[] d_lat;
+	
+	private final double[] d_lon;
+	
+	private final double d_radius;
+	
+	private final double d_latCell;
+	
+	private final double d_lonCell;
+	
+	private final int d_numLonCells;
+	
+	private final HashMap<Long, int[]> d_cells;
+	
+	GpsGrid(double[] a_lat, double[] a_lon, int[] a_rows, int a_numRows, double a_radius) {
+		d_lat = a_lat;
+		d_lon = a_lon;
+		d_radius = a_radius;
+		
+		double maxAbsLat = 0;
+		for (int r=0; r<a_numRows; r++) {
+			maxAbsLat = Math.max(maxAbsLat, Math.abs(a_lat[a_rows[r]]));
+		}
+		
+		double angle = a_radius / (DensityClustering.EARTH_RADIUS * 1000.0);
+		double ratio = Math.sin(angle / 2) / Math.cos(Math.toRadians(maxAbsLat));
+		if (maxAbsLat <= 90) {
+			d_latCell = Math.max(Math.toDegrees(angle) * MARGIN, MIN_LAT_CELL);
+		} else {
+			// Not latitudes at all, the bounds do not hold, so all points share a cell.
+			d_latCell = Double.POSITIVE_INFINITY;
+		}
+		if (maxAbsLat <= 90 && ratio < 1) {
+			double lonSpan = Math.toDegrees(2 * Math.asin(ratio)) * MARGIN;
+			d_numLonCells = (int) Math.max(1, Math.min(MAX_LON_CELLS, Math.floor(360.0 / lonSpan)));
+		} else {
+			d_numLonCells = 1;
+		}
+		d_lonCell = 360.0 / d_numLonCells;
+		
+		// Count the points of each cell first, then fill the cells
+		HashMap<Long, int[]> sizes = new HashMap<Long, int[]>();
+		for (int r=0; r<a_numRows; r++) {
+			Long key = key(latIndex(a_lat[a_rows[r]]), lonIndex(a_lon[a_rows[r]]));
+			int[] size = sizes.get(key);
+			if (size == null) {
+				size = new int[1];
+				sizes.put(key, size);
+			}
+			size[0]++;
+		}
+		d_cells = new HashMap<Long, int[]>(sizes.size() * 2);
+		for (int r=0; r<a_numRows; r++) {
+			int row = a_rows[r];
+			Long key = key(latIndex(a_lat[row]), lonIndex(a_lon[row]));
+			int[] cell = d_cells.get(key);
+			if (cell == null) {
+				cell = new int[sizes.get(key)[0]];
+				d_cells.put(key, cell);
+			}
+			int[] size = sizes.get(key);
+			cell[cell.length - size[0]--] = row;
+		}
+	}
+	
+	private long latIndex(double a_lat) {
+		return (long) Math.floor((a_lat + 90) / d_latCell);
+	}
+	
+	private int lonIndex(double a_lon) {
+		double lon = (a_lon + 180) % 360;
+		if (lon < 0) {
+			lon += 360;
+		}
+		return Math.min((int) (lon / d_lonCell), d_numLonCells - 1);
+	}
+	
+	private long key(long a_latIndex, int a_lonIndex) {
+		return a_latIndex * d_numLonCells + a_lonIndex;
+	}
+
+	@Override
+	int countWithin(int a_row, boolean[] a_removed) {
+		double lat = d_lat[a_row];
+		double lon = d_lon[a_row];
+		long latIndex = latIndex(lat);
+		int lonIndex = lonIndex(lon);
+		
+		// With fewer than three columns, every column is a neighbour
+		int firstLon = d_numLonCells < 3 ? 0 : lonIndex - 1;
+		int lastLon = d_numLonCells < 3 ? d_numLonCells - 1 : lonIndex + 1;
+		
+		int count = 0;
+		for (long i=latIndex-1; i<=latIndex+1; i++) {
+			for (int j=firstLon; j<=lastLon; j++) {
+				int[] cell = d_cells.get(key(i, (j + d_numLonCells) % d_numLonCells));
+				if (cell == null) {
+					continue;
+				}
+				for (int other : cell) {
+					if (other != a_row && !a_removed[other] 
+							&& DensityClustering.gpsDistance(lat, lon, d_lat[other], d_lon[other]) < d_radius) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+}
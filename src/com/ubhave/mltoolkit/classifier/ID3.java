@@ -21,31 +21,39 @@
  ******************************************************************************/
 package com.ubhave.mltoolkit.classifier;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
 import com.ubhave.mltoolkit.utils.ClassifierConfig;
 import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Dataset;
 import com.ubhave.mltoolkit.utils.Feature;
 import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceSource;
+import com.ubhave.mltoolkit.utils.InstanceStream;
 import com.ubhave.mltoolkit.utils.MLException;
 import com.ubhave.mltoolkit.utils.Signature;
 import com.ubhave.mltoolkit.utils.Value;
 
-// TODO: Nominal attributes are supported for now.
 // TODO: How to handle missing attributes?
 // TODO: Pruning?
 
 /**
  * ID3, a tree-based classifier according to: 
  * Quinlan, J. R. 1986. Induction of Decision Trees. Mach. Learn. 1, 1 (Mar. 1986), 81-106
- * This implementation supports nominal attributes only.
+ * Numeric attributes are split in two at a threshold, as in C4.5: 
+ * Quinlan, J. R. 1993. C4.5: Programs for Machine Learning. Morgan Kaufmann.
+ * 
+ * The trained tree is not a graph of objects, but a set of parallel arrays 
+ * indexed by node, so that classification is a loop over array lookups.
  * 
  * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
  *
@@ -73,196 +81,743 @@ public class ID3 extends Classifier{
     Return Root
     */
 	
-	private Feature d_bestFeature;
+	private static final String TAG = "ID3";
 	
-	private int d_bestFeatureIndex;
+	static final int LEAF = -1;
 	
-	private int[] d_candidateFeatures;
+	// Numeric splits that gain less are noise, and their thresholds would only fit it
+	private static final double MIN_NUMERIC_GAIN = 1e-9;
 	
-	private Value d_majorValue;
+	/**
+	 * A tree flattened into arrays indexed by node, with the root at index 0. 
+	 * The split feature of a leaf is LEAF. The children of an inner node are 
+	 * consecutive, one for each category of its split feature, in the order of 
+	 * the categories, starting at the node's first child. A node split on a 
+	 * numeric feature has two children, the first for values up to the node's 
+	 * threshold, the second for greater values. The class of a node is the 
+	 * index of its majority class value, -1 if unknown (not trained).
+	 * A tree is never modified once built.
+	 */
+	private static final class Tree {
+		
+		private int[] d_splitFeatures;
+		
+		private int[] d_firstChildren;
+		
+		private int[] d_classes;
+		
+		private double[] d_thresholds;
+		
+		private int d_size;
+		
+		Tree(int a_capacity) {
+			d_splitFeatures = new int[a_capacity];
+			d_firstChildren = new int[a_capacity];
+			d_classes = new int[a_capacity];
+			d_thresholds = new double[a_capacity];
+		}
+		
+		// Appends a_count leaves of unknown class, returns the index of the first one.
+		int addNodes(int a_count) {
+			if (d_size + a_count > d_classes.length) {
+				resize(Math.max(d_size + a_count, 2 * d_classes.length));
+			}
+			int first = d_size;
+			for (int i=0; i<a_count; i++) {
+				d_splitFeatures[first + i] = LEAF;
+				d_classes[first + i] = -1;
+			}
+			d_size += a_count;
+			return first;
+		}
+		
+		// Trims the arrays once the tree is complete.
+		Tree trim() {
+			if (d_size < d_classes.length) {
+				resize(d_size);
+			}
+			return this;
+		}
+		
+		private void resize(int a_capacity) {
+			d_splitFeatures = copyOf(d_splitFeatures, a_capacity);
+			d_firstChildren = copyOf(d_firstChildren, a_capacity);
+			d_classes = copyOf(d_classes, a_capacity);
+			d_thresholds = copyOf(d_thresholds, a_capacity);
+		}
+		
+		private int[] copyOf(int[] a_array, int a_capacity) {
+			int[] array = new int[a_capacity];
+			System.arraycopy(a_array, 0, array, 0, Math.min(d_size, a_capacity));
+			return array;
+		}
+		
+		private double[] copyOf(double[] a_array, int a_capacity) {
+			double[] array = new double[a_capacity];
+			System.arraycopy(a_array, 0, array, 0, Math.min(d_size, a_capacity));
+			return array;
+		}
+	}
 	
-	private boolean d_isLeaf;
+	private volatile Tree d_tree;
 	
-	private HashMap<Object, ID3> d_subtrees;
-
-	private static final String TAG = "ID3";
+	// Shared results of classify, one per class value
+	private final Value[] d_classValues;
 
-	private static int[] allFeaturesArray(Signature a_signature) {
-		int[] candidateFeatures = new int[a_signature.getFeatures().size()];
-		Arrays.fill(candidateFeatures, 1);
-		candidateFeatures[a_signature.getClassIndex()] = 0;
-		return candidateFeatures;
-	}
-	
 	// Entry point for outside app
 	public ID3(Signature a_signature, ClassifierConfig a_config) {		
-		this(a_signature, a_config, allFeaturesArray(a_signature));
-	}
-	
-	private ID3(Signature a_signature, ClassifierConfig a_config, int[] a_candidateFeatures) {
 		super(a_signature, a_config);
 		d_type = Constants.TYPE_ID3;
-		d_subtrees = new HashMap<Object, ID3>();
-		d_candidateFeatures = a_candidateFeatures;
-		d_isLeaf = true;
-		d_majorValue = null;
-		d_bestFeature = null;
-		d_bestFeatureIndex = 0;
+		
+		Feature classFeature = a_signature.getClassFeature();
+		d_classValues = new Value[classFeature.numberOfCategories()];
+		for (int c=0; c<d_classValues.length; c++) {
+			d_classValues[c] = new Value(classFeature.categoryOfIndex(c), Value.NOMINAL_VALUE);
+		}
+		
+		d_tree = new Tree(1);
+		d_tree.addNodes(1);
 	}
 
 	@Override
 	public void train(ArrayList<Instance> instances) throws MLException {
+		train(Dataset.fromInstances(d_signature, instances));
+	}
+
+	@Override
+	public void train(Dataset a_dataset) throws MLException {
+		checkDataset(a_dataset);
+		
+		// Instances without a class label carry no information for the tree.
+		int classIndex = d_signature.getClassIndex();
+		int[] rows = new int[a_dataset.size()];
+		int numRows = 0;
+		for (int row=0; row<a_dataset.size(); row++) {
+			if (!a_dataset.isMissing(row, classIndex)) {
+				rows[numRows++] = row;
+			}
+		}
+		
+		boolean[] candidateFeatures = new boolean[d_signature.size()];
+		Arrays.fill(candidateFeatures, true);
+		candidateFeatures[classIndex] = false;
+		
+		Tree tree = new Tree(64);
+		tree.addNodes(1);
+		Presorted presorted = new Presorted(a_dataset, rows, numRows, candidateFeatures);
+		int[] scratch = new int[numRows];
+		
+		// Nodes are trained depth first, from a stack rather than by recursion,
+		// as numeric features can be split on again and again down a path.
+		// Every level of the tree sweeps the rows of its nodes, so training takes
+		// time proportional to the rows times the depth: O(n log n) for balanced
+		// trees, but quadratic when each split only separates a few rows, e.g.
+		// for labels that alternate along a numeric feature.
+		ArrayList<PendingNode> stack = new ArrayList<PendingNode>();
+		stack.add(new PendingNode(0, 0, numRows, candidateFeatures, -1));
+		while (!stack.isEmpty()) {
+			train(tree, stack.remove(stack.size() - 1), a_dataset, rows, scratch, presorted, stack);
+		}
+		d_tree = tree.trim();
+		changed();
+	}
+	
+	/**
+	 * A node yet to be trained from the rows in a range of the row arrays.
+	 */
+	private static final class PendingNode {
+		
+		final int d_node;
+		
+		final int d_from;
+		
+		final int d_to;
+		
+		// Features that can still be split on, never modified as it is shared among siblings
+		final boolean[] d_candidateFeatures;
+		
+		final int d_parentMajority;
+		
+		PendingNode(int a_node, int a_from, int a_to, boolean[] a_candidateFeatures, int a_parentMajority) {
+			d_node = a_node;
+			d_from = a_from;
+			d_to = a_to;
+			d_candidateFeatures = a_candidateFeatures;
+			d_parentMajority = a_parentMajority;
+		}
+	}
+	
+	/**
+	 * The rows of each numeric feature, sorted by value once, before the tree is grown. 
+	 * Rows without a value follow the others. Every array holds the rows of a node 
+	 * in the same range as a_rows does, and splitting a node partitions the range 
+	 * of each array stably, so the rows of each child remain sorted. The thresholds 
+	 * of a node are then found in a single sweep over its range.
+	 */
+	private static final class Presorted {
+		
+		// Null for features that are not numeric candidates
+		final int[][] d_sorted;
+		
+		// The child of each row of the dataset, for the split being made
+		final int[] d_children;
+		
+		// k*log(k) for every count of rows, see sweepThresholds
+		double[] d_xlogx;
+		
+		Presorted(Dataset a_dataset, int[] a_rows, int a_numRows, boolean[] a_candidateFeatures) {
+			Signature signature = a_dataset.getSignature();
+			d_sorted = new int[signature.size()][];
+			d_children = new int[a_dataset.size()];
+			int[] scratch = null;
+			for (int i=0; i<d_sorted.length; i++) {
+				if (!a_candidateFeatures[i] || signature.getFeatureAtIndex(i).getFeatureType() != Feature.NUMERIC) {
+					continue;
+				}
+				if (scratch == null) {
+					scratch = new int[a_numRows];
+					d_xlogx = xlogx(a_numRows);
+				}
+				int[] sorted = new int[a_numRows];
+				int numValues = 0;
+				int missing = a_numRows;
+				for (int r=a_numRows-1; r>=0; r--) {
+					if (!hasValue(a_dataset, a_rows[r], i, true)) {
+						sorted[--missing] = a_rows[r];
+					}
+				}
+				for (int r=0; r<a_numRows; r++) {
+					if (hasValue(a_dataset, a_rows[r], i, true)) {
+						sorted[numValues++] = a_rows[r];
+					}
+				}
+				sortByValue(sorted, 0, numValues, a_dataset.getNumericColumn(i), scratch);
+				d_sorted[i] = sorted;
+			}
+		}
+	}
+	
+	// Trains a node from the rows in a_rows[d_from, d_to) of the pending node. If the 
+	// node is split, the range is reordered, so that the rows of each child are consecutive, 
+	// and the children are pushed on the stack, the first one last. a_scratch is at least 
+	// as long as a_rows and shared by the whole tree.
+	private void train(Tree a_tree, PendingNode a_pending, Dataset a_dataset, int[] a_rows, int[] a_scratch, 
+			Presorted a_presorted, ArrayList<PendingNode> a_stack) {
 		// Calculate stats such as:
 		Feature classFeature = d_signature.getClassFeature(); 
-		int[] classCounts = new int[classFeature.numberOfCategories()];	
-		Arrays.fill(classCounts, 0);
+		int[] classColumn = a_dataset.getNominalColumn(d_signature.getClassIndex());
+		int numClasses = classFeature.numberOfCategories();
+		int[] classCounts = new int[numClasses];	
+		int from = a_pending.d_from;
+		int to = a_pending.d_to;
+		int numRows = to - from;
+		boolean[] candidateFeatures = a_pending.d_candidateFeatures;
 		
-		// if all Instances belong to a single class
-		for (Instance i : instances) {
-			Value classValue = i.getValueAtIndex(d_signature.getClassIndex());
-			int classValueInt = classFeature.indexOfCategory((String) classValue.getValue());
-			classCounts[classValueInt] += 1;			
-		}
-		int NZcounter = 0, nonZeroClassValueIndex = 0;
-		for (int i = 0; i < classCounts.length; i ++)
-		    if (classCounts[i] > 0) {
-		    	NZcounter ++;
-		    	nonZeroClassValueIndex = i;
-		    }
-		if (NZcounter == 1){
-			d_isLeaf = true;
-			d_majorValue = new Value(d_signature.getClassFeature().categoryOfIndex(nonZeroClassValueIndex), Value.NOMINAL_VALUE);
+		for (int r=from; r<to; r++) {
+			classCounts[classColumn[a_rows[r]]] += 1;			
+		}
+		
+		if (!setNodeClass(a_tree, a_pending.d_node, classCounts, a_pending.d_parentMajority)) {
+			return;
+		}
+		int maxClassValueInt = a_tree.d_classes[a_pending.d_node];
+		
+		// Calculate information gain for each attribute. If there are no 
+		// candidate attributes left, the node stays a leaf with the most 
+		// common value of the target attribute in the examples.
+		double maxIG = -1;
+		int maxIGindex = -1;
+		double maxIGthreshold = 0;
+		
+		double totalSetEntropy = calculateEntropy(classCounts, numRows);
+		// H(S) - sum(p(t)*H(t))_for_attribute_A_the_data_is_split_in_T_sets
+		// H(t) = - sum(p(x)log(p(x))) where x in X (set of class values)
+		
+		// Contingency table of category by class counts, reused for every feature
+		int[] table = null;
+		double[] threshold = new double[1];
+
+		for(int i=0; i<d_signature.getFeatures().size(); i++){
+			
+			Feature feature = d_signature.getFeatureAtIndex(i);
+			
+			if (feature.getFeatureType() == Feature.NOMINAL && candidateFeatures[i]) { 
+				
+				int[] featureColumn = a_dataset.getNominalColumn(i);
+				int numCategories = feature.numberOfCategories();
+				if (table == null || table.length < numCategories * numClasses) {
+					table = new int[numCategories * numClasses];
+				} else {
+					Arrays.fill(table, 0, numCategories * numClasses, 0);
+				}
+				
+				// Instances with a missing value of the feature do not go to any of the subsets.
+				for (int r=from; r<to; r++) {
+					int row = a_rows[r];
+					if (!a_dataset.isMissing(row, i)) {
+						table[featureColumn[row] * numClasses + classColumn[row]] += 1;
+					}
+				}
+				
+				double IGvalue = totalSetEntropy - splitEntropy(table, numCategories, numClasses, numRows);
+				
+				if (IGvalue > maxIG) {
+					maxIG = IGvalue;
+					maxIGindex = i;
+				}
+			} else if (candidateFeatures[i]) {
+				
+				int[] sorted = a_presorted.d_sorted[i];
+				double[] featureColumn = a_dataset.getNumericColumn(i);
+				if (table == null || table.length < 2 * numClasses) {
+					table = new int[2 * numClasses];
+				}
+				
+				// Rows with a value come first, in ascending order of it
+				int end = from;
+				while (end < to && hasValue(a_dataset, sorted[end], i, true)) {
+					end++;
+				}
+				double IGvalue = totalSetEntropy - sweepThresholds(sorted, from, end, featureColumn, classColumn, 
+						numClasses, numRows, table, a_presorted.d_xlogx, threshold);
+				
+				if (IGvalue > maxIG && IGvalue > MIN_NUMERIC_GAIN) {
+					maxIG = IGvalue;
+					maxIGindex = i;
+					maxIGthreshold = threshold[0];
+				}
+			}
+		}
+		
+		// No candidate features are left.
+		if (maxIGindex == -1) {
 			return;
 		}
 		
-		// If number of predicting attributes is empty, then Return the single node tree Root,
-	    // with label = most common value of the target attribute in the examples.
-		int numCandidateFeatures = 0;
-		for (int indicator : d_candidateFeatures)
-			numCandidateFeatures += indicator;
-		if (numCandidateFeatures == 0) {
-			d_isLeaf = true;
-			int maxClassValueInt = 0;
-			int maxClassValueCount = 0;
-			for (int i=0; i<classCounts.length; i++){
-				if (maxClassValueCount < classCounts[i]) {
-					maxClassValueInt = i;
-					maxClassValueCount = classCounts[i];
+		// Pick the best attribute 
+		boolean numeric = d_signature.getFeatureAtIndex(maxIGindex).getFeatureType() == Feature.NUMERIC;
+		int numChildren = numberOfChildren(d_signature, maxIGindex);
+		
+		// Partition the rows by the child they go to, only once. Rows with a 
+		// missing value are moved to the end of the range and dropped.
+		int[] children = a_presorted.d_children;
+		int[] starts = new int[numChildren + 1];
+		for (int r=from; r<to; r++) {
+			int row = a_rows[r];
+			children[row] = childOf(a_dataset, row, maxIGindex, numeric, maxIGthreshold);
+			starts[children[row] + 1] += 1;
+		}
+		starts[0] = from;
+		for (int v=0; v<numChildren; v++) {
+			starts[v + 1] += starts[v];
+		}
+		partition(a_rows, from, to, children, starts, numChildren, a_scratch);
+		for (int[] sorted : a_presorted.d_sorted) {
+			if (sorted != null) {
+				partition(sorted, from, to, children, starts, numChildren, a_scratch);
+			}
+		}
+		
+		// Feature values that are not observed in the training set 
+		// lead to a leaf with the majority class.
+		int firstChild = a_tree.addNodes(numChildren);
+		a_tree.d_splitFeatures[a_pending.d_node] = maxIGindex;
+		a_tree.d_firstChildren[a_pending.d_node] = firstChild;
+		a_tree.d_thresholds[a_pending.d_node] = maxIGthreshold;
+		
+		// A numeric feature can be split on again, at another threshold
+		boolean[] childFeatures = candidateFeatures;
+		if (!numeric) {
+			childFeatures = candidateFeatures.clone();
+			childFeatures[maxIGindex] = false;
+		}
+		for (int v=numChildren-1; v>=0; v--) {
+			a_stack.add(new PendingNode(firstChild + v, starts[v], starts[v + 1], childFeatures, maxClassValueInt));
+		}
+	}
+	
+	// Reorders a_rows[a_from, a_to) so that the rows of child v start at a_starts[v], 
+	// and the rows that go to no child (-1) follow those of the last child. Rows of 
+	// the same child keep their order.
+	private static void partition(int[] a_rows, int a_from, int a_to, int[] a_children, int[] a_starts, 
+			int a_numChildren, int[] a_scratch) {
+		int[] fill = new int[a_numChildren + 1];
+		System.arraycopy(a_starts, 0, fill, 1, a_numChildren);
+		fill[0] = a_starts[a_numChildren];
+		for (int r=a_from; r<a_to; r++) {
+			int row = a_rows[r];
+			a_scratch[fill[a_children[row] + 1]++] = row;
+		}
+		System.arraycopy(a_scratch, a_from, a_rows, a_from, a_to - a_from);
+	}
+	
+	// Sorts a_rows[a_from, a_to) by their value in the column, stably, by merging 
+	// runs of doubling length through the scratch array.
+	private static void sortByValue(int[] a_rows, int a_from, int a_to, double[] a_column, int[] a_scratch) {
+		int[] source = a_rows;
+		int[] target = a_scratch;
+		for (int width=1; width<a_to-a_from; width*=2) {
+			for (int left=a_from; left<a_to; left+=2*width) {
+				int middle = (int) Math.min(left + (long) width, a_to);
+				int right = (int) Math.min(left + 2L * width, a_to);
+				int i = left, j = middle, k = left;
+				while (i < middle && j < right) {
+					target[k++] = a_column[source[j]] < a_column[source[i]] ? source[j++] : source[i++];
+				}
+				while (i < middle) {
+					target[k++] = source[i++];
+				}
+				while (j < right) {
+					target[k++] = source[j++];
+				}
+			}
+			int[] swap = source;
+			source = target;
+			target = swap;
+		}
+		if (source != a_rows) {
+			System.arraycopy(source, a_from, a_rows, a_from, a_to - a_from);
+		}
+	}
+	
+	// Sweeps the rows a_order[a_from, a_to), all of which have a value, in ascending order 
+	// of it, and returns sum(p(t)*H(t)) of the best split into the rows up to a threshold 
+	// and the rows above it, over a_total rows. The threshold, the greatest value that 
+	// goes to the first subset, is stored in a_threshold[0]. If all the values are equal, 
+	// Double.MAX_VALUE is returned. a_table is a scratch of at least 2 * a_numClasses, 
+	// a_xlogx holds k*log(k) for every count k up to the number of rows.
+	private static double sweepThresholds(int[] a_order, int a_from, int a_to, double[] a_values, int[] a_classes, 
+			int a_numClasses, int a_total, int[] a_table, double[] a_xlogx, double[] a_threshold) {
+		Arrays.fill(a_table, 0, 2 * a_numClasses, 0);
+		for (int r=a_from; r<a_to; r++) {
+			a_table[a_numClasses + a_classes[a_order[r]]] += 1;
+		}
+		// |t|*H(t) = |t|*log(|t|) - sum(n(x)*log(n(x))), so no logarithm is taken in the sweep
+		double minEntropy = Double.MAX_VALUE;
+		for (int r=a_from; r<a_to-1; r++) {
+			int classValue = a_classes[a_order[r]];
+			a_table[classValue] += 1;
+			a_table[a_numClasses + classValue] -= 1;
+			double value = a_values[a_order[r]];
+			// A threshold is finite, so that it can be written to JSON
+			if (value < a_values[a_order[r + 1]] && value != Double.NEGATIVE_INFINITY) {
+				int left = r + 1 - a_from;
+				double entropy = a_xlogx[left] + a_xlogx[a_to - a_from - left];
+				for (int c=0; c<2*a_numClasses; c++) {
+					entropy -= a_xlogx[a_table[c]];
+				}
+				entropy /= a_total;
+				if (entropy < minEntropy) {
+					minEntropy = entropy;
+					a_threshold[0] = value;
+				}
+			}
+		}
+		return minEntropy;
+	}
+	
+	// Returns k*log(k) for k up to a_max, with 0*log(0) = 0
+	private static double[] xlogx(int a_max) {
+		double[] xlogx = new double[a_max + 1];
+		for (int k=2; k<=a_max; k++) {
+			xlogx[k] = k * Math.log(k);
+		}
+		return xlogx;
+	}
+	
+	// Returns whether the row has a value of the feature that it can be split on
+	private static boolean hasValue(Dataset a_dataset, int a_row, int a_feature, boolean a_numeric) {
+		return !a_dataset.isMissing(a_row, a_feature) 
+				&& !(a_numeric && Double.isNaN(a_dataset.getNumeric(a_row, a_feature)));
+	}
+	
+	// Returns the child that a row goes to at a split on the feature, -1 if it has no value of it
+	private static int childOf(Dataset a_dataset, int a_row, int a_feature, boolean a_numeric, double a_threshold) {
+		if (!hasValue(a_dataset, a_row, a_feature, a_numeric)) {
+			return -1;
+		}
+		if (a_numeric) {
+			return a_dataset.getNumeric(a_row, a_feature) <= a_threshold ? 0 : 1;
+		}
+		return a_dataset.getNominal(a_row, a_feature);
+	}
+	
+	// Returns the number of children of a node split on the feature
+	static int numberOfChildren(Signature a_signature, int a_feature) {
+		Feature feature = a_signature.getFeatureAtIndex(a_feature);
+		return feature.getFeatureType() == Feature.NUMERIC ? 2 : feature.numberOfCategories();
+	}
+	
+	// Sets the class of a node to the majority class of the rows that reached it. 
+	// Returns false if the node stays a leaf, as the rows are all of one class. 
+	private static boolean setNodeClass(Tree a_tree, int a_node, int[] a_classCounts, int a_parentMajority) {
+		int NZcounter = 0, maxClassValueInt = 0;
+		for (int i = 0; i < a_classCounts.length; i ++) {
+			if (a_classCounts[i] > 0) {
+				NZcounter ++;
+			}
+			if (a_classCounts[i] > a_classCounts[maxClassValueInt]) {
+				maxClassValueInt = i;
+			}
+		}
+		
+		// No examples reached this branch, so we point it to the majority class of the parent.
+		if (NZcounter == 0) {
+			a_tree.d_classes[a_node] = a_parentMajority;
+			return false;
+		}
+		
+		a_tree.d_classes[a_node] = maxClassValueInt;
+		
+		// if all Instances belong to a single class
+		return NZcounter > 1;
+	}
+	
+	/**
+	 * A leaf that is grown in the current pass over an InstanceSource, 
+	 * with the counts of the instances that reach it. Thresholds cannot be 
+	 * found from counts, so the value and class of every instance that has 
+	 * a value of a numeric candidate feature are kept too.
+	 */
+	private static final class GrowingNode {
+		
+		final int d_node;
+		
+		// Features not yet split on along the path from the root
+		final boolean[] d_candidateFeatures;
+		
+		final int d_parentMajority;
+		
+		final int[] d_classCounts;
+		
+		// Contingency table of category by class counts of each candidate feature
+		final int[][] d_tables;
+		
+		// Values of each numeric candidate feature, in the order they come, and their classes
+		final double[][] d_values;
+		
+		final int[][] d_valueClasses;
+		
+		final int[] d_numValues;
+		
+		int d_numRows;
+		
+		GrowingNode(int a_node, boolean[] a_candidateFeatures, int a_parentMajority, Signature a_signature) {
+			d_node = a_node;
+			d_candidateFeatures = a_candidateFeatures;
+			d_parentMajority = a_parentMajority;
+			int numClasses = a_signature.getClassFeature().numberOfCategories();
+			d_classCounts = new int[numClasses];
+			d_tables = new int[a_signature.size()][];
+			d_values = new double[a_signature.size()][];
+			d_valueClasses = new int[a_signature.size()][];
+			d_numValues = new int[a_signature.size()];
+			for (int i=0; i<d_tables.length; i++) {
+				Feature feature = a_signature.getFeatureAtIndex(i);
+				if (a_candidateFeatures[i] && feature.getFeatureType() == Feature.NOMINAL) {
+					d_tables[i] = new int[feature.numberOfCategories() * numClasses];
+				} else if (a_candidateFeatures[i]) {
+					d_values[i] = new double[16];
+					d_valueClasses[i] = new int[16];
 				}
 			}
-			d_majorValue = new Value(d_signature.getClassFeature().categoryOfIndex(maxClassValueInt), Value.NOMINAL_VALUE);
-			return; 
 		}
 		
-		else {
-			// Calculate information gain for each attribute
-			double IG[] = new double[d_signature.getFeatures().size()];
-			double maxIG = -1;
-			int maxIGindex = 0;
-			HashMap<String, ArrayList<Instance>> maxSubsets = null;
+		void addValue(int a_feature, double a_value, int a_class) {
+			int numValues = d_numValues[a_feature];
+			if (numValues == d_values[a_feature].length) {
+				double[] values = new double[2 * numValues];
+				int[] classes = new int[2 * numValues];
+				System.arraycopy(d_values[a_feature], 0, values, 0, numValues);
+				System.arraycopy(d_valueClasses[a_feature], 0, classes, 0, numValues);
+				d_values[a_feature] = values;
+				d_valueClasses[a_feature] = classes;
+			}
+			d_values[a_feature][numValues] = a_value;
+			d_valueClasses[a_feature][numValues] = a_class;
+			d_numValues[a_feature] = numValues + 1;
+		}
+	}
+	
+	/**
+	 * Grows the tree one level per pass over the source, so that only the counts 
+	 * of the leaves being grown (and values of numeric features) are held in 
+	 * memory, never the instances. The tree classifies exactly as the one 
+	 * trained on a Dataset of the instances.
+	 */
+	@Override
+	public void train(InstanceSource a_source) throws MLException {
+		
+		int classIndex = d_signature.getClassIndex();
+		int numClasses = d_signature.getClassFeature().numberOfCategories();
+		
+		boolean[] candidateFeatures = new boolean[d_signature.size()];
+		Arrays.fill(candidateFeatures, true);
+		candidateFeatures[classIndex] = false;
+		
+		Tree tree = new Tree(64);
+		tree.addNodes(1);
+		ArrayList<GrowingNode> level = new ArrayList<GrowingNode>();
+		level.add(new GrowingNode(0, candidateFeatures, -1, d_signature));
+		
+		Dataset chunk = new Dataset(d_signature, STREAM_CHUNK_ROWS);
+		double[] xlogx = null;
+		while (!level.isEmpty()) {
+			// Index of each leaf of the level in the tree
+			int[] growing = new int[tree.d_size];
+			Arrays.fill(growing, -1);
+			for (int g=0; g<level.size(); g++) {
+				growing[level.get(g).d_node] = g;
+			}
 			
-			double totalSetEntropy = calculateEntropy(instances);
-			// H(S) - sum(p(t)*H(t))_for_attribute_A_the_data_is_split_in_T_sets
-			// H(t) = - sum(p(x)log(p(x))) where x in X (set of class values)
-			//TODO: There should be a faster way to check if there are any 
-			// interesting attributes left, before the entropy is calculated.
-
-			for(int i=0; i<d_signature.getFeatures().size(); i++){
-				
-				Feature feature = d_signature.getFeatureAtIndex(i);
-				
-				if (feature.getFeatureType() == Feature.NOMINAL && d_candidateFeatures[i]==1) { 
-					
-					HashMap<String, ArrayList<Instance>> subsets = new HashMap<String, ArrayList<Instance>>();
-					int classFeatureCounts[] = new int[feature.numberOfCategories()];
-					Arrays.fill(classFeatureCounts, 0);
-					
-					for (Instance instance : instances) {
-						
-						Value featureValue = instance.getValueAtIndex(i);
-						String featureValueName = (String) featureValue.getValue();
-						int featureValueInt = feature.indexOfCategory(featureValueName);
-						
-						classFeatureCounts[featureValueInt] += 1;
-						
-						ArrayList<Instance> subset = subsets.get(featureValueName);
-						if (subset == null) {
-							subset = new ArrayList<Instance>();
+			InstanceStream stream = a_source.open();
+			try {
+				while (nextChunk(stream, chunk)) {
+					int[] classColumn = chunk.getNominalColumn(classIndex);
+					for (int row=0; row<chunk.size(); row++) {
+						if (chunk.isMissing(row, classIndex)) {
+							continue;
+						}
+						int node = findLeaf(tree, chunk, row);
+						if (node < 0 || growing[node] < 0) {
+							continue;
+						}
+						GrowingNode leaf = level.get(growing[node]);
+						int classValue = classColumn[row];
+						leaf.d_numRows++;
+						leaf.d_classCounts[classValue]++;
+						for (int i=0; i<leaf.d_tables.length; i++) {
+							if (leaf.d_tables[i] != null && !chunk.isMissing(row, i)) {
+								leaf.d_tables[i][chunk.getNominal(row, i) * numClasses + classValue]++;
+							} else if (leaf.d_values[i] != null && hasValue(chunk, row, i, true)) {
+								leaf.addValue(i, chunk.getNumeric(row, i), classValue);
+							}
 						}
-						subset.add(instance);
-						subsets.put(featureValueName, subset);
-					}
-					
-					
-					Iterator<Entry<String, ArrayList<Instance>>> it = subsets.entrySet().iterator();
-					double sumEntropies = 0;
-					while (it.hasNext()) {
-						Entry<String, ArrayList<Instance>> pairs = it.next();
-						double pFeatureValue = pairs.getValue().size()/(double)instances.size();
-						double entropy = calculateEntropy(pairs.getValue());
-						sumEntropies += pFeatureValue * entropy;
-					}
-					double IGvalue = totalSetEntropy - sumEntropies;
-					
-					if (IGvalue > maxIG) {
-						maxIG = IGvalue;
-						maxIGindex = i;
-						maxSubsets = subsets;
 					}
-					IG[i] = IGvalue;
 				}
+			} finally {
+				stream.close();
 			}
-			// Pick the best attribute 
-			d_bestFeature = d_signature.getFeatureAtIndex(maxIGindex);
-			d_bestFeatureIndex = maxIGindex;
-			d_isLeaf = false;
-			
-			// TODO: what happens if some of the deciding feature values are not observed
-			// in the training set? Right now we point it to the majority class.
 			
-			ArrayList<String> featureValueList = d_bestFeature.getValues();
-			int candidateFeatures[] = (int[]) d_candidateFeatures.clone();
-			candidateFeatures[maxIGindex] = 0;
-			
-			for (String value : featureValueList) {
-				ID3 subTree = null;
-				if (maxSubsets.containsKey(value)) {
-					subTree = new ID3(d_signature, d_config, candidateFeatures);
-					subTree.train(maxSubsets.get(value));
-
-				} else {
-					// Shortcut to the majority class leaf.
-					Arrays.fill(candidateFeatures, 0);
-					subTree = new ID3(d_signature, d_config, candidateFeatures);
+			ArrayList<GrowingNode> nextLevel = new ArrayList<GrowingNode>();
+			int[] table = new int[2 * numClasses];
+			double[] threshold = new double[1];
+			for (GrowingNode leaf : level) {
+				if (!setNodeClass(tree, leaf.d_node, leaf.d_classCounts, leaf.d_parentMajority)) {
+					continue;
+				}
+				double totalSetEntropy = calculateEntropy(leaf.d_classCounts, leaf.d_numRows);
+				double maxIG = -1;
+				int maxIGindex = -1;
+				double maxIGthreshold = 0;
+				for (int i=0; i<leaf.d_tables.length; i++) {
+					if (leaf.d_tables[i] != null) {
+						double IGvalue = totalSetEntropy - splitEntropy(leaf.d_tables[i], 
+								d_signature.getFeatureAtIndex(i).numberOfCategories(), numClasses, leaf.d_numRows);
+						if (IGvalue > maxIG) {
+							maxIG = IGvalue;
+							maxIGindex = i;
+						}
+					} else if (leaf.d_values[i] != null) {
+						// Values that arrived in row order are sorted as stably as the presorted columns
+						int numValues = leaf.d_numValues[i];
+						int[] order = new int[numValues];
+						for (int r=0; r<numValues; r++) {
+							order[r] = r;
+						}
+						sortByValue(order, 0, numValues, leaf.d_values[i], new int[numValues]);
+						if (xlogx == null) {
+							// The root is reached by the most rows
+							xlogx = xlogx(leaf.d_numRows);
+						}
+						double IGvalue = totalSetEntropy - sweepThresholds(order, 0, numValues, leaf.d_values[i], 
+								leaf.d_valueClasses[i], numClasses, leaf.d_numRows, table, xlogx, threshold);
+						if (IGvalue > maxIG && IGvalue > MIN_NUMERIC_GAIN) {
+							maxIG = IGvalue;
+							maxIGindex = i;
+							maxIGthreshold = threshold[0];
+						}
+					}
+				}
+				// No candidate features are left.
+				if (maxIGindex == -1) {
+					continue;
+				}
+				
+				boolean numeric = d_signature.getFeatureAtIndex(maxIGindex).getFeatureType() == Feature.NUMERIC;
+				int numChildren = numberOfChildren(d_signature, maxIGindex);
+				int firstChild = tree.addNodes(numChildren);
+				tree.d_splitFeatures[leaf.d_node] = maxIGindex;
+				tree.d_firstChildren[leaf.d_node] = firstChild;
+				tree.d_thresholds[leaf.d_node] = maxIGthreshold;
+				
+				boolean[] childFeatures = leaf.d_candidateFeatures;
+				if (!numeric) {
+					childFeatures = leaf.d_candidateFeatures.clone();
+					childFeatures[maxIGindex] = false;
+				}
+				for (int v=0; v<numChildren; v++) {
+					nextLevel.add(new GrowingNode(firstChild + v, childFeatures, tree.d_classes[leaf.d_node], d_signature));
 				}
-				d_subtrees.put(value, subTree);
 			}
-			
+			level = nextLevel;
 		}
-		// if no attributes left -> return majority class
-
+		d_tree = tree.trim();
+		changed();
+	}
+	
+	// Descends the tree with a row of a dataset, as far as it is grown. Returns 
+	// the leaf the row reaches, or -1 if the row has a missing value of a split 
+	// feature on the way, as such rows do not go to any of the subsets.
+	private int findLeaf(Tree a_tree, Dataset a_dataset, int a_row) {
+		int node = 0;
+		while (a_tree.d_splitFeatures[node] != LEAF) {
+			int feature = a_tree.d_splitFeatures[node];
+			boolean numeric = d_signature.getFeatureAtIndex(feature).getFeatureType() == Feature.NUMERIC;
+			int child = childOf(a_dataset, a_row, feature, numeric, a_tree.d_thresholds[node]);
+			if (child < 0) {
+				return -1;
+			}
+			node = a_tree.d_firstChildren[node] + child;
+		}
+		return node;
+	}
+	
+	// sum(p(t)*H(t)) over the categories t of a feature, from a contingency table 
+	// that holds a row of class counts for each category.
+	private static double splitEntropy(int[] a_table, int a_numCategories, int a_numClasses, int a_total) {
+		
+		double sumEntropies = 0;
+		
+		for (int v=0; v<a_numCategories; v++) {
+			int base = v * a_numClasses;
+			int subsetSize = 0;
+			for (int c=0; c<a_numClasses; c++) {
+				subsetSize += a_table[base + c];
+			}
+			if (subsetSize == 0) {
+				continue;
+			}
+			double entropy = 0;
+			for (int c=0; c<a_numClasses; c++) {
+				if (a_table[base + c] > 0) {
+					double probability = (double)a_table[base + c]/subsetSize;
+					entropy -= probability * Math.log(probability);
+				}
+			}
+			sumEntropies += subsetSize/(double)a_total * entropy;
+		}
+		
+		return sumEntropies;
 	}
 
 	// H(t) = - sum(p(x)log(p(x))) where x in X (set of class values)
-	private double calculateEntropy (ArrayList<Instance> a_instances) {
+	private static double calculateEntropy (int[] a_classCounts, int a_total) {
 		
 		double entropy = 0;
 		
-		Feature classFeature = d_signature.getClassFeature(); 
-
-		int classCounts[] = new int[classFeature.numberOfCategories()];
-		int classCountsTotal = 0;
-		Arrays.fill(classCounts, 0);
-		
-		for (Instance i : a_instances) {
-			Value classValue = i.getValueAtIndex(d_signature.getClassIndex());
-			int classValueInt = classFeature.indexOfCategory((String) classValue.getValue());
-			classCounts[classValueInt] += 1;
-		}
-
-		for (int j=0; j<classCounts.length; j++) classCountsTotal += classCounts[j];
-		for (int j=0; j<classCounts.length; j++) {
-			double probabilityFeatureValue = (double)classCounts[j]/classCountsTotal;
+		for (int j=0; j<a_classCounts.length; j++) {
+			double probabilityFeatureValue = (double)a_classCounts[j]/a_total;
 			if (probabilityFeatureValue > 0) {
 				entropy -= (probabilityFeatureValue)*Math.log(probabilityFeatureValue);
 			}
@@ -274,41 +829,399 @@ public class ID3 extends Classifier{
 	@Override
 	public Value classify(Instance a_instance) throws MLException {
 
-		if (!d_signature.checkCompliance(a_instance, false)){
-			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-					"Instance is not compatible with the dataset used for classifier construction.");					
+		d_signature.validate(a_instance, false);
+		
+		// When the classifier is not yet trained there is no class value
+		int nodeClass = findLeafClass(d_tree, a_instance);
+		return nodeClass < 0 ? null : d_classValues[nodeClass];
+	}
+	
+	// Descends from the root, without checking the (already validated) instance 
+	// again, and returns the class of the node it stops at. A missing value or a 
+	// value that was never seen in training stops the descent at the majority 
+	// class of the current node, and so does NaN at a numeric split.
+	private int findLeafClass(Tree a_tree, Instance a_instance) {
+		int[] splitFeatures = a_tree.d_splitFeatures;
+		int node = 0;
+		while (splitFeatures[node] != LEAF) {
+			int feature = splitFeatures[node];
+			Value value = a_instance.getValueAtIndex(feature);
+			if (value.getValueType() == Value.MISSING_VALUE) {
+				break;
+			}
+			int child;
+			if (value.getValueType() == Value.NUMERIC_VALUE) {
+				double number = (Double) value.getValue();
+				if (Double.isNaN(number)) {
+					break;
+				}
+				child = number <= a_tree.d_thresholds[node] ? 0 : 1;
+			} else {
+				child = d_signature.getFeatureAtIndex(feature).findCategory((String) value.getValue());
+				if (child < 0) {
+					break;
+				}
+			}
+			node = a_tree.d_firstChildren[node] + child;
 		}
-
-		if (d_isLeaf) {
-			return d_majorValue;
-		} else {
-			Value v = a_instance.getValueAtIndex(d_bestFeatureIndex);
-			ID3 nextTree = d_subtrees.get(v.getValue());
-			return nextTree.classify(a_instance);
+		return a_tree.d_classes[node];
+	}
+	
+	@Override
+	public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+		checkBatch(a_instances, a_classes, a_posteriors);
+		
+		Tree tree = d_tree;
+		for (int i=0; i<a_instances.size(); i++) {
+			// When the classifier is not yet trained we return the first class value
+			a_classes[i] = Math.max(findLeafClass(tree, a_instances.get(i)), 0);
+			if (a_posteriors != null) {
+				writeOneHot(i, a_classes[i], a_posteriors);
+			}
+		}
+	}
+	
+	// Nodes are written in preorder: a leaf is its kind and class value index (-1 if unknown),
+	// an inner node additionally holds the split feature index, followed by a subtree 
+	// for each of the feature values, in the order of the feature's categories. A numeric 
+	// split holds its threshold after the feature index, and is followed by two subtrees.
+	private static final int NODE_LEAF = 0;
+	private static final int NODE_NOMINAL_SPLIT = 1;
+	private static final int NODE_NUMERIC_SPLIT = 2;
+	
+	// Trees are traversed from a stack rather than by recursion, as numeric 
+	// features can be split on again and again down a path, see train.
+	@Override
+	public void writeState(SnapshotWriter a_out) throws IOException {
+		Tree tree = d_tree;
+		ArrayList<Integer> stack = new ArrayList<Integer>();
+		stack.add(0);
+		while (!stack.isEmpty()) {
+			writeNode(tree, stack.remove(stack.size() - 1), a_out, stack);
+		}
+	}
+	
+	@Override
+	public void writeMapped(SnapshotWriter a_out) throws IOException {
+		Tree tree = d_tree;
+		a_out.writeIntArray(tree.copyOf(tree.d_splitFeatures, tree.d_size));
+		a_out.writeIntArray(tree.copyOf(tree.d_firstChildren, tree.d_size));
+		a_out.writeIntArray(tree.copyOf(tree.d_classes, tree.d_size));
+		a_out.writeDoubleArray(tree.copyOf(tree.d_thresholds, tree.d_size));
+	}
+	
+	// Writes a node and pushes its children on the stack, the first one last.
+	private void writeNode(Tree a_tree, int a_node, SnapshotWriter a_out, ArrayList<Integer> a_stack) throws IOException {
+		int splitFeature = a_tree.d_splitFeatures[a_node];
+		boolean numeric = splitFeature != LEAF 
+				&& d_signature.getFeatureAtIndex(splitFeature).getFeatureType() == Feature.NUMERIC;
+		a_out.writeByte(splitFeature == LEAF ? NODE_LEAF : numeric ? NODE_NUMERIC_SPLIT : NODE_NOMINAL_SPLIT);
+		a_out.writeInt(a_tree.d_classes[a_node]);
+		if (splitFeature != LEAF) {
+			a_out.writeInt(splitFeature);
+			if (numeric) {
+				a_out.writeDouble(a_tree.d_thresholds[a_node]);
+			}
+			int numChildren = numberOfChildren(d_signature, splitFeature);
+			for (int v=numChildren-1; v>=0; v--) {
+				a_stack.add(a_tree.d_firstChildren[a_node] + v);
+			}
+		}
+	}
+	
+	@Override
+	public void readState(SnapshotReader a_in) throws IOException {
+		Tree tree = new Tree(64);
+		tree.addNodes(1);
+		ArrayList<Integer> stack = new ArrayList<Integer>();
+		stack.add(0);
+		while (!stack.isEmpty()) {
+			readNode(tree, stack.remove(stack.size() - 1), a_in, stack);
+		}
+		d_tree = tree.trim();
+	}
+	
+	// Reads a node, and pushes the children it is followed by on the stack, the first one last.
+	private void readNode(Tree a_tree, int a_node, SnapshotReader a_in, ArrayList<Integer> a_stack) throws IOException {
+		int kind = a_in.readByte();
+		int nodeClass = a_in.readInt();
+		if (kind != NODE_LEAF && kind != NODE_NOMINAL_SPLIT && kind != NODE_NUMERIC_SPLIT 
+				|| nodeClass < -1 || nodeClass >= d_classValues.length) {
+			throw new IOException("Corrupt snapshot: invalid tree node.");
+		}
+		a_tree.d_classes[a_node] = nodeClass;
+		
+		if (kind != NODE_LEAF) {
+			int splitFeature = a_in.readInt();
+			if (!isSplitFeature(splitFeature, kind == NODE_NUMERIC_SPLIT)) {
+				throw new IOException("Corrupt snapshot: invalid split feature.");
+			}
+			if (kind == NODE_NUMERIC_SPLIT) {
+				double threshold = a_in.readDouble();
+				if (Double.isNaN(threshold)) {
+					throw new IOException("Corrupt snapshot: invalid threshold.");
+				}
+				a_tree.d_thresholds[a_node] = threshold;
+			}
+			int numChildren = numberOfChildren(d_signature, splitFeature);
+			int firstChild = a_tree.addNodes(numChildren);
+			a_tree.d_splitFeatures[a_node] = splitFeature;
+			a_tree.d_firstChildren[a_node] = firstChild;
+			for (int v=numChildren-1; v>=0; v--) {
+				a_stack.add(firstChild + v);
+			}
 		}
 	}
 	
-	private String print(int depth) {
-		String output = "";
-		if (d_isLeaf) {
-			output = d_majorValue.getValue().toString()+"\n";
+	private boolean isSplitFeature(int a_feature, boolean a_numeric) {
+		return a_feature >= 0 && a_feature < d_signature.size() && a_feature != d_signature.getClassIndex()
+				&& d_signature.getFeatureAtIndex(a_feature).getFeatureType() == (a_numeric ? Feature.NUMERIC : Feature.NOMINAL);
+	}
+	
+	// In JSON the tree is a single field of nested nodes, so that the signature 
+	// and configuration are stored once, with the root.
+	@Override
+	public void writeJSON(JsonWriter a_out) throws IOException {
+		Tree tree = d_tree;
+		a_out.name("d_tree");
+		// The inner nodes on the path to the current one, and the next child of each to write
+		int[] path = new int[tree.d_size];
+		int[] nextChild = new int[tree.d_size];
+		int depth = 0;
+		if (beginNode(tree, 0, a_out)) {
+			path[depth++] = 0;
+		}
+		while (depth > 0) {
+			int node = path[depth-1];
+			int splitFeature = tree.d_splitFeatures[node];
+			int child = nextChild[depth-1]++;
+			if (child == numberOfChildren(d_signature, splitFeature)) {
+				// Closes the subtrees and the node
+				a_out.endObject();
+				a_out.endObject();
+				depth--;
+				continue;
+			}
+			a_out.name(childName(d_signature.getFeatureAtIndex(splitFeature), child));
+			int childNode = tree.d_firstChildren[node] + child;
+			if (beginNode(tree, childNode, a_out)) {
+				path[depth] = childNode;
+				nextChild[depth] = 0;
+				depth++;
+			}
+		}
+	}
+	
+	// Writes the fields of a node. A leaf is closed, while the subtrees of an 
+	// inner node are left open for its children, and true is returned.
+	private boolean beginNode(Tree a_tree, int a_node, JsonWriter a_out) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_majorValue");
+		int nodeClass = a_tree.d_classes[a_node];
+		if (nodeClass < 0) {
+			a_out.nullValue();
 		} else {
-			output = d_bestFeature.name()+"\n";
-			Iterator<Entry<Object, ID3>> it = d_subtrees.entrySet().iterator();
-			while(it.hasNext()){
-				Entry<Object, ID3> pair = it.next();
-				String tmp = "\t";
-				for (int i=0; i<depth; i++){
-					tmp += "\t";
+			a_out.value((String) d_classValues[nodeClass].getValue());
+		}
+		int splitFeature = a_tree.d_splitFeatures[a_node];
+		if (splitFeature == LEAF) {
+			a_out.endObject();
+			return false;
+		}
+		a_out.name("d_bestFeatureIndex").value(splitFeature);
+		if (d_signature.getFeatureAtIndex(splitFeature).getFeatureType() == Feature.NUMERIC) {
+			a_out.name("d_threshold").value(a_tree.d_thresholds[a_node]);
+		}
+		a_out.name("d_subtrees").beginObject();
+		return true;
+	}
+	
+	// Subtrees of a nominal split are named by category, those of a numeric split by comparison
+	private static final String[] NUMERIC_CHILD_NAMES = {"<=", ">"};
+	
+	private static String childName(Feature a_feature, int a_child) {
+		return a_feature.getFeatureType() == Feature.NUMERIC ? NUMERIC_CHILD_NAMES[a_child] 
+				: a_feature.categoryOfIndex(a_child);
+	}
+	
+	private static int findChild(Feature a_feature, String a_name) {
+		if (a_feature.getFeatureType() == Feature.NUMERIC) {
+			return Arrays.asList(NUMERIC_CHILD_NAMES).indexOf(a_name);
+		}
+		return a_feature.findCategory(a_name);
+	}
+	
+	@Override
+	public boolean readJSONField(String a_name, JsonReader a_in) throws IOException {
+		if (!a_name.equals("d_tree")) {
+			return false;
+		}
+		Tree tree = new Tree(64);
+		tree.addNodes(1);
+		// The nodes whose objects are open, the innermost last
+		ArrayList<JsonNode> path = new ArrayList<JsonNode>();
+		a_in.beginObject();
+		path.add(new JsonNode(0));
+		while (!path.isEmpty()) {
+			JsonNode node = path.get(path.size() - 1);
+			if (node.d_inSubtrees) {
+				if (a_in.hasNext()) {
+					path.add(beginSubtree(tree, node, a_in));
+				} else {
+					a_in.endObject();
+					node.d_inSubtrees = false;
 				}
-				output += (tmp+pair.getKey().toString()+" -> "+pair.getValue().print(depth+1)+"\n");
+			} else if (a_in.hasNext()) {
+				readField(tree, node, a_in.nextName(), a_in);
+			} else {
+				a_in.endObject();
+				node.check();
+				path.remove(path.size() - 1);
+			}
+		}
+		d_tree = tree.trim();
+		return true;
+	}
+	
+	/**
+	 * A node of a tree being read from JSON, whose object is open.
+	 */
+	private static final class JsonNode {
+		
+		final int d_node;
+		
+		Feature d_splitFeature;
+		
+		// Which subtrees were read, null until the subtrees are reached
+		boolean[] d_read;
+		
+		boolean d_inSubtrees;
+		
+		boolean d_hasThreshold;
+		
+		JsonNode(int a_node) {
+			d_node = a_node;
+		}
+		
+		void check() throws IOException {
+			if (d_splitFeature == null) {
+				return;
+			}
+			boolean complete = d_read != null;
+			for (int v=0; complete && v<d_read.length; v++) {
+				complete = d_read[v];
+			}
+			if (!complete) {
+				throw new IOException("Corrupt tree: missing subtrees.");
+			}
+			if (d_splitFeature.getFeatureType() == Feature.NUMERIC && !d_hasThreshold) {
+				throw new IOException("Corrupt tree: missing threshold.");
+			}
+		}
+	}
+	
+	// Reads a field of a node. The subtrees are only opened, their nodes are read by readJSONField.
+	private void readField(Tree a_tree, JsonNode a_node, String a_name, JsonReader a_in) throws IOException {
+		int node = a_node.d_node;
+		if (a_name.equals("d_majorValue") && a_in.peek() == JsonToken.STRING) {
+			String majorValue = a_in.nextString();
+			int nodeClass = d_signature.getClassFeature().findCategory(majorValue);
+			if (nodeClass < 0) {
+				throw new IOException("Corrupt tree: unknown class value "+majorValue+".");
+			}
+			a_tree.d_classes[node] = nodeClass;
+		} else if (a_name.equals("d_bestFeatureIndex") && a_node.d_splitFeature == null) {
+			int splitFeatureIndex = a_in.nextInt();
+			if (!isSplitFeature(splitFeatureIndex, false) && !isSplitFeature(splitFeatureIndex, true)) {
+				throw new IOException("Corrupt tree: invalid split feature.");
 			}
+			a_node.d_splitFeature = d_signature.getFeatureAtIndex(splitFeatureIndex);
+			a_tree.d_splitFeatures[node] = splitFeatureIndex;
+		} else if (a_name.equals("d_threshold") && !a_node.d_hasThreshold) {
+			double threshold = a_in.nextDouble();
+			if (Double.isNaN(threshold)) {
+				throw new IOException("Corrupt tree: invalid threshold.");
+			}
+			a_tree.d_thresholds[node] = threshold;
+			a_node.d_hasThreshold = true;
+		} else if (a_name.equals("d_subtrees") && a_node.d_splitFeature != null && a_node.d_read == null) {
+			int numChildren = numberOfChildren(d_signature, a_tree.d_splitFeatures[node]);
+			// addNodes may replace the arrays of the tree
+			int firstChild = a_tree.addNodes(numChildren);
+			a_tree.d_firstChildren[node] = firstChild;
+			a_node.d_read = new boolean[numChildren];
+			a_in.beginObject();
+			a_node.d_inSubtrees = true;
+		} else {
+			a_in.skipValue();
+		}
+	}
+	
+	// Opens the next subtree of a node and returns its node.
+	private JsonNode beginSubtree(Tree a_tree, JsonNode a_parent, JsonReader a_in) throws IOException {
+		String value = a_in.nextName();
+		int child = findChild(a_parent.d_splitFeature, value);
+		if (child < 0 || a_parent.d_read[child]) {
+			throw new IOException("Corrupt tree: unknown value "+value+" of the split feature.");
+		}
+		a_parent.d_read[child] = true;
+		a_in.beginObject();
+		return new JsonNode(a_tree.d_firstChildren[a_parent.d_node] + child);
+	}
+	
+	private String print(Tree a_tree) {
+		StringBuilder output = new StringBuilder();
+		// The inner nodes on the path to the current one, and the next child of each to print
+		int[] path = new int[a_tree.d_size];
+		int[] nextChild = new int[a_tree.d_size];
+		int depth = 0;
+		if (printNode(a_tree, 0, output)) {
+			path[depth++] = 0;
+		}
+		while (depth > 0) {
+			int node = path[depth-1];
+			int splitFeature = a_tree.d_splitFeatures[node];
+			int child = nextChild[depth-1]++;
+			if (child > 0) {
+				// Ends the line of the previous child
+				output.append("\n");
+			}
+			if (child == numberOfChildren(d_signature, splitFeature)) {
+				depth--;
+				continue;
+			}
+			for (int i=0; i<depth; i++){
+				output.append("\t");
+			}
+			Feature feature = d_signature.getFeatureAtIndex(splitFeature);
+			String branch = feature.getFeatureType() == Feature.NUMERIC 
+					? NUMERIC_CHILD_NAMES[child]+" "+a_tree.d_thresholds[node] : feature.categoryOfIndex(child);
+			output.append(branch).append(" -> ");
+			int childNode = a_tree.d_firstChildren[node] + child;
+			if (printNode(a_tree, childNode, output)) {
+				path[depth] = childNode;
+				nextChild[depth] = 0;
+				depth++;
+			}
+		}
+		return output.toString();
+	}
+	
+	// Prints the class value of a leaf, or the split feature of an inner node, and
+	// returns true for the latter.
+	private boolean printNode(Tree a_tree, int a_node, StringBuilder a_output) {
+		int splitFeature = a_tree.d_splitFeatures[a_node];
+		if (splitFeature == LEAF) {
+			int nodeClass = a_tree.d_classes[a_node];
+			a_output.append(nodeClass < 0 ? null : d_classValues[nodeClass].getValue()).append("\n");
+			return false;
 		}
-		return output;		
+		a_output.append(d_signature.getFeatureAtIndex(splitFeature).name()).append("\n");
+		return true;
 	}
 	
 	@Override
 	public void printClassifierInfo() {
-		Log.d(TAG, this.print(0));		
+		Log.d(TAG, this.print(d_tree));		
 	}
 }
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+/**
+ * Balanced KD-tree over points with any number of coordinates, for euclidean 
+ * distance. The tree is implicit: the rows are reordered so that every range 
+ * has its splitting point in the middle, with smaller coordinates before it 
+ * and larger ones after it. Ranges of a few points are scanned linearly.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+final class KDTree extends NeighbourIndex {
+
+	private static final int LEAF_SIZE = 8;
+	
+	// Subtrees are only skipped if they are clearly out of reach, despite rounding.
+	private static final double MARGIN = 1.0 + 1e-9;
+	
+	private final double[][] d_coords;
+	
+	private final int[] d_rows;
+	
+	// Splitting coordinate of the range whose middle is at the same position in d_rows
+	private final int[] d_splitCoords;
+	
+	private final double d_radius;
+	
+	KDTree(double[][] a_coords, int[] a_rows, int a_numRows, double a_radius) {
+		d_coords = a_coords;
+		d_rows = new int[a_numRows];
+		System.arraycopy(a_rows, 0, d_rows, 0, a_numRows);
+		d_splitCoords = new int[a_numRows];
+		d_radius = a_radius;
+		build(0, a_numRows);
+	}
+	
+	private void build(int a_from, int a_to) {
+		if (a_to - a_from <= LEAF_SIZE) {
+			return;
+		}
+		// Split along the coordinate with the largest spread
+		int splitCoord = 0;
+		double maxSpread = -1;
+		for (int j=0; j<d_coords.length; j++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int r=a_from; r<a_to; r++) {
+				double value = d_coords[j][d_rows[r]];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			if (max - min > maxSpread) {
+				maxSpread = max - min;
+				splitCoord = j;
+			}
+		}
+		int middle = (a_from + a_to) >>> 1;
+		select(d_coords[splitCoord], a_from, a_to - 1, middle);
+		d_splitCoords[middle] = splitCoord;
+		build(a_from, middle);
+		build(middle + 1, a_to);
+	}
+	
+	// Reorders d_rows[a_left, a_right] so that the row at a_k has the k-th smallest value.
+	private void select(double[] a_values, int a_left, int a_right, int a_k) {
+		while (a_left < a_right) {
+			double pivot = a_values[d_rows[(a_left + a_right) >>> 1]];
+			int i = a_left;
+			int j = a_right;
+			while (i <= j) {
+				while (a_values[d_rows[i]] < pivot) i++;
+				while (a_values[d_rows[j]] > pivot) j--;
+				if (i <= j) {
+					int tmp = d_rows[i];
+					d_rows[i] = d_rows[j];
+					d_rows[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (a_k <= j) {
+				a_right = j;
+			} else if (a_k >= i) {
+				a_left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	@Override
+	int countWithin(int a_row, boolean[] a_removed) {
+		double[] point = new double[d_coords.length];
+		for (int j=0; j<d_coords.length; j++) {
+			point[j] = d_coords[j][a_row];
+		}
+		return count(0, d_rows.length, point, a_row, a_removed);
+	}
+	
+	private int count(int a_from, int a_to, double[] a_point, int a_row, boolean[] a_removed) {
+		if (a_to - a_from <= LEAF_SIZE) {
+			int count = 0;
+			for (int r=a_from; r<a_to; r++) {
+				count += isNeighbour(d_rows[r], a_point, a_row, a_removed) ? 1 : 0;
+			}
+			return count;
+		}
+		int middle = (a_from + a_to) >>> 1;
+		int splitCoord = d_splitCoords[middle];
+		double diff = a_point[splitCoord] - d_coords[splitCoord][d_rows[middle]];
+		
+		int count = isNeighbour(d_rows[middle], a_point, a_row, a_removed) ? 1 : 0;
+		if (diff <= d_radius * MARGIN) {
+			count += count(a_from, middle, a_point, a_row, a_removed);
+		}
+		if (-diff <= d_radius * MARGIN) {
+			count += count(middle + 1, a_to, a_point, a_row, a_removed);
+		}
+		return count;
+	}
+	
+	private boolean isNeighbour(int a_other, double[] a_point, int a_row, boolean[] a_removed) {
+		if (a_other == a_row || a_removed[a_other]) {
+			return false;
+		}
+		// Same calculation as DensityClustering.distance, so that the results are identical
+		double sqrSum = 0;
+		for (int j=0; j<d_coords.length; j++) {
+			sqrSum += Math.pow(a_point[j] - d_coords[j][a_other], 2);
+		}
+		return Math.sqrt(sqrSum) < d_radius;
+	}
+}
@@ -0,0 +1,499 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Dataset;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+import com.ubhave.mltoolkit.utils.Value;
+
+/**
+ * A read-only classifier that classifies straight from the tables written by
+ * Classifier.writeMapped, held in a (memory-mapped) buffer. Apart from the
+ * signature, nothing is copied to the heap, so a model is ready as soon as it
+ * is mapped, and the pages of the file are shared by everyone that maps it.
+ *
+ * Classifications give the same results as the classifier the tables were
+ * written from. Training, updating and saving the classifier are not supported.
+ *
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public abstract class MappedClassifier extends Classifier {
+
+	private static final String TAG = "MappedClassifier";
+
+	// Little-endian view of the tables, read with absolute gets only
+	protected final ByteBuffer d_tables;
+
+	// Position of the next array while the tables are being checked
+	private int d_position;
+
+	private MappedClassifier(int a_type, Signature a_signature, ClassifierConfig a_config, ByteBuffer a_tables) {
+		super(a_signature, a_config);
+		d_type = a_type;
+		d_tables = a_tables.slice().order(ByteOrder.LITTLE_ENDIAN);
+		d_position = 0;
+	}
+
+	/**
+	 * Returns a classifier of the given type that classifies from the tables,
+	 * which start at the position of the buffer. Throws an IOException if the
+	 * tables do not match the signature.
+	 */
+	public static MappedClassifier create(int a_type, Signature a_signature, ClassifierConfig a_config,
+			ByteBuffer a_tables) throws IOException {
+		switch (a_type) {
+			case Constants.TYPE_NAIVE_BAYES:
+				return new MappedNaiveBayes(a_signature, a_config, a_tables);
+			case Constants.TYPE_ID3:
+				return new MappedID3(a_signature, a_config, a_tables);
+			case Constants.TYPE_DENSITY_CLUSTER:
+				return new MappedDensityClustering(a_signature, a_config, a_tables);
+			case Constants.TYPE_ZERO_R:
+				return new MappedZeroR(a_signature, a_config, a_tables);
+			default:
+				throw new IOException("Unknown classifier type "+a_type);
+		}
+	}
+
+	// Returns the length of the next array, without moving past it.
+	protected int nextLength() throws IOException {
+		if (d_position + 4 > d_tables.capacity() || d_tables.getInt(d_position) < 0) {
+			throw new IOException("Corrupt model: tables end unexpectedly.");
+		}
+		return d_tables.getInt(d_position);
+	}
+
+	// Checks the length of the next array, and returns the offset of its first element.
+	protected int nextArray(int a_length, int a_elementSize) throws IOException {
+		if (nextLength() != a_length || d_position + 4 + (long) a_length * a_elementSize > d_tables.capacity()) {
+			throw new IOException("Corrupt model: tables do not match the signature.");
+		}
+		int offset = d_position + 4;
+		d_position = offset + a_length * a_elementSize;
+		return offset;
+	}
+
+	// Returns whether another array follows, for arrays that were added to the tables later.
+	protected boolean hasNextArray() {
+		return d_position < d_tables.capacity();
+	}
+
+	// Ends the check of the tables, and leaves out what follows them.
+	protected void endTables() {
+		d_tables.limit(d_position);
+	}
+
+	private MLException readOnly() {
+		return new MLException(MLException.INVALID_STATE, "Classifier is read-only.");
+	}
+
+	@Override
+	public void train(ArrayList<Instance> a_instances) throws MLException {
+		throw readOnly();
+	}
+
+	@Override
+	public void train(Dataset a_dataset) throws MLException {
+		throw readOnly();
+	}
+
+	@Override
+	public void writeMapped(SnapshotWriter a_out) throws IOException {
+		a_out.writeRaw(d_tables);
+	}
+
+	// The state the tables were computed from is not part of them.
+
+	@Override
+	public void writeState(SnapshotWriter a_out) throws IOException {
+		throw new IOException("Read-only classifiers cannot be saved.");
+	}
+
+	@Override
+	public void readState(SnapshotReader a_in) throws IOException {
+		throw new IOException("Read-only classifiers cannot be restored.");
+	}
+
+	@Override
+	public void writeJSON(JsonWriter a_out) throws IOException {
+		throw new IOException("Read-only classifiers cannot be saved.");
+	}
+
+	@Override
+	public boolean readJSONField(String a_name, JsonReader a_in) throws IOException {
+		throw new IOException("Read-only classifiers cannot be restored.");
+	}
+
+	@Override
+	public void printClassifierInfo() {
+		Log.d(TAG, "Read-only classifier of type "+d_type+", "+d_tables.limit()+" bytes of tables");
+	}
+
+	/**
+	 * See NaiveBayes.writeMapped: feature offsets and widths, log priors and the log table.
+	 */
+	private static class MappedNaiveBayes extends MappedClassifier {
+
+		private final int[] d_offsets;
+
+		private final int[] d_widths;
+
+		private final int d_logPriors;
+
+		private final int d_logTable;
+
+		private final int d_numClasses;
+
+		MappedNaiveBayes(Signature a_signature, ClassifierConfig a_config, ByteBuffer a_tables) throws IOException {
+			super(Constants.TYPE_NAIVE_BAYES, a_signature, a_config, a_tables);
+			int numFeatures = d_signature.size();
+			d_numClasses = d_signature.getClassFeature().numberOfCategories();
+
+			d_offsets = new int[numFeatures];
+			d_widths = new int[numFeatures];
+			int offsets = nextArray(numFeatures, 4);
+			int widths = nextArray(numFeatures, 4);
+			d_logPriors = nextArray(d_numClasses, 8);
+			int tableLength = nextLength();
+			d_logTable = nextArray(tableLength, 8);
+			endTables();
+
+			for (int i=0; i<numFeatures; i++) {
+				d_offsets[i] = d_tables.getInt(offsets + 4 * i);
+				d_widths[i] = d_tables.getInt(widths + 4 * i);
+				if (d_widths[i] < 0 || d_offsets[i] < 0
+						|| d_offsets[i] + (long) d_widths[i] * d_numClasses > tableLength) {
+					throw new IOException("Corrupt model: tables do not match the signature.");
+				}
+			}
+		}
+
+		private double logTable(int a_feature, int a_class, int a_category) {
+			return d_tables.getDouble(d_logTable + 8 * (d_offsets[a_feature] + a_class * d_widths[a_feature] + a_category));
+		}
+
+		// Same as NaiveBayes.logPosteriors
+		private void logPosteriors(Instance a_instance, double[] a_logPosteriors) {
+			for (int c=0; c<d_numClasses; c++) {
+				a_logPosteriors[c] = d_tables.getDouble(d_logPriors + 8 * c);
+			}
+			for (int i=0; i<a_instance.size(); i++){
+				if (d_widths[i] == 0) {
+					continue;
+				}
+				Value featureValue = a_instance.getValueAtIndex(i);
+				if (featureValue.getValueType() == Value.NOMINAL_VALUE) {
+					int featureValueIndex = d_signature.getFeatureAtIndex(i).indexOfCategory((String) featureValue.getValue());
+					for (int c=0; c<d_numClasses; c++) {
+						a_logPosteriors[c] += logTable(i, c, featureValueIndex);
+					}
+				} else if (featureValue.getValueType() == Value.NUMERIC_VALUE) {
+					double featureValueDouble = (Double) featureValue.getValue();
+					for (int c=0; c<d_numClasses; c++) {
+						double diff = featureValueDouble - logTable(i, c, 0);
+						a_logPosteriors[c] += logTable(i, c, 2) - diff * diff * logTable(i, c, 1);
+					}
+				}
+			}
+		}
+
+		@Override
+		public Value classify(Instance a_instance) throws MLException {
+			d_signature.validate(a_instance, false);
+			double[] logPosteriors = new double[d_numClasses];
+			logPosteriors(a_instance, logPosteriors);
+			return new Value(d_signature.getClassFeature().categoryOfIndex(NaiveBayes.maxAposterioriIndex(logPosteriors)),
+					Value.NOMINAL_VALUE);
+		}
+
+		@Override
+		public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+			checkBatch(a_instances, a_classes, a_posteriors);
+			double[] logPosteriors = new double[d_numClasses];
+			for (int i=0; i<a_instances.size(); i++) {
+				logPosteriors(a_instances.get(i), logPosteriors);
+				a_classes[i] = NaiveBayes.maxAposterioriIndex(logPosteriors);
+				if (a_posteriors != null) {
+					NaiveBayes.normalize(logPosteriors, a_posteriors, i * d_numClasses);
+				}
+			}
+		}
+	}
+
+	/**
+	 * See ID3.writeMapped: the split feature, first child and class of each node.
+	 */
+	private static class MappedID3 extends MappedClassifier {
+
+		private final int d_splitFeatures;
+
+		private final int d_firstChildren;
+
+		private final int d_classes;
+
+		// -1 in tables written before numeric splits, which have none
+		private final int d_thresholds;
+
+		private final Value[] d_classValues;
+
+		MappedID3(Signature a_signature, ClassifierConfig a_config, ByteBuffer a_tables) throws IOException {
+			super(Constants.TYPE_ID3, a_signature, a_config, a_tables);
+			int numNodes = nextLength();
+			if (numNodes == 0) {
+				throw new IOException("Corrupt model: tree has no nodes.");
+			}
+			d_splitFeatures = nextArray(numNodes, 4);
+			d_firstChildren = nextArray(numNodes, 4);
+			d_classes = nextArray(numNodes, 4);
+			d_thresholds = hasNextArray() ? nextArray(numNodes, 8) : -1;
+			endTables();
+
+			Feature classFeature = d_signature.getClassFeature();
+			d_classValues = new Value[classFeature.numberOfCategories()];
+			for (int c=0; c<d_classValues.length; c++) {
+				d_classValues[c] = new Value(classFeature.categoryOfIndex(c), Value.NOMINAL_VALUE);
+			}
+
+			// Children follow their parents, so that every descent ends
+			for (int node=0; node<numNodes; node++) {
+				int feature = d_tables.getInt(d_splitFeatures + 4 * node);
+				int nodeClass = d_tables.getInt(d_classes + 4 * node);
+				if (nodeClass < -1 || nodeClass >= d_classValues.length) {
+					throw new IOException("Corrupt model: invalid class of node "+node);
+				}
+				if (feature == ID3.LEAF) {
+					continue;
+				}
+				int firstChild = d_tables.getInt(d_firstChildren + 4 * node);
+				if (feature < 0 || feature >= d_signature.size() || feature == d_signature.getClassIndex()
+						|| firstChild <= node || firstChild + (long) ID3.numberOfChildren(d_signature, feature) > numNodes) {
+					throw new IOException("Corrupt model: invalid split of node "+node);
+				}
+				if (d_signature.getFeatureAtIndex(feature).getFeatureType() == Feature.NUMERIC
+						&& (d_thresholds < 0 || Double.isNaN(d_tables.getDouble(d_thresholds + 8 * node)))) {
+					throw new IOException("Corrupt model: invalid threshold of node "+node);
+				}
+			}
+		}
+
+		// Same as ID3.findLeafClass
+		private int findLeafClass(Instance a_instance) {
+			int node = 0;
+			int feature;
+			while ((feature = d_tables.getInt(d_splitFeatures + 4 * node)) != ID3.LEAF) {
+				Value value = a_instance.getValueAtIndex(feature);
+				if (value.getValueType() == Value.MISSING_VALUE) {
+					break;
+				}
+				int child;
+				if (value.getValueType() == Value.NUMERIC_VALUE) {
+					double number = (Double) value.getValue();
+					if (Double.isNaN(number)) {
+						break;
+					}
+					child = number <= d_tables.getDouble(d_thresholds + 8 * node) ? 0 : 1;
+				} else {
+					child = d_signature.getFeatureAtIndex(feature).findCategory((String) value.getValue());
+					if (child < 0) {
+						break;
+					}
+				}
+				node = d_tables.getInt(d_firstChildren + 4 * node) + child;
+			}
+			return d_tables.getInt(d_classes + 4 * node);
+		}
+
+		@Override
+		public Value classify(Instance a_instance) throws MLException {
+			d_signature.validate(a_instance, false);
+			int nodeClass = findLeafClass(a_instance);
+			return nodeClass < 0 ? null : d_classValues[nodeClass];
+		}
+
+		@Override
+		public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+			checkBatch(a_instances, a_classes, a_posteriors);
+			for (int i=0; i<a_instances.size(); i++) {
+				a_classes[i] = Math.max(findLeafClass(a_instances.get(i)), 0);
+				if (a_posteriors != null) {
+					writeOneHot(i, a_classes[i], a_posteriors);
+				}
+			}
+		}
+	}
+
+	/**
+	 * See DensityClustering.writeMapped: the centroid of each class value.
+	 */
+	private static class MappedDensityClustering extends MappedClassifier {
+
+		private final int[] d_centroids;
+
+		private final int d_numCoords;
+
+		MappedDensityClustering(Signature a_signature, ClassifierConfig a_config, ByteBuffer a_tables) throws IOException {
+			super(Constants.TYPE_DENSITY_CLUSTER, a_signature, a_config, a_tables);
+			d_numCoords = d_signature.size() - 1;
+			d_centroids = new int[d_signature.getClassFeature().numberOfCategories()];
+			for (int c=0; c<d_centroids.length; c++) {
+				d_centroids[c] = nextArray(d_numCoords, 8);
+			}
+			endTables();
+		}
+
+		// Same as DensityClustering.distance
+		private double distance(double[] a_coords, int a_centroid) {
+			if (d_numCoords == 2) {
+				return DensityClustering.gpsDistance(a_coords[0], a_coords[1],
+						d_tables.getDouble(a_centroid), d_tables.getDouble(a_centroid + 8));
+			}
+			double sqrSum = 0;
+			for (int i=0; i<d_numCoords; i++) {
+				sqrSum += Math.pow(a_coords[i] - d_tables.getDouble(a_centroid + 8 * i), 2);
+			}
+			return Math.sqrt(sqrSum);
+		}
+
+		private int closestCentroid(Instance a_instance, double[] a_coords) {
+			for (int j=0; j<d_numCoords; j++) {
+				a_coords[j] = (Double) a_instance.getValueAtIndex(j).getValue();
+			}
+			double minDistance = Double.MAX_VALUE;
+			int minIndex = 0;
+			for (int c=0; c<d_centroids.length; c++) {
+				double curDistance = distance(a_coords, d_centroids[c]);
+				if (curDistance < minDistance) {
+					minIndex = c;
+					minDistance = curDistance;
+				}
+			}
+			return minIndex;
+		}
+
+		@Override
+		public Value classify(Instance a_instance) throws MLException {
+			d_signature.validate(a_instance, false);
+			int closest = closestCentroid(a_instance, new double[d_numCoords]);
+			return new Value(d_signature.getClassFeature().categoryOfIndex(closest), Value.NOMINAL_VALUE);
+		}
+
+		@Override
+		public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+			checkBatch(a_instances, a_classes, a_posteriors);
+			double[] coords = new double[d_numCoords];
+			for (int i=0; i<a_instances.size(); i++) {
+				a_classes[i] = closestCentroid(a_instances.get(i), coords);
+				if (a_posteriors != null) {
+					writeOneHot(i, a_classes[i], a_posteriors);
+				}
+			}
+		}
+	}
+
+	/**
+	 * See ZeroR.writeMapped: the class counts, or the sum and count of a numeric class.
+	 */
+	private static class MappedZeroR extends MappedClassifier {
+
+		private final int d_classCounts;
+
+		private final int d_numCounts;
+
+		MappedZeroR(Signature a_signature, ClassifierConfig a_config, ByteBuffer a_tables) throws IOException {
+			super(Constants.TYPE_ZERO_R, a_signature, a_config, a_tables);
+			d_numCounts = d_signature.getClassFeature().getFeatureType() == Feature.NOMINAL ?
+					d_signature.getClassFeature().numberOfCategories() : 2;
+			d_classCounts = nextArray(d_numCounts, 8);
+			endTables();
+		}
+
+		private double count(int a_index) {
+			return d_tables.getDouble(d_classCounts + 8 * a_index);
+		}
+
+		// Same as ZeroR.classify
+		private int majority() {
+			double maxCount = 0;
+			int maxValueIndex = 0;
+			for (int i=0; i<d_numCounts; i++) {
+				if (count(i) > maxCount) {
+					maxValueIndex = i;
+					maxCount = count(i);
+				}
+			}
+			return maxValueIndex;
+		}
+
+		@Override
+		public Value classify(Instance a_instance) throws MLException {
+			d_signature.validate(a_instance, false);
+			if (d_signature.getClassFeature().getFeatureType() == Feature.NOMINAL) {
+				return new Value(d_signature.getClassFeature().categoryOfIndex(majority()), Value.NOMINAL_VALUE);
+			} else {
+				return new Value(count(0)/count(1), Value.NUMERIC_VALUE);
+			}
+		}
+
+		@Override
+		public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+			checkBatch(a_instances, a_classes, a_posteriors);
+			int numInstances = a_instances.size();
+			if (d_signature.getClassFeature().getFeatureType() == Feature.NOMINAL) {
+				Arrays.fill(a_classes, 0, numInstances, majority());
+				if (a_posteriors != null) {
+					double totalCount = 0;
+					for (int i=0; i<d_numCounts; i++) {
+						totalCount += count(i);
+					}
+					for (int j=0; j<numInstances; j++) {
+						for (int i=0; i<d_numCounts; i++) {
+							a_posteriors[j * d_numCounts + i] = totalCount > 0 ? count(i)/totalCount : 1.0/d_numCounts;
+						}
+					}
+				}
+			} else {
+				Arrays.fill(a_classes, 0, numInstances, -1);
+				if (a_posteriors != null) {
+					Arrays.fill(a_posteriors, 0, numInstances, count(0)/count(1));
+				}
+			}
+		}
+	}
+}
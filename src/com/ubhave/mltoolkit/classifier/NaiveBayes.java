@@ -21,17 +21,25 @@
  ******************************************************************************/
 package com.ubhave.mltoolkit.classifier;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.util.Log;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.JsonArrays;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
 import com.ubhave.mltoolkit.utils.ClassifierConfig;
 import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Dataset;
 import com.ubhave.mltoolkit.utils.Feature;
 import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceStream;
 import com.ubhave.mltoolkit.utils.MLException;
 import com.ubhave.mltoolkit.utils.Signature;
 import com.ubhave.mltoolkit.utils.Value;
@@ -42,19 +50,56 @@ import com.ubhave.mltoolkit.utils.Value;
  * Laplace smoothing is supported for nominal attributes, so that classes with
  * high preference for a single value do not overfit. 
  * The classifier is an online classifier, i.e. training can happen iteratively. 
+ * The counts add up, so classifiers trained on separate data can be merged, and 
+ * large datasets are counted in shards on several threads.
+ * 
+ * Counts are kept in a single flat table, and posteriors are calculated in 
+ * log-space from per-class parameters that are precomputed once after training,
+ * so that the product of many small probabilities does not underflow.
+ * 
+ * Classifications never wait for training. They read an immutable set of 
+ * parameters, which training replaces with a new version once it is done. 
+ * Updates are collected in striped accumulators without taking the lock of the
+ * classifier, and are merged into the counts and published at most once per 
+ * Constants.PUBLISH_INTERVAL, by the update or classification that finds the 
+ * classifier idle. Classifications never wait for the stripes being updated.
+ * 
+ * Old instances can be forgotten, see Constants.DECAY_FACTOR and WINDOW_SIZE. 
+ * The weight of an instance then depends on the instances before it, so 
+ * updates are counted in order, under the lock.
  * 
  * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
  *
  */
-public class NaiveBayes extends Classifier implements OnlineClassifier {
+public class NaiveBayes extends Classifier implements OnlineClassifier, MergeableClassifier {
 
 	private static final String TAG = "NaiveBayes";
 	
-	private static Object d_lock = new Object();
+	// Variance floor for Gaussians estimated from (nearly) identical values.
+	private static final double MIN_VARIANCE = 1e-6;
+	
+	private static final double LOG_SQRT_2PI = 0.5 * Math.log(2 * Math.PI);
+	
+	// The decay scale is folded into the counts before it grows this large
+	private static final double MAX_SCALE = 1e100;
+	
+	// Datasets with fewer rows per thread are counted by the calling thread
+	private static final int MIN_SHARD_ROWS = 8192;
+	
+	// Guards the counts, and the publication of the log-space parameters.
+	private final transient ReentrantReadWriteLock d_lock = new ReentrantReadWriteLock();
+	
+	// Updates of the counts, not yet merged into d_classCounts and d_counts
+	private final transient StripedAccumulator d_accumulator = new StripedAccumulator();
 	
 	// For each feature we hold the count of occurrences of every class variable value.
 	// These are further bisected to the feature values in case of NOMINAL features.
 	// For NUMERIC features we keep stats necessary for Gaussian distribution calculation.
+	// The table is indexed by [feature][class][category], see cell().
+	private double[] d_counts;
+	
+	// Per-feature, per-class counts keyed by names, as saved by earlier versions
+	// of the classifier. Only present until migrated to d_counts.
 	private HashMap<String, HashMap<String, double[]>> d_valueCounts;
 
     // Holds the number of occurrences of each value that the class variable may take.
@@ -63,6 +108,63 @@ public class NaiveBayes extends Classifier implements OnlineClassifier {
     // Fixes the problem of too few occurrences in certain bins.
 	private boolean d_LaplaceSmoothing;
 	
+	// Start of each feature's block in d_counts, and the number of cells
+	// per class in it (categories for NOMINAL, 3 for NUMERIC, 0 for the class feature).
+	private transient int[] d_offsets;
+	
+	private transient int[] d_widths;
+	
+	// Log-space parameters that classifications read without locking. They are 
+	// never modified, but replaced as a whole by a new version.
+	private static final class Parameters {
+		
+		final double[] logPriors;
+		
+		// Laid out exactly as d_counts. A NOMINAL cell holds log P(value|class), a NUMERIC
+		// block holds the mean, 1/(2*variance) and the log of the Gaussian normalizer.
+		final double[] logTable;
+		
+		final long version;
+		
+		// When the parameters were published, and when the window drops old counts next
+		final long publishTime;
+		
+		final long dueTime;
+		
+		Parameters(double[] a_logPriors, double[] a_logTable, long a_version, long a_publishTime, long a_dueTime) {
+			logPriors = a_logPriors;
+			logTable = a_logTable;
+			version = a_version;
+			publishTime = a_publishTime;
+			dueTime = a_dueTime;
+		}
+	}
+	
+	private transient volatile Parameters d_parameters;
+	
+	// Cleared when the counts change under the lock, after the parameters were published
+	private transient volatile boolean d_logTableValid;
+	
+	private transient long d_publishInterval = Constants.DEFAULT_PUBLISH_INTERVAL;
+	
+	private transient volatile boolean d_layoutReady;
+	
+	private transient int d_numThreads;
+	
+	// With decay, the counts are kept multiplied by d_scale, which grows by 
+	// 1/d_decayFactor with every instance, so that older counts lose weight 
+	// without being touched. With a window, the counts are the sum of its buckets.
+	private transient double d_decayFactor = Constants.DEFAULT_DECAY_FACTOR;
+	
+	private transient double d_scale = 1.0;
+	
+	private transient CountWindow d_window;
+	
+	// Used when deserializing with reflection, so that the locks are created
+	private NaiveBayes() {
+		super(null, null);
+	}
+	
 	public NaiveBayes(Signature a_signature, ClassifierConfig a_config) {
 		super(a_signature, a_config);		
 		d_type = Constants.TYPE_NAIVE_BAYES;
@@ -72,102 +174,264 @@ public class NaiveBayes extends Classifier implements OnlineClassifier {
 		} else {
 			d_LaplaceSmoothing = Constants.DEFAULT_LAPLACE_SMOOTHING;
 		}
+		d_numThreads = TrainingTasks.numThreads(a_config);
+		if (a_config.containsParam(Constants.DECAY_FACTOR)) {
+			double decayFactor = ((Number) a_config.getParam(Constants.DECAY_FACTOR)).doubleValue();
+			if (decayFactor > 0 && decayFactor < 1) {
+				d_decayFactor = decayFactor;
+			}
+		}
+		if (a_config.containsParam(Constants.PUBLISH_INTERVAL)) {
+			d_publishInterval = ((Number) a_config.getParam(Constants.PUBLISH_INTERVAL)).longValue();
+		}
 		
 		initialize();
 	}
 
 	public void initialize() {
 		
-		d_valueCounts = new HashMap<String, HashMap<String, double[]>>();
-		ArrayList<Feature> features = d_signature.getFeatures();
 		Feature classFeature = d_signature.getClassFeature(); 
-		ArrayList<String> classValues = classFeature.getValues();
-
-		d_classCounts = new double[classFeature.numberOfCategories()];	
-		Arrays.fill(d_classCounts, 0.0);
 
-		for(Feature feature : features){			
-			HashMap<String, double[]> featureCount = new HashMap<String, double[]>();
+		d_lock.writeLock().lock();
+		try {
+			d_valueCounts = null;
+			d_classCounts = new double[classFeature.numberOfCategories()];	
+			d_counts = new double[computeLayout()];
+			d_scale = 1.0;
+			d_window = createWindow(d_counts.length + d_classCounts.length);
+			d_accumulator.clear();
+			d_layoutReady = true;
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	private CountWindow createWindow(int a_tableLength) {
+		long size = 0;
+		long duration = 0;
+		int numBuckets = Constants.DEFAULT_WINDOW_BUCKETS;
+		if (d_config.containsParam(Constants.WINDOW_SIZE)) {
+			size = ((Number) d_config.getParam(Constants.WINDOW_SIZE)).longValue();
+		}
+		if (d_config.containsParam(Constants.WINDOW_DURATION)) {
+			duration = ((Number) d_config.getParam(Constants.WINDOW_DURATION)).longValue();
+		}
+		if (d_config.containsParam(Constants.WINDOW_BUCKETS)) {
+			numBuckets = ((Number) d_config.getParam(Constants.WINDOW_BUCKETS)).intValue();
+		}
+		if (size <= 0 && duration <= 0) {
+			return null;
+		}
+		return new CountWindow(size, duration, numBuckets, a_tableLength);
+	}
+	
+	private boolean isForgetting() {
+		return d_window != null || d_decayFactor < 1;
+	}
+	
+	// Calculates the offsets of feature blocks and returns the size of the whole table.
+	private int computeLayout() {
+		int numFeatures = d_signature.size();
+		int numClasses = d_signature.getClassFeature().numberOfCategories();
+		int[] offsets = new int[numFeatures];
+		int[] widths = new int[numFeatures];
+		int size = 0;
 		
-			for (String classValue : classValues){										
-				double[] classFeatureCounts = null;
-				if (feature.getFeatureType() == Feature.NOMINAL) { 
-					classFeatureCounts = new double[feature.numberOfCategories()];
+		for (int i=0; i<numFeatures; i++) {
+			Feature feature = d_signature.getFeatureAtIndex(i);
+			if (i == d_signature.getClassIndex()) {
+				widths[i] = 0;
+			}
+			else if (feature.getFeatureType() == Feature.NOMINAL) { 
+				widths[i] = feature.numberOfCategories();
+			}
+			else {
+				// For NUMERIC values we have to keep:
+				// - count
+				// - sum of values
+				// - sum of square values 
+				// so that we can get the normal distribution in the end
+				widths[i] = 3;
+			}
+			offsets[i] = size;
+			size += widths[i] * numClasses;
+		}
+		d_widths = widths;
+		d_offsets = offsets;
+		return size;
+	}
+	
+	// Classifiers deserialized from a file do not go through the constructor,
+	// so the layout is calculated (and old tables are migrated) on first use.
+	private void ensureLayout() {
+		if (d_layoutReady) {
+			return;
+		}
+		synchronized (this) {
+			if (d_layoutReady) {
+				return;
+			}
+			int size = computeLayout();
+			if (d_counts == null) {
+				d_counts = new double[size];
+				if (d_valueCounts != null) {
+					migrateValueCounts();
 				}
-				else if (feature.getFeatureType() == Feature.NUMERIC) {
-					// For NUMERIC values we have to keep:
-					// - count
-					// - sum of values
-					// - sum of square values 
-					// so that we can get the normal distribution in the end
-					classFeatureCounts = new double[3];
+			}
+			d_valueCounts = null;
+			d_layoutReady = true;
+		}
+	}
+	
+	private void migrateValueCounts() {
+		Feature classFeature = d_signature.getClassFeature();
+		for (int i=0; i<d_signature.size(); i++) {
+			HashMap<String, double[]> featureCounts = d_valueCounts.get(d_signature.getFeatureAtIndex(i).name());
+			if (featureCounts == null || d_widths[i] == 0) {
+				continue;
+			}
+			for (int c=0; c<classFeature.numberOfCategories(); c++) {
+				double[] classFeatureCounts = featureCounts.get(classFeature.categoryOfIndex(c));
+				if (classFeatureCounts != null) {
+					System.arraycopy(classFeatureCounts, 0, d_counts, cell(i, c, 0), d_widths[i]);
 				}
-				
-				Arrays.fill(classFeatureCounts, 0.0);
-				featureCount.put(classValue, classFeatureCounts);
-				//Log.d(TAG, "Feature counts put for class value "+classValue);
-			}
-			String output = "Feature counts put for "+feature.name()+": ";
-			for (String key : featureCount.keySet()) {
-					String miniOutput = "";
-					double classFeatureCountsTest[] = featureCount.get(key);
-					for (int i=0; i<classFeatureCountsTest.length; i++) {
-						miniOutput += classFeatureCountsTest[i]+",";
-					}
-				
-					output +="{ "+key+", ["+miniOutput+"]},";					
 			}
-			Log.d(TAG, output);
-			d_valueCounts.put(feature.name(), featureCount);
 		}
 	}
-
+	
+	private int cell(int a_feature, int a_class, int a_category) {
+		return d_offsets[a_feature] + a_class * d_widths[a_feature] + a_category;
+	}
 
 	public void update(Instance a_instance) throws MLException {
 				
-		if (!d_signature.checkCompliance(a_instance, true)){
-			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-					"Instance is not compatible with the dataset used for classifier construction.");					
-		}
+		d_signature.validate(a_instance, true);
+		updateTrusted(a_instance);
+		changed();
+	}
+	
+	// Adds an instance that has already been validated to this thread's stripe.
+	private void updateTrusted(Instance a_instance) throws MLException {
 
-		Feature classFeature = d_signature.getClassFeature();
-		
 		Value classValue = a_instance.getValueAtIndex(d_signature.getClassIndex());
 		
-		if (classValue.getValueType() == Value.NUMERIC_VALUE &&
-				classValue.getValueType() == Value.MISSING_VALUE){
+		if (classValue.getValueType() != Value.NOMINAL_VALUE){
 			throw new MLException(MLException.INCOMPATIBLE_FEATURE_TYPE, 
 					"Class variable has to be of type NOMINAL.");
 		}
 		
+		ensureLayout();
+		
+		if (isForgetting()) {
+			d_lock.writeLock().lock();
+			try {
+				countInOrder(a_instance);
+			} finally {
+				d_lock.writeLock().unlock();
+			}
+		} else {
+			// A stripe holds the counts followed by the class counts
+			StripedAccumulator.Stripe stripe = d_accumulator.lock(d_counts.length + d_classCounts.length);
+			try {
+				double[] table = stripe.table();
+				count(a_instance, table, table, d_counts.length, 1);
+			} finally {
+				stripe.unlock();
+			}
+		}
+		publishIfDue();
+	}
+	
+	// Publishes the updates if the publish interval has passed since the last 
+	// publication, unless another thread holds the lock.
+	private void publishIfDue() {
+		if (d_publishInterval <= 0) {
+			return;
+		}
+		Parameters parameters = d_parameters;
+		if (parameters != null && System.currentTimeMillis() - parameters.publishTime < d_publishInterval) {
+			return;
+		}
+		if (d_lock.writeLock().tryLock()) {
+			try {
+				publish(false);
+			} finally {
+				d_lock.writeLock().unlock();
+			}
+		}
+	}
+	
+	// Counts the next instance when old ones are forgotten. Called with the write lock held.
+	private void countInOrder(Instance a_instance) {
+		count(a_instance, d_counts, d_classCounts, 0, nextWeight());
+		if (d_window != null) {
+			double[] bucket = d_window.current();
+			count(a_instance, bucket, bucket, d_counts.length, 1);
+		}
+		d_logTableValid = false;
+	}
+	
+	// Same as countInOrder, for a row of a dataset
+	private void countInOrder(Dataset a_dataset, int a_row) {
+		count(a_dataset, a_row, d_counts, d_classCounts, 0, nextWeight());
+		if (d_window != null) {
+			double[] bucket = d_window.current();
+			count(a_dataset, a_row, bucket, bucket, d_counts.length, 1);
+		}
+		d_logTableValid = false;
+	}
+	
+	// Makes room for the next instance, and returns the weight it is counted with.
+	private double nextWeight() {
+		if (d_window != null) {
+			if (d_window.next(System.currentTimeMillis())) {
+				d_window.sumTo(d_counts, d_classCounts);
+			}
+			return 1;
+		}
+		d_scale /= d_decayFactor;
+		if (d_scale > MAX_SCALE) {
+			for (int i=0; i<d_counts.length; i++) {
+				d_counts[i] /= d_scale;
+			}
+			for (int c=0; c<d_classCounts.length; c++) {
+				d_classCounts[c] /= d_scale;
+			}
+			d_scale = 1.0;
+		}
+		return d_scale;
+	}
+	
+	// Adds the instance, with the given weight, to the counts, and to the class counts starting at a_classOffset.
+	private void count(Instance a_instance, double[] a_counts, double[] a_classCounts, int a_classOffset, double a_weight) {
+		
+		Feature classFeature = d_signature.getClassFeature();
+		Value classValue = a_instance.getValueAtIndex(d_signature.getClassIndex());
+		
 		int classValueInt = classFeature.indexOfCategory((String) classValue.getValue());
 		
-		d_classCounts[classValueInt] += 1;
+		a_classCounts[a_classOffset + classValueInt] += a_weight;
 		
 		for (int i=0; i<a_instance.size(); i++){
 			
-			double[] classFeatureCounts = (d_valueCounts.get(d_signature.getFeatureAtIndex(i).name()))
-					.get(classFeature.categoryOfIndex(classValueInt));
+			if (d_widths[i] == 0) {
+				continue;
+			}
+			
 			Value featureValue = a_instance.getValueAtIndex(i);
 			
 			if (featureValue.getValueType() == Value.NOMINAL_VALUE){
 				Feature currentFeature = d_signature.getFeatureAtIndex(i); 
 				int featureValueCat = currentFeature.indexOfCategory((String) featureValue.getValue());				
-				classFeatureCounts[featureValueCat] += 1;
-				String output = "Update:"+d_signature.getFeatureAtIndex(i).name()
-						+"["+(String) classValue.getValue()+"] = {";
-				for (int j=0; j<classFeatureCounts.length; j++) {
-					output += classFeatureCounts[j]+",";
-				}
-				Log.d(TAG, output + "}");
+				a_counts[cell(i, classValueInt, featureValueCat)] += a_weight;
 			}
 			if (featureValue.getValueType() == Value.NUMERIC_VALUE){
-				classFeatureCounts[0] += 1; // count				
-				classFeatureCounts[1] += (Double)featureValue.getValue(); // value sum
-				classFeatureCounts[2] += Math.pow((Double)featureValue.getValue(),2); // value square sum
-				Log.d(TAG, "Update:"+d_signature.getFeatureAtIndex(i).name()
-						+"["+(String) classValue.getValue()+"] = "
-						+"{"+classFeatureCounts[0]+","+classFeatureCounts[1]+","+classFeatureCounts[2]+"}");
+				double value = (Double) featureValue.getValue();
+				int base = cell(i, classValueInt, 0);
+				a_counts[base] += a_weight; // count				
+				a_counts[base + 1] += a_weight * value; // value sum
+				a_counts[base + 2] += a_weight * value * value; // value square sum
 			}
 			// Do nothing for a missing value.
 		}
@@ -177,165 +441,641 @@ public class NaiveBayes extends Classifier implements OnlineClassifier {
 	@Override
 	public void train(ArrayList<Instance> a_instances) throws MLException {
 		
-		for(Instance a_instance : a_instances){
-			synchronized (d_lock) {
-				this.update(a_instance);
+		d_signature.getValidator().validateAll(a_instances, true);
+		for (Instance a_instance : a_instances) {
+			if (a_instance.getValueAtIndex(d_signature.getClassIndex()).getValueType() != Value.NOMINAL_VALUE) {
+				throw new MLException(MLException.INCOMPATIBLE_FEATURE_TYPE, 
+						"Class variable has to be of type NOMINAL.");
+			}
+		}
+		
+		ensureLayout();
+		d_lock.writeLock().lock();
+		try {
+			for (Instance a_instance : a_instances) {
+				if (isForgetting()) {
+					countInOrder(a_instance);
+				} else {
+					count(a_instance, d_counts, d_classCounts, 0, 1);
+				}
 			}
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
 		}
+		changed();
 	}
 	
-	
-	public double[] getDistribution(Instance a_instance) throws MLException {
+	@Override
+	public void train(Dataset a_dataset) throws MLException {
+		checkDataset(a_dataset);
 		
-		if (!d_signature.checkCompliance(a_instance, false)){
-			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-					"Instance is not compatible with the dataset used for classifier construction.");					
+		Feature classFeature = d_signature.getClassFeature();
+		if (classFeature.getFeatureType() != Feature.NOMINAL) {
+			throw new MLException(MLException.INCOMPATIBLE_FEATURE_TYPE, 
+					"Class variable has to be of type NOMINAL.");
 		}
 		
-		Feature classFeature = d_signature.getClassFeature(); 
-		ArrayList<String> classValues = classFeature.getValues();
-		double[] classPriors = new double[classValues.size()];
-		double[] classPosteriors = new double[classValues.size()];
+		ensureLayout();
+		int numShards = Math.min(d_numThreads > 0 ? d_numThreads : Runtime.getRuntime().availableProcessors(), 
+				a_dataset.size() / MIN_SHARD_ROWS);
+		if (numShards <= 1 || isForgetting()) {
+			d_lock.writeLock().lock();
+			try {
+				if (isForgetting()) {
+					for (int row=0; row<a_dataset.size(); row++) {
+						if (!a_dataset.isMissing(row, d_signature.getClassIndex())) {
+							countInOrder(a_dataset, row);
+						}
+					}
+				} else {
+					count(a_dataset, 0, a_dataset.size(), d_counts, d_classCounts);
+				}
+				publish();
+			} finally {
+				d_lock.writeLock().unlock();
+			}
+			changed();
+			return;
+		}
 		
-		int classCountsTotal = 0;
-		for (int j=0; j<d_classCounts.length; j++) classCountsTotal += d_classCounts[j];
-		for (int j=0; j<classPriors.length; j++) {
-			if (classCountsTotal == 0) {
-				classPriors[j] = 1.0/classPriors.length; 
+		// Each shard of rows is counted into tables of its own, without the lock, 
+		// and the tables are then added to the counts, as in merge.
+		final Dataset dataset = a_dataset;
+		final double[][] shardCounts = new double[numShards][];
+		final double[][] shardClassCounts = new double[numShards][];
+		ArrayList<Runnable> tasks = new ArrayList<Runnable>(numShards);
+		for (int i=0; i<numShards; i++) {
+			final int shard = i;
+			final int from = (int) ((long) dataset.size() * i / numShards);
+			final int to = (int) ((long) dataset.size() * (i + 1) / numShards);
+			tasks.add(new Runnable() {
+				public void run() {
+					shardCounts[shard] = new double[d_counts.length];
+					shardClassCounts[shard] = new double[d_classCounts.length];
+					count(dataset, from, to, shardCounts[shard], shardClassCounts[shard]);
+				}
+			});
+		}
+		TrainingTasks.run(tasks, d_numThreads, "NaiveBayes training");
+		for (int i=1; i<numShards; i++) {
+			for (int j=0; j<shardCounts[0].length; j++) {
+				shardCounts[0][j] += shardCounts[i][j];
+			}
+			for (int j=0; j<shardClassCounts[0].length; j++) {
+				shardClassCounts[0][j] += shardClassCounts[i][j];
+			}
+		}
+		add(shardCounts[0], shardClassCounts[0]);
+		changed();
+	}
+	
+	// Counts add up, so a stream is counted chunk by chunk
+	@Override
+	public void train(InstanceStream a_stream) throws MLException {
+		trainInChunks(a_stream);
+	}
+	
+	// Adds the rows [a_from, a_to) of the dataset to the tables.
+	private void count(Dataset a_dataset, int a_from, int a_to, double[] a_counts, double[] a_classCounts) {
+		int classIndex = d_signature.getClassIndex();
+		for (int row=a_from; row<a_to; row++) {
+			if (!a_dataset.isMissing(row, classIndex)) {
+				count(a_dataset, row, a_counts, a_classCounts, 0, 1);
+			}
+		}
+	}
+	
+	// Adds a row, with the given weight, to the counts, and to the class counts 
+	// starting at a_classOffset. The class value of the row must not be missing.
+	private void count(Dataset a_dataset, int a_row, double[] a_counts, double[] a_classCounts, 
+			int a_classOffset, double a_weight) {
+		int numFeatures = d_signature.size();
+		int classValueInt = a_dataset.getNominal(a_row, d_signature.getClassIndex());
+		a_classCounts[a_classOffset + classValueInt] += a_weight;
+		
+		for (int i=0; i<numFeatures; i++) {
+			if (d_widths[i] == 0 || a_dataset.isMissing(a_row, i)) {
+				continue;
+			}
+			if (d_signature.getFeatureAtIndex(i).getFeatureType() == Feature.NOMINAL) {
+				a_counts[cell(i, classValueInt, a_dataset.getNominal(a_row, i))] += a_weight;
 			} else {
-				classPriors[j] = d_classCounts[j]/classCountsTotal;
+				double value = a_dataset.getNumeric(a_row, i);
+				int base = cell(i, classValueInt, 0);
+				a_counts[base] += a_weight; // count
+				a_counts[base + 1] += a_weight * value; // value sum
+				a_counts[base + 2] += a_weight * value * value; // value square sum
 			}
-			classPosteriors[j] = classPriors[j];
-			
 		}
+	}
+	
+	public void merge(Classifier a_other) throws MLException {
+		checkMergeable(a_other);
+		
+		// The counts of the other classifier are copied first, so that the 
+		// two classifiers are never locked at once.
+		NaiveBayes other = (NaiveBayes) a_other;
+		double[] counts;
+		double[] classCounts;
+		other.lockForReading();
+		try {
+			counts = other.unscaled(other.d_counts);
+			classCounts = other.unscaled(other.d_classCounts);
+		} finally {
+			other.d_lock.readLock().unlock();
+		}
+		ensureLayout();
+		add(counts, classCounts);
+		changed();
+	}
+	
+	// Returns a copy of the counts without the decay scale.
+	private double[] unscaled(double[] a_counts) {
+		double[] counts = a_counts.clone();
+		if (d_scale != 1.0) {
+			for (int i=0; i<counts.length; i++) {
+				counts[i] /= d_scale;
+			}
+		}
+		return counts;
+	}
+	
+	// Adds counts as those of the latest instances. 
+	private void add(double[] a_counts, double[] a_classCounts) {
+		d_lock.writeLock().lock();
+		try {
+			if (d_window != null && d_window.expire(System.currentTimeMillis())) {
+				d_window.sumTo(d_counts, d_classCounts);
+			}
+			for (int i=0; i<d_counts.length; i++) {
+				d_counts[i] += a_counts[i] * d_scale;
+			}
+			for (int c=0; c<d_classCounts.length; c++) {
+				d_classCounts[c] += a_classCounts[c] * d_scale;
+			}
+			if (d_window != null) {
+				double[] bucket = d_window.current();
+				for (int i=0; i<d_counts.length; i++) {
+					bucket[i] += a_counts[i];
+				}
+				for (int c=0; c<d_classCounts.length; c++) {
+					bucket[d_counts.length + c] += a_classCounts[c];
+				}
+			}
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	// Merges pending updates into the counts, and publishes a new version of the 
+	// parameters. Called with the write lock held.
+	private void publish() {
+		publish(true);
+	}
+	
+	// With a_wait false, stripes that are being updated are left for the next 
+	// publication instead of waiting for them.
+	private void publish(boolean a_wait) {
+		long now = System.currentTimeMillis();
+		if (a_wait) {
+			d_accumulator.drainTo(d_counts, d_classCounts);
+		} else {
+			d_accumulator.tryDrainTo(d_counts, d_classCounts);
+		}
+		if (d_window != null && d_window.expire(now)) {
+			d_window.sumTo(d_counts, d_classCounts);
+		}
+		// Cleared by any change from now on
+		d_logTableValid = true;
+		
+		Parameters previous = d_parameters;
+		d_parameters = computeParameters(previous == null ? 1 : previous.version + 1, now);
+	}
+	
+	// Calculates log priors and log-likelihood parameters from the counts.
+	private Parameters computeParameters(long a_version, long a_now) {
+		
+		int numClasses = d_classCounts.length;
+		double[] logPriors = new double[numClasses];
+		double[] logTable = new double[d_counts.length];
 		
-		//Log.d(TAG, "Class values: "+classValues);
-		String outputPrior="[";
-		for (int i=0; i<classPriors.length;i++) {
-			outputPrior += classPriors[i]+",";
+		double classCountsTotal = 0;
+		for (int j=0; j<numClasses; j++) classCountsTotal += d_classCounts[j];
+		for (int j=0; j<numClasses; j++) {
+			if (classCountsTotal == 0) {
+				logPriors[j] = -Math.log(numClasses); 
+			} else {
+				logPriors[j] = Math.log(d_classCounts[j]/classCountsTotal);
+			}
 		}
-		//Log.d(TAG, "Class priors: "+outputPrior);
 		
-		for (int i=0; i<a_instance.size(); i++){
-			Value featureValue = a_instance.getValueAtIndex(i);
-			Feature feature = d_signature.getFeatureAtIndex(i);
-			// for every feature (a specific value of it) we get a prob of each class
-			double[] classFeatureProbs = new double[classValues.size()];
+		// The weight of a single instance, as of now
+		double unit = d_scale;
+		for (int i=0; i<d_signature.size(); i++) {
+			int width = d_widths[i];
+			if (width == 0) {
+				continue;
+			}
+			boolean nominal = d_signature.getFeatureAtIndex(i).getFeatureType() == Feature.NOMINAL;
 			
-			// A map of all class values -> feature counts
-			HashMap<String, double[]> featureCounts = d_valueCounts.get(feature.name());
-
-		
-			for (String classValue : classValues){
+			for (int c=0; c<numClasses; c++) {
+				int base = cell(i, c, 0);
 				
-				double[] classFeatureCounts = featureCounts.get(classValue);		
-				int indexOfClassValue = classFeature.indexOfCategory(classValue);
-				double classFeatureTotal = 0;
-				
-				if (featureValue.getValueType() == Value.NOMINAL_VALUE) {
-					/*String printFeatureCounts = "Class feature counts: ";
-					for (int j=0; j<classFeatureCounts.length; j++) {
-						classFeatureTotal+=classFeatureCounts[j];
-						printFeatureCounts += classFeatureCounts[j]+", ";
-					}
-					Log.d(TAG, printFeatureCounts);
-					Log.d(TAG, "Feature value "+featureValue.getValue().toString()+" index: "+featureValueIndex);
-					*/
-					int featureValueIndex = feature.indexOfCategory((String) featureValue.getValue());	
+				if (nominal) {
+					double classFeatureTotal = 0;
+					for (int v=0; v<width; v++) classFeatureTotal += d_counts[base + v];
 					
-					if (d_LaplaceSmoothing){
-						classFeatureProbs[indexOfClassValue]=classFeatureCounts[featureValueIndex]+1/
-								(classFeatureTotal + feature.numberOfCategories());					
-					}
-					else {
-						if (classFeatureTotal > 0){
-							classFeatureProbs[indexOfClassValue]=classFeatureCounts[featureValueIndex]/classFeatureTotal;
+					for (int v=0; v<width; v++) {
+						if (d_LaplaceSmoothing) {
+							logTable[base + v] = Math.log((d_counts[base + v] + unit)/(classFeatureTotal + width * unit));
+						} else if (classFeatureTotal > 0) {
+							logTable[base + v] = Math.log(d_counts[base + v]/classFeatureTotal);
 						}
+						// otherwise no data for the feature, and it does not influence the posterior
 					}
-					//Log.d(TAG, "classFeatureProbs["+indexOfClassValue+"]= "+classFeatureProbs[indexOfClassValue]);
-					classPosteriors[indexOfClassValue] *= classFeatureProbs[indexOfClassValue];
-					
-				} else if (featureValue.getValueType() == Value.NUMERIC_VALUE) {
-					
-					double mean = 0;
-					double stdDev = 0;
-					// ignore features for which we have no data (those will have normalProb = 1) 
-					double normalProbability = 1; 
-					double featureValueDouble = (Double)featureValue.getValue();
-					
-					if (classFeatureCounts[0] > 0) {
-						mean = classFeatureCounts[1]/classFeatureCounts[0];
-						stdDev = Math.sqrt(classFeatureCounts[2] - Math.pow(mean,2));
-						normalProbability = Math.exp(Math.pow(featureValueDouble - mean ,2))/(2*stdDev*Math.sqrt(2*Math.PI));
-						// NOTE: if the current value equals the mean the normal probability goes to infinity;
-						// to prevent this we, cap it to 1.0.
-						if (Double.isInfinite(normalProbability)) normalProbability = 1.0;
-						
+				} else {
+					double count = d_counts[base];
+					// ignore features for which we have no data (those contribute log(1) = 0) 
+					if (count > 0) {
+						double mean = d_counts[base + 1]/count;
+						double variance = Math.max(d_counts[base + 2]/count - mean * mean, MIN_VARIANCE);
+						logTable[base] = mean;
+						logTable[base + 1] = 1.0/(2 * variance);
+						logTable[base + 2] = -LOG_SQRT_2PI - 0.5 * Math.log(variance);
 					}
-					
-					/*Log.d(TAG, "calc for: "+ classValue
-							+" and " + feature.name()
-							+" resulting probability "+normalProbability+" total "+classPosteriors[indexOfClassValue]);
-					*/
-					classPosteriors[indexOfClassValue] *= normalProbability;
 				}
 			}
 		}
 		
-		String outputPosterior="[";
-		for (int i=0; i<classPosteriors.length;i++) {
-			outputPosterior += classPosteriors[i]+",";
+		long dueTime = d_window == null ? Long.MAX_VALUE : d_window.dueTime();
+		return new Parameters(logPriors, logTable, a_version, a_now, dueTime);
+	}
+	
+	/**
+	 * Returns the version of the parameters that classifications currently use. 
+	 * It grows by one every time training or updates are published.
+	 */
+	public long getParametersVersion() {
+		return parameters().version;
+	}
+	
+	/**
+	 * Returns the logarithm of the joint probability of the instance 
+	 * and each of the class values (i.e. the unnormalized log posterior).
+	 */
+	public double[] getLogDistribution(Instance a_instance) throws MLException {
+		
+		d_signature.validate(a_instance, false);
+		
+		Parameters parameters = parameters();
+		double[] logPosteriors = new double[parameters.logPriors.length];
+		logPosteriors(parameters, a_instance, logPosteriors);
+		return logPosteriors;
+	}
+	
+	// Returns the published parameters without waiting for the lock. Outdated 
+	// parameters are published anew by the reader that finds the lock free, 
+	// skipping the stripes that are being updated, while others keep reading 
+	// the previous version. Only a classifier that has never published 
+	// (i.e. was deserialized) makes readers wait.
+	private Parameters parameters() {
+		ensureLayout();
+		Parameters parameters = d_parameters;
+		if (parameters != null) {
+			if (!isOutdated(parameters) || !d_lock.writeLock().tryLock()) {
+				return parameters;
+			}
+		} else {
+			d_lock.writeLock().lock();
+		}
+		try {
+			publish(false);
+			return d_parameters;
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	private boolean isOutdated(Parameters a_parameters) {
+		long now = System.currentTimeMillis();
+		if (now >= a_parameters.dueTime) {
+			return true;
+		}
+		if (d_logTableValid && !d_accumulator.isPending()) {
+			return false;
+		}
+		return now - a_parameters.publishTime >= d_publishInterval;
+	}
+	
+	@Override
+	public void publishUpdates() {
+		ensureLayout();
+		d_lock.writeLock().lock();
+		try {
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	// Takes the read lock, after merging pending updates into the counts.
+	private void lockForReading() {
+		ensureLayout();
+		d_lock.readLock().lock();
+		if (d_logTableValid && !d_accumulator.isPending() 
+				&& (d_window == null || !d_window.isDue(System.currentTimeMillis()))) {
+			return;
+		}
+		d_lock.readLock().unlock();
+		
+		d_lock.writeLock().lock();
+		try {
+			publish();
+			// Downgrade, so that other readers can proceed 
+			d_lock.readLock().lock();
+		} finally {
+			d_lock.writeLock().unlock();
 		}
-		outputPosterior += "]";
-		//Log.d(TAG, "Class posteriors: "+outputPosterior);
+	}
+	
+	// Writes the log posteriors of a compliant instance to a_logPosteriors.
+	private void logPosteriors(Parameters a_parameters, Instance a_instance, double[] a_logPosteriors) {
+		
+		double[] logTable = a_parameters.logTable;
+		int numClasses = a_parameters.logPriors.length;
+		System.arraycopy(a_parameters.logPriors, 0, a_logPosteriors, 0, numClasses);
+		
+		for (int i=0; i<a_instance.size(); i++){
+			
+			if (d_widths[i] == 0) {
+				continue;
+			}
+			
+			Value featureValue = a_instance.getValueAtIndex(i);
+			
+			if (featureValue.getValueType() == Value.NOMINAL_VALUE) {
+				int featureValueIndex = d_signature.getFeatureAtIndex(i).indexOfCategory((String) featureValue.getValue());	
+				for (int c=0; c<numClasses; c++) {
+					a_logPosteriors[c] += logTable[cell(i, c, featureValueIndex)];
+				}
+			} else if (featureValue.getValueType() == Value.NUMERIC_VALUE) {
+				double featureValueDouble = (Double) featureValue.getValue();
+				for (int c=0; c<numClasses; c++) {
+					int base = cell(i, c, 0);
+					double diff = featureValueDouble - logTable[base];
+					a_logPosteriors[c] += logTable[base + 2] - diff * diff * logTable[base + 1];
+				}
+			}
+		}
+	}
+	
+	// Converts log posteriors to probabilities that sum up to one, written at a_offset of a_out.
+	static void normalize(double[] a_logPosteriors, double[] a_out, int a_offset) {
+		
+		int numClasses = a_logPosteriors.length;
+		double maxLog = Double.NEGATIVE_INFINITY;
+		for (int j=0; j<numClasses; j++) {
+			maxLog = Math.max(maxLog, a_logPosteriors[j]);
+		}
+		// No class value is possible at all
+		if (maxLog == Double.NEGATIVE_INFINITY) {
+			Arrays.fill(a_out, a_offset, a_offset + numClasses, 0.0);
+			return;
+		}
+		
+		double sum = 0;
+		for (int j=0; j<numClasses; j++) {
+			a_out[a_offset + j] = Math.exp(a_logPosteriors[j] - maxLog);
+			sum += a_out[a_offset + j];
+		}
+		for (int j=0; j<numClasses; j++) {
+			a_out[a_offset + j] /= sum;
+		}
+	}
+	
+	// When the classifier is not yet trained we return the first class value
+	static int maxAposterioriIndex(double[] a_logPosteriors) {
+		double maxAposteriori = Double.NEGATIVE_INFINITY;
+		int maxAposterioriIndex = 0;
+		for (int i=0; i<a_logPosteriors.length; i++){
+			if (a_logPosteriors[i] > maxAposteriori){
+				maxAposteriori = a_logPosteriors[i];
+				maxAposterioriIndex = i;
+			}
+		}
+		return maxAposterioriIndex;
+	}
+	
+	/**
+	 * Returns the posterior probability of each of the class values.
+	 */
+	public double[] getDistribution(Instance a_instance) throws MLException {
+		
+		double[] classPosteriors = getLogDistribution(a_instance);
+		normalize(classPosteriors, classPosteriors, 0);
 		return classPosteriors;
 	}
 
 
 	@Override
 	public Value classify(Instance a_instance) throws MLException {
-		synchronized (d_lock)
-		{
-			double[] classDistribution = getDistribution(a_instance);
-			double maxAposteriori = 0;
-			int maxAposterioriIndex = -1;
-			for (int i=0; i<classDistribution.length; i++){
-				if (classDistribution[i] > maxAposteriori){
-					maxAposteriori = classDistribution[i];
-					maxAposterioriIndex = i;
-				}
+		double[] classDistribution = getLogDistribution(a_instance);
+		
+		Value maxClass = new Value(d_signature.getClassFeature().categoryOfIndex(maxAposterioriIndex(classDistribution)), 
+				Value.NOMINAL_VALUE);
+		return maxClass;
+	}
+	
+	@Override
+	public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+		checkBatch(a_instances, a_classes, a_posteriors);
+		
+		// The whole batch is classified with the same version of the parameters
+		Parameters parameters = parameters();
+		int numClasses = parameters.logPriors.length;
+		double[] logPosteriors = new double[numClasses];
+		
+		for (int i=0; i<a_instances.size(); i++) {
+			logPosteriors(parameters, a_instances.get(i), logPosteriors);
+			a_classes[i] = maxAposterioriIndex(logPosteriors);
+			if (a_posteriors != null) {
+				normalize(logPosteriors, a_posteriors, i * numClasses);
 			}
-			
-			// When the classifier is not yet trained we return the first class value
-			if (maxAposterioriIndex == -1) {
-				maxAposterioriIndex = 0;
+		}
+	}
+
+	@Override
+	public void writeState(SnapshotWriter a_out) throws IOException {
+		lockForReading();
+		try {
+			a_out.writeBoolean(d_LaplaceSmoothing);
+			a_out.writeDoubleArray(unscaled(d_classCounts));
+			a_out.writeDoubleArray(unscaled(d_counts));
+			a_out.writeBoolean(d_window != null);
+			if (d_window != null) {
+				d_window.write(a_out);
 			}
-			
-			Value maxClass = new Value(d_signature.getClassFeature().categoryOfIndex(maxAposterioriIndex), 
-					Value.NOMINAL_VALUE);
-			return maxClass;
+		} finally {
+			d_lock.readLock().unlock();
 		}
 	}
+	
+	@Override
+	public void writeMapped(SnapshotWriter a_out) throws IOException {
+		Parameters parameters = parameters();
+		a_out.writeIntArray(d_offsets);
+		a_out.writeIntArray(d_widths);
+		a_out.writeDoubleArray(parameters.logPriors);
+		a_out.writeDoubleArray(parameters.logTable);
+	}
+	
+	@Override
+	public void readState(SnapshotReader a_in) throws IOException {
+		boolean laplaceSmoothing = a_in.readBoolean();
+		double[] classCounts = a_in.readDoubleArray();
+		double[] counts = a_in.readDoubleArray();
+		
+		ensureLayout();
+		d_lock.writeLock().lock();
+		try {
+			if (classCounts.length != d_classCounts.length || counts.length != d_counts.length) {
+				throw new IOException("Snapshot does not match the classifier signature.");
+			}
+			d_LaplaceSmoothing = laplaceSmoothing;
+			d_classCounts = classCounts;
+			d_counts = counts;
+			d_scale = 1.0;
+			// Snapshots of earlier versions have no window
+			boolean hasWindow = a_in.getVersion() >= 5 && a_in.readBoolean();
+			if (hasWindow && d_window == null) {
+				throw new IOException("Snapshot does not match the classifier configuration.");
+			}
+			if (hasWindow) {
+				d_window.read(a_in);
+				d_window.sumTo(d_counts, d_classCounts);
+			} else if (d_window != null) {
+				resetWindow();
+			}
+			d_accumulator.clear();
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	// Puts counts that were saved without a window into its current bucket.
+	private void resetWindow() {
+		double numInstances = 0;
+		for (double classCount : d_classCounts) {
+			numInstances += classCount;
+		}
+		d_window.reset(Math.round(numInstances), System.currentTimeMillis(), d_counts, d_classCounts);
+	}
+
+	@Override
+	public void writeJSON(JsonWriter a_out) throws IOException {
+		lockForReading();
+		try {
+			a_out.name("d_LaplaceSmoothing").value(d_LaplaceSmoothing);
+			a_out.name("d_classCounts");
+			JsonArrays.writeDoubleArray(a_out, unscaled(d_classCounts));
+			a_out.name("d_counts");
+			JsonArrays.writeDoubleArray(a_out, unscaled(d_counts));
+			if (d_window != null) {
+				a_out.name("d_window");
+				d_window.writeJSON(a_out);
+			}
+		} finally {
+			d_lock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public boolean readJSONField(String a_name, JsonReader a_in) throws IOException {
+		if (a_name.equals("d_LaplaceSmoothing")) {
+			boolean laplaceSmoothing = a_in.nextBoolean();
+			ensureLayout();
+			d_lock.writeLock().lock();
+			try {
+				d_LaplaceSmoothing = laplaceSmoothing;
+				publish();
+			} finally {
+				d_lock.writeLock().unlock();
+			}
+			return true;
+		}
+		if (a_name.equals("d_window") && d_window != null) {
+			ensureLayout();
+			d_lock.writeLock().lock();
+			try {
+				d_window.readJSON(a_in);
+				d_window.sumTo(d_counts, d_classCounts);
+				d_scale = 1.0;
+				d_accumulator.clear();
+				publish();
+			} finally {
+				d_lock.writeLock().unlock();
+			}
+			return true;
+		}
+		if (!a_name.equals("d_classCounts") && !a_name.equals("d_counts")) {
+			return false;
+		}
+		double[] values = JsonArrays.readDoubleArray(a_in);
+		
+		ensureLayout();
+		d_lock.writeLock().lock();
+		try {
+			boolean classCounts = a_name.equals("d_classCounts");
+			if (values.length != (classCounts ? d_classCounts.length : d_counts.length)) {
+				throw new IOException("Stored counts do not match the classifier signature.");
+			}
+			if (classCounts) {
+				d_classCounts = values;
+			} else {
+				d_counts = values;
+			}
+			d_scale = 1.0;
+			d_accumulator.clear();
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+		return true;
+	}
 
 	@Override
 	public void printClassifierInfo() {
+		lockForReading();
+		try {
+			printCounts();
+		} finally {
+			d_lock.readLock().unlock();
+		}
+	}
+	
+	private void printCounts() {
+		Feature classFeature = d_signature.getClassFeature();
 		StringBuilder builder = new StringBuilder();
 		builder.append("Classifier type: "+d_type+"\n");
 		builder.append("Signature: "+d_signature.toString()+"\n");
 		builder.append("Class feature value counts: ");
-		for (int i=0; i<d_signature.getClassFeature().getValues().size(); i++){
+		for (int i=0; i<classFeature.getValues().size(); i++){
 			
-			builder.append("["+d_signature.getClassFeature().getValues().get(i)+":"+d_classCounts[i]+"]");
+			builder.append("["+classFeature.getValues().get(i)+":"+d_classCounts[i]/d_scale+"]");
 		}
 		builder.append("\nOther feature value counts: \n");
-		for (String featureName : d_valueCounts.keySet()){
-			builder.append(featureName+" ");
-			HashMap<String,double[]> counts = d_valueCounts.get(featureName);
-			for (String classFeatureValue : counts.keySet()) {
-				builder.append("["+classFeatureValue+":");
-				double[] values = counts.get(classFeatureValue);
-				for (int i=0; i<values.length; i++) {
-					builder.append(values[i]+",");
+		for (int i=0; i<d_signature.size(); i++){
+			if (d_widths[i] == 0) {
+				continue;
+			}
+			builder.append(d_signature.getFeatureAtIndex(i).name()+" ");
+			for (int c=0; c<classFeature.numberOfCategories(); c++) {
+				builder.append("["+classFeature.categoryOfIndex(c)+":");
+				for (int v=0; v<d_widths[i]; v++) {
+					builder.append(d_counts[cell(i, c, v)]/d_scale+",");
 				}
 				builder.append("],");
 			}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+/**
+ * Finds the points within a fixed radius of a given point, for the density
+ * based outlier removal of DensityClustering. Points are rows of a dataset,
+ * given by their coordinate columns. Distances are those of DensityClustering.distance:
+ * metres for two coordinates (GPS), euclidean otherwise. Once built, an index
+ * can be queried from several threads at the same time.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+abstract class NeighbourIndex {
+
+	/**
+	 * Counts the indexed rows, other than a_row and the rows marked in a_removed,
+	 * that are closer to a_row than the radius of the index. a_row has to be indexed.
+	 */
+	abstract int countWithin(int a_row, boolean[] a_removed);
+	
+	/**
+	 * Indexes the first a_numRows rows of a_rows.
+	 */
+	static NeighbourIndex create(double[][] a_coords, int[] a_rows, int a_numRows, double a_radius) {
+		// Distances are never negative, so nothing is closer than that.
+		if (!(a_radius > 0)) {
+			return new NeighbourIndex() {
+				int countWithin(int a_row, boolean[] a_removed) {
+					return 0;
+				}
+			};
+		}
+		if (a_coords.length == 2) {
+			return new GpsGrid(a_coords[0], a_coords[1], a_rows, a_numRows, a_radius);
+		}
+		return new KDTree(a_coords, a_rows, a_numRows, a_radius);
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects additions to a table of counts from concurrent updates. Every thread 
+ * adds to one of several stripes, chosen by the thread id, so that updates from 
+ * different threads rarely wait for each other. The stripes are added to the 
+ * classifier's own table (and cleared) when it is published. Readers use 
+ * tryDrainTo, which leaves the stripes that are in use for later.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+final class StripedAccumulator {
+
+	static final class Stripe {
+		
+		private final ReentrantLock d_lock = new ReentrantLock();
+		
+		private final StripedAccumulator d_owner;
+		
+		private double[] d_table;
+		
+		private boolean d_dirty;
+		
+		private Stripe(StripedAccumulator a_owner) {
+			d_owner = a_owner;
+		}
+		
+		/**
+		 * Returns the table to add to, which is only valid until unlock.
+		 */
+		double[] table() {
+			d_dirty = true;
+			return d_table;
+		}
+		
+		void unlock() {
+			if (!d_owner.d_pending) {
+				d_owner.d_pending = true;
+			}
+			d_lock.unlock();
+		}
+	}
+	
+	private static final int MAX_STRIPES = 16;
+	
+	private final Stripe[] d_stripes;
+	
+	// Set after adding to a stripe, cleared before draining the stripes
+	private volatile boolean d_pending;
+	
+	StripedAccumulator() {
+		int numStripes = 1;
+		while (numStripes < Runtime.getRuntime().availableProcessors() && numStripes < MAX_STRIPES) {
+			numStripes <<= 1;
+		}
+		d_stripes = new Stripe[numStripes];
+		for (int i=0; i<numStripes; i++) {
+			d_stripes[i] = new Stripe(this);
+		}
+	}
+	
+	/**
+	 * Locks and returns the stripe of the calling thread, with a table of the given 
+	 * length. The caller adds to its table and then unlocks it.
+	 */
+	Stripe lock(int a_length) {
+		Stripe stripe = d_stripes[(int) Thread.currentThread().getId() & (d_stripes.length - 1)];
+		stripe.d_lock.lock();
+		if (stripe.d_table == null || stripe.d_table.length != a_length) {
+			stripe.d_table = new double[a_length];
+		}
+		return stripe;
+	}
+	
+	/**
+	 * Returns true if something was added since the last drain.
+	 */
+	boolean isPending() {
+		return d_pending;
+	}
+	
+	/**
+	 * Adds the stripes to the given tables, which together are as long as the 
+	 * stripe tables, and clears the stripes. Returns false if there was nothing to add.
+	 */
+	boolean drainTo(double[]... a_tables) {
+		return drain(true, a_tables);
+	}
+	
+	/**
+	 * Like drainTo, but skips the stripes that are being added to, instead of 
+	 * waiting for them. What they hold stays pending until the next drain.
+	 */
+	boolean tryDrainTo(double[]... a_tables) {
+		return drain(false, a_tables);
+	}
+	
+	private boolean drain(boolean a_wait, double[][] a_tables) {
+		d_pending = false;
+		boolean drained = false;
+		boolean skipped = false;
+		for (Stripe stripe : d_stripes) {
+			if (a_wait) {
+				stripe.d_lock.lock();
+			} else if (!stripe.d_lock.tryLock()) {
+				skipped = true;
+				continue;
+			}
+			try {
+				if (!stripe.d_dirty) {
+					continue;
+				}
+				double[] table = stripe.d_table;
+				int position = 0;
+				for (double[] target : a_tables) {
+					for (int i=0; i<target.length && position < table.length; i++) {
+						target[i] += table[position++];
+					}
+				}
+				Arrays.fill(table, 0.0);
+				stripe.d_dirty = false;
+				drained = true;
+			} finally {
+				stripe.d_lock.unlock();
+			}
+		}
+		if (skipped) {
+			// The skipped stripe may have been unlocked before the flag was cleared
+			d_pending = true;
+		}
+		return drained;
+	}
+	
+	/**
+	 * Discards everything that was added since the last drain.
+	 */
+	void clear() {
+		d_pending = false;
+		for (Stripe stripe : d_stripes) {
+			stripe.d_lock.lock();
+			try {
+				if (stripe.d_table != null) {
+					Arrays.fill(stripe.d_table, 0.0);
+				}
+				stripe.d_dirty = false;
+			} finally {
+				stripe.d_lock.unlock();
+			}
+		}
+	}
+}
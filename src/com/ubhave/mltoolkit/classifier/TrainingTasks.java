@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.classifier;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.MLException;
+
+/**
+ * Runs the independent tasks a training is split into, on a pool of daemon 
+ * threads that lives as long as the training. 
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+final class TrainingTasks {
+
+	private TrainingTasks() {
+	}
+	
+	/**
+	 * Returns the number of training threads set in the configuration, 
+	 * where zero stands for one per processor.
+	 */
+	static int numThreads(ClassifierConfig a_config) {
+		if (a_config != null && a_config.containsParam(Constants.TRAINING_THREADS)) {
+			return ((Number) a_config.getParam(Constants.TRAINING_THREADS)).intValue();
+		}
+		return Constants.DEFAULT_TRAINING_THREADS;
+	}
+	
+	/**
+	 * Runs the tasks and returns once all of them are done. Exceptions thrown 
+	 * by a task are rethrown.
+	 */
+	static void run(ArrayList<Runnable> a_tasks, int a_numThreads, final String a_threadName) throws MLException {
+		int numThreads = a_numThreads > 0 ? a_numThreads : Runtime.getRuntime().availableProcessors();
+		numThreads = Math.min(numThreads, a_tasks.size());
+		if (numThreads <= 1) {
+			for (Runnable task : a_tasks) {
+				task.run();
+			}
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable a_runnable) {
+				Thread thread = new Thread(a_runnable, a_threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>(a_tasks.size());
+			for (Runnable task : a_tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MLException(MLException.INVALID_STATE, "Training was interrupted.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
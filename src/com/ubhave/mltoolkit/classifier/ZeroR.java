@@ -21,14 +21,22 @@
  ******************************************************************************/
 package com.ubhave.mltoolkit.classifier;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import android.util.Log;
-
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.persistence.JsonArrays;
+import com.ubhave.mltoolkit.persistence.SnapshotReader;
+import com.ubhave.mltoolkit.persistence.SnapshotWriter;
+import com.ubhave.mltoolkit.utils.Constants;
 import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Dataset;
 import com.ubhave.mltoolkit.utils.Feature;
 import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceStream;
 import com.ubhave.mltoolkit.utils.MLException;
 import com.ubhave.mltoolkit.utils.Signature;
 import com.ubhave.mltoolkit.utils.Value;
@@ -39,74 +47,235 @@ import com.ubhave.mltoolkit.utils.Value;
  * It merely outputs the mean value/most frequent class. 
  * Besides classification, we can use ZeroR for regression.
  * 
+ * Like NaiveBayes, classifications read a published copy of the counts without
+ * locking, and updates are collected in striped accumulators that are published 
+ * by the next classification that finds the classifier idle. The class counts 
+ * add up, so classifiers trained on separate data can be merged.
+ * 
  * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
  *
  */
-public class ZeroR extends Classifier implements OnlineClassifier {
+public class ZeroR extends Classifier implements OnlineClassifier, MergeableClassifier {
 
 	private static final String TAG = "ZeroR";
 
+	// For a NUMERIC class, holds the sum of the values and their count
 	private double[] d_classCounts;
     
-	private static Object d_lock = new Object();
+	private final transient ReentrantReadWriteLock d_lock = new ReentrantReadWriteLock();
+	
+	private final transient StripedAccumulator d_accumulator = new StripedAccumulator();
+	
+	// Copy of the class counts that classifications read, replaced as a whole
+	private transient volatile double[] d_publishedCounts;
+	
+	// Used when deserializing with reflection, so that the locks are created
+	private ZeroR() {
+		super(null, null);
+	}
 	
 	public ZeroR(Signature a_signature, ClassifierConfig a_config) {
 		super(a_signature, a_config);
+		d_type = Constants.TYPE_ZERO_R;
 		Feature classFeature = d_signature.getClassFeature(); 
 		if (classFeature.getFeatureType() == Feature.NOMINAL)
 			d_classCounts = new double[classFeature.numberOfCategories()];		
 		else if (classFeature.getFeatureType() == Feature.NUMERIC) 
 			d_classCounts = new double[2];
 		Arrays.fill(d_classCounts, 0.0);
+		d_publishedCounts = d_classCounts.clone();
 	}
 
 	@Override
 	public void update(Instance a_instance) throws MLException {
 		
-		if (!d_signature.checkCompliance(a_instance, true)){
-			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-					"Instance is not compatible with the dataset used for classifier construction.");					
+		d_signature.validate(a_instance, true);
+		updateTrusted(a_instance);
+		changed();
+	}
+	
+	// Adds an instance that has already been validated to this thread's stripe.
+	private void updateTrusted(Instance a_instance) {
+		
+		StripedAccumulator.Stripe stripe = d_accumulator.lock(d_classCounts.length);
+		try {
+			count(a_instance, stripe.table());
+		} finally {
+			stripe.unlock();
 		}
+	}
+	
+	private void count(Instance a_instance, double[] a_classCounts) {
 		
 		Feature classFeature = d_signature.getClassFeature();
 		
 		Value classValue = a_instance.getValueAtIndex(d_signature.getClassIndex());
 		
+		if (classValue.getValueType() == Value.MISSING_VALUE) {
+			return;
+		}
 		if (classFeature.getFeatureType() == Feature.NOMINAL) {
 			int classValueInt = classFeature.indexOfCategory((String) classValue.getValue());		
-			d_classCounts[classValueInt] += 1;
+			a_classCounts[classValueInt] += 1;
 		} else if (classFeature.getFeatureType() == Feature.NUMERIC) {
-			d_classCounts[0] += (Double) classValue.getValue();
-			d_classCounts[1] += 1;
+			a_classCounts[0] += (Double) classValue.getValue();
+			a_classCounts[1] += 1;
 		}
 	}
 
 	@Override
 	public void train(ArrayList<Instance> a_instances) throws MLException {
-		for(Instance a_instance : a_instances){
-			synchronized (d_lock) {
-				this.update(a_instance);
+		d_signature.getValidator().validateAll(a_instances, true);
+		d_lock.writeLock().lock();
+		try {
+			for (Instance a_instance : a_instances) {
+				count(a_instance, d_classCounts);
 			}
-		}		
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+		changed();
+	}
+	
+	public void merge(Classifier a_other) throws MLException {
+		checkMergeable(a_other);
+		
+		// Copied first, so that the two classifiers are never locked at once
+		ZeroR other = (ZeroR) a_other;
+		double[] classCounts;
+		other.lockForReading();
+		try {
+			classCounts = other.d_classCounts.clone();
+		} finally {
+			other.d_lock.readLock().unlock();
+		}
+		d_lock.writeLock().lock();
+		try {
+			for (int i=0; i<d_classCounts.length; i++) {
+				d_classCounts[i] += classCounts[i];
+			}
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+		changed();
+	}
+	
+	@Override
+	public void publishUpdates() {
+		d_lock.writeLock().lock();
+		try {
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	// Takes the read lock, after merging pending updates into the counts.
+	private void lockForReading() {
+		d_lock.readLock().lock();
+		if (!d_accumulator.isPending()) {
+			return;
+		}
+		d_lock.readLock().unlock();
+		
+		d_lock.writeLock().lock();
+		try {
+			publish();
+			d_lock.readLock().lock();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+
+	// Returns the published counts without waiting for the lock. Pending updates 
+	// are published by the reader that finds the lock free, skipping the stripes
+	// that are being updated. 
+	private double[] publishedCounts() {
+		double[] classCounts = d_publishedCounts;
+		if (classCounts != null) {
+			if (!d_accumulator.isPending() || !d_lock.writeLock().tryLock()) {
+				return classCounts;
+			}
+		} else {
+			d_lock.writeLock().lock();
+		}
+		try {
+			publish(false);
+			return d_publishedCounts;
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+	
+	// Merges pending updates into the counts and publishes a copy. Called with the write lock held.
+	private void publish() {
+		publish(true);
+	}
+	
+	// With a_wait false, stripes that are being updated are left for the next publication.
+	private void publish(boolean a_wait) {
+		if (a_wait) {
+			d_accumulator.drainTo(d_classCounts);
+		} else {
+			d_accumulator.tryDrainTo(d_classCounts);
+		}
+		d_publishedCounts = d_classCounts.clone();
 	}
 
 	@Override
-	public Value classify(Instance a_instance) throws MLException {
+	public void train(Dataset a_dataset) throws MLException {
+		checkDataset(a_dataset);
 		
-		if (!d_signature.checkCompliance(a_instance, false)){
-			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
-					"Instance is not compatible with the dataset used for classifier construction.");					
+		int classIndex = d_signature.getClassIndex();
+		int numRows = a_dataset.size();
+		
+		d_lock.writeLock().lock();
+		try {
+			if (d_signature.getClassFeature().getFeatureType() == Feature.NOMINAL) {
+				int[] classColumn = a_dataset.getNominalColumn(classIndex);
+				for (int row=0; row<numRows; row++) {
+					if (!a_dataset.isMissing(row, classIndex)) {
+						d_classCounts[classColumn[row]] += 1;
+					}
+				}
+			} else {
+				double[] classColumn = a_dataset.getNumericColumn(classIndex);
+				for (int row=0; row<numRows; row++) {
+					if (!a_dataset.isMissing(row, classIndex)) {
+						d_classCounts[0] += classColumn[row];
+						d_classCounts[1] += 1;
+					}
+				}
+			}
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
 		}
+		changed();
+	}
+
+	// Counts add up, so a stream is counted chunk by chunk
+	@Override
+	public void train(InstanceStream a_stream) throws MLException {
+		trainInChunks(a_stream);
+	}
+	
+	@Override
+	public Value classify(Instance a_instance) throws MLException {
 		
+		d_signature.validate(a_instance, false);
+		
+		double[] classCounts = publishedCounts();
 		if (d_signature.getClassFeature().getFeatureType() == Feature.NOMINAL) {
 			double maxCount = 0;
 			int maxValueIndex = 0;
 			
-			for (int i=0; i<d_classCounts.length; i++) {
-				Log.d(TAG, "Class value index "+i+" count "+d_classCounts[i]);
-				if (d_classCounts[i] > maxCount) {
+			for (int i=0; i<classCounts.length; i++) {
+				if (classCounts[i] > maxCount) {
 					maxValueIndex = i;
-					maxCount = d_classCounts[i];
+					maxCount = classCounts[i];
 				}
 			}	
 			Value maxClass = new Value(d_signature.getClassFeature().categoryOfIndex(maxValueIndex), 
@@ -114,12 +283,110 @@ public class ZeroR extends Classifier implements OnlineClassifier {
 			
 			return maxClass;
 		} else { //it's NUMERIC
-			double mean = d_classCounts[0]/d_classCounts[1];
+			double mean = classCounts[0]/classCounts[1];
 			Value maxClass = new Value(mean, Value.NUMERIC_VALUE);
 			return maxClass;
 		}
 	}
 
+	@Override
+	public void classifyBatch(ArrayList<Instance> a_instances, int[] a_classes, double[] a_posteriors) throws MLException {
+		checkBatch(a_instances, a_classes, a_posteriors);
+		
+		// The answer does not depend on the instance, so it is calculated once.
+		double[] classCounts = publishedCounts();
+		int numInstances = a_instances.size();
+		if (d_signature.getClassFeature().getFeatureType() == Feature.NOMINAL) {
+			double maxCount = 0;
+			double totalCount = 0;
+			int maxValueIndex = 0;
+			for (int i=0; i<classCounts.length; i++) {
+				totalCount += classCounts[i];
+				if (classCounts[i] > maxCount) {
+					maxValueIndex = i;
+					maxCount = classCounts[i];
+				}
+			}
+			Arrays.fill(a_classes, 0, numInstances, maxValueIndex);
+			if (a_posteriors != null) {
+				int numClasses = classCounts.length;
+				for (int j=0; j<numInstances; j++) {
+					for (int i=0; i<numClasses; i++) {
+						a_posteriors[j * numClasses + i] = totalCount > 0 ? 
+								classCounts[i]/totalCount : 1.0/numClasses;
+					}
+				}
+			}
+		} else { //it's NUMERIC
+			Arrays.fill(a_classes, 0, numInstances, -1);
+			if (a_posteriors != null) {
+				Arrays.fill(a_posteriors, 0, numInstances, classCounts[0]/classCounts[1]);
+			}
+		}
+	}
+
+	@Override
+	public void writeState(SnapshotWriter a_out) throws IOException {
+		lockForReading();
+		try {
+			a_out.writeDoubleArray(d_classCounts);
+		} finally {
+			d_lock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public void writeMapped(SnapshotWriter a_out) throws IOException {
+		writeState(a_out);
+	}
+	
+	@Override
+	public void readState(SnapshotReader a_in) throws IOException {
+		double[] classCounts = a_in.readDoubleArray();
+		if (classCounts.length != d_classCounts.length) {
+			throw new IOException("Snapshot does not match the classifier signature.");
+		}
+		d_lock.writeLock().lock();
+		try {
+			d_classCounts = classCounts;
+			d_accumulator.clear();
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void writeJSON(JsonWriter a_out) throws IOException {
+		lockForReading();
+		try {
+			a_out.name("d_classCounts");
+			JsonArrays.writeDoubleArray(a_out, d_classCounts);
+		} finally {
+			d_lock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public boolean readJSONField(String a_name, JsonReader a_in) throws IOException {
+		if (!a_name.equals("d_classCounts")) {
+			return false;
+		}
+		double[] classCounts = JsonArrays.readDoubleArray(a_in);
+		if (classCounts.length != d_classCounts.length) {
+			throw new IOException("Stored counts do not match the classifier signature.");
+		}
+		d_lock.writeLock().lock();
+		try {
+			d_classCounts = classCounts;
+			d_accumulator.clear();
+			publish();
+		} finally {
+			d_lock.writeLock().unlock();
+		}
+		return true;
+	}
+
 	@Override
 	public void printClassifierInfo() {
 		// TODO Auto-generated method stub		
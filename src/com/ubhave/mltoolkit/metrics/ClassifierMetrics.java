@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a single classifier, as recorded by the MachineLearningManager: 
+ * latencies of train, update and classify calls, the number of training 
+ * instances seen, the number of instances rejected for not complying with 
+ * the signature, and the duration and size of the last time the classifier 
+ * was saved. Calls that fail are not included in the latencies.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public final class ClassifierMetrics {
+
+	private final String d_name;
+	
+	private final LatencyHistogram d_train = new LatencyHistogram();
+	
+	private final LatencyHistogram d_update = new LatencyHistogram();
+	
+	private final LatencyHistogram d_classify = new LatencyHistogram();
+	
+	private final AtomicLong d_instancesSeen = new AtomicLong();
+	
+	private final AtomicLong d_complianceFailures = new AtomicLong();
+	
+	// Guarded by this, so that a snapshot never mixes two persistence runs
+	private long d_lastPersistenceNanos;
+	
+	private long d_lastPersistenceBytes;
+	
+	private long d_lastPersistenceTime;
+	
+	public ClassifierMetrics(String a_name) {
+		d_name = a_name;
+	}
+	
+	public void recordTrain(long a_nanos, int a_instances) {
+		d_train.record(a_nanos);
+		d_instancesSeen.addAndGet(a_instances);
+	}
+	
+	public void recordUpdate(long a_nanos) {
+		d_update.record(a_nanos);
+		d_instancesSeen.incrementAndGet();
+	}
+	
+	public void recordClassify(long a_nanos) {
+		d_classify.record(a_nanos);
+	}
+	
+	public void recordComplianceFailure() {
+		d_complianceFailures.incrementAndGet();
+	}
+	
+	public synchronized void recordPersistence(long a_nanos, long a_bytes) {
+		d_lastPersistenceNanos = a_nanos;
+		d_lastPersistenceBytes = a_bytes;
+		d_lastPersistenceTime = System.currentTimeMillis();
+	}
+	
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+	
+	/**
+	 * An immutable copy of the metrics of a classifier.
+	 */
+	public static final class Snapshot {
+		
+		private final String d_name;
+		
+		private final LatencyHistogram.Snapshot d_train;
+		
+		private final LatencyHistogram.Snapshot d_update;
+		
+		private final LatencyHistogram.Snapshot d_classify;
+		
+		private final long d_instancesSeen;
+		
+		private final long d_complianceFailures;
+		
+		private final long d_lastPersistenceNanos;
+		
+		private final long d_lastPersistenceBytes;
+		
+		private final long d_lastPersistenceTime;
+		
+		private Snapshot(ClassifierMetrics a_metrics) {
+			d_name = a_metrics.d_name;
+			d_train = a_metrics.d_train.snapshot();
+			d_update = a_metrics.d_update.snapshot();
+			d_classify = a_metrics.d_classify.snapshot();
+			d_instancesSeen = a_metrics.d_instancesSeen.get();
+			d_complianceFailures = a_metrics.d_complianceFailures.get();
+			d_lastPersistenceNanos = a_metrics.d_lastPersistenceNanos;
+			d_lastPersistenceBytes = a_metrics.d_lastPersistenceBytes;
+			d_lastPersistenceTime = a_metrics.d_lastPersistenceTime;
+		}
+		
+		public String getName() {
+			return d_name;
+		}
+		
+		public LatencyHistogram.Snapshot getTrainLatency() {
+			return d_train;
+		}
+		
+		public LatencyHistogram.Snapshot getUpdateLatency() {
+			return d_update;
+		}
+		
+		public LatencyHistogram.Snapshot getClassifyLatency() {
+			return d_classify;
+		}
+		
+		public long getTrainCalls() {
+			return d_train.getCount();
+		}
+		
+		public long getUpdateCalls() {
+			return d_update.getCount();
+		}
+		
+		public long getClassifyCalls() {
+			return d_classify.getCount();
+		}
+		
+		public long getInstancesSeen() {
+			return d_instancesSeen;
+		}
+		
+		public long getComplianceFailures() {
+			return d_complianceFailures;
+		}
+		
+		public long getLastPersistenceNanos() {
+			return d_lastPersistenceNanos;
+		}
+		
+		public long getLastPersistenceBytes() {
+			return d_lastPersistenceBytes;
+		}
+		
+		/**
+		 * Wall clock time of the last save in milliseconds, 0 if the classifier was not saved yet.
+		 */
+		public long getLastPersistenceTime() {
+			return d_lastPersistenceTime;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(d_name).append('\n');
+			builder.append("  train:     ").append(d_train).append('\n');
+			builder.append("  update:    ").append(d_update).append('\n');
+			builder.append("  classify:  ").append(d_classify).append('\n');
+			builder.append("  instances seen: ").append(d_instancesSeen);
+			builder.append(", compliance failures: ").append(d_complianceFailures).append('\n');
+			builder.append("  last saved: ");
+			if (d_lastPersistenceTime == 0) {
+				builder.append("never");
+			} else {
+				builder.append(String.format("%d bytes in %.1fms", d_lastPersistenceBytes, d_lastPersistenceNanos / 1e6));
+			}
+			return builder.toString();
+		}
+	}
+}
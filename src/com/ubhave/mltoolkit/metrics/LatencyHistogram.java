@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, in the manner of HdrHistogram: 
+ * buckets are exact below 32ns, and above that every power of two is split 
+ * into 32 linear sub-buckets, so that a recorded value is off by at most 
+ * 1/32 (about 3%). Latencies above about 18 minutes fall into the last bucket.
+ * 
+ * Recording is a few atomic increments, without locks or allocation, so it 
+ * can be done from any number of threads on the critical path.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	
+	// Values up to 2^MAX_EXPONENT ns have their own buckets
+	private static final int MAX_EXPONENT = 40;
+	
+	private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+	
+	private final AtomicLongArray d_counts = new AtomicLongArray(NUM_BUCKETS);
+	
+	private final AtomicLong d_sum = new AtomicLong();
+	
+	private final AtomicLong d_max = new AtomicLong();
+	
+	static int bucketOf(long a_value) {
+		if (a_value < SUB_COUNT) {
+			return (int) Math.max(a_value, 0);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(a_value);
+		if (exponent > MAX_EXPONENT) {
+			return NUM_BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) ((a_value >>> shift) & (SUB_COUNT - 1));
+	}
+	
+	// Largest value that falls into the bucket
+	static long highestValueOf(int a_bucket) {
+		if (a_bucket < SUB_COUNT) {
+			return a_bucket;
+		}
+		int shift = a_bucket / SUB_COUNT - 1;
+		int sub = a_bucket % SUB_COUNT;
+		return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+	}
+	
+	public void record(long a_nanos) {
+		d_counts.incrementAndGet(bucketOf(a_nanos));
+		d_sum.addAndGet(a_nanos);
+		long max = d_max.get();
+		while (a_nanos > max && !d_max.compareAndSet(max, a_nanos)) {
+			max = d_max.get();
+		}
+	}
+	
+	/**
+	 * Copies the histogram. Values recorded during the copy may or may not be included.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[NUM_BUCKETS];
+		long count = 0;
+		for (int i=0; i<NUM_BUCKETS; i++) {
+			counts[i] = d_counts.get(i);
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, d_sum.get(), d_max.get());
+	}
+	
+	/**
+	 * An immutable copy of a histogram.
+	 */
+	public static final class Snapshot {
+		
+		private final long[] d_counts;
+		
+		private final long d_count;
+		
+		private final long d_sum;
+		
+		private final long d_max;
+		
+		private Snapshot(long[] a_counts, long a_count, long a_sum, long a_max) {
+			d_counts = a_counts;
+			d_count = a_count;
+			d_sum = a_sum;
+			d_max = a_max;
+		}
+		
+		public long getCount() {
+			return d_count;
+		}
+		
+		public double getMean() {
+			return d_count == 0 ? 0 : d_sum / (double) d_count;
+		}
+		
+		public long getMax() {
+			return d_max;
+		}
+		
+		/**
+		 * Returns the latency in nanoseconds that a_percentile percent of the 
+		 * recorded latencies do not exceed, up to the precision of the histogram.
+		 */
+		public long getValueAtPercentile(double a_percentile) {
+			if (d_count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(a_percentile / 100.0 * d_count));
+			long seen = 0;
+			for (int i=0; i<d_counts.length; i++) {
+				seen += d_counts[i];
+				if (seen >= rank) {
+					// The last bucket holds everything that is too large, up to the maximum
+					return i == d_counts.length - 1 ? d_max : Math.min(highestValueOf(i), d_max);
+				}
+			}
+			return d_max;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus", 
+					d_count, getMean() / 1000.0, getValueAtPercentile(50) / 1000.0, getValueAtPercentile(90) / 1000.0, 
+					getValueAtPercentile(99) / 1000.0, d_max / 1000.0);
+		}
+	}
+}
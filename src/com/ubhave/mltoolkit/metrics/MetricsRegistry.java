@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of all named classifiers. Metrics are created when a classifier 
+ * is first used, and looked up without locking.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public final class MetricsRegistry {
+
+	private final ConcurrentHashMap<String, ClassifierMetrics> d_metrics = 
+			new ConcurrentHashMap<String, ClassifierMetrics>();
+	
+	public ClassifierMetrics get(String a_name) {
+		ClassifierMetrics metrics = d_metrics.get(a_name);
+		if (metrics == null) {
+			metrics = new ClassifierMetrics(a_name);
+			ClassifierMetrics existing = d_metrics.putIfAbsent(a_name, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+	
+	public void remove(String a_name) {
+		d_metrics.remove(a_name);
+	}
+	
+	/**
+	 * Returns a snapshot of the metrics of every classifier, ordered by name.
+	 */
+	public Map<String, ClassifierMetrics.Snapshot> snapshot() {
+		TreeMap<String, ClassifierMetrics.Snapshot> snapshot = new TreeMap<String, ClassifierMetrics.Snapshot>();
+		for (Map.Entry<String, ClassifierMetrics> entry : d_metrics.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Returns a human readable report of the metrics of every classifier.
+	 */
+	public String dump() {
+		StringBuilder builder = new StringBuilder();
+		for (ClassifierMetrics.Snapshot snapshot : snapshot().values()) {
+			builder.append(snapshot).append('\n');
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.classifier.Classifier;
+import com.ubhave.mltoolkit.classifier.DensityClustering;
+import com.ubhave.mltoolkit.classifier.ID3;
+import com.ubhave.mltoolkit.classifier.NaiveBayes;
+import com.ubhave.mltoolkit.classifier.ZeroR;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Streams a classifier as a JSON object that starts with its type, signature 
+ * and configuration, followed by the fields written by the classifier itself. 
+ * Knowing the type first, the classifier is constructed up front and its 
+ * fields are read straight from the stream, without an intermediate tree.
+ * 
+ * Objects written by the reflection based serialization of earlier versions 
+ * do not start with the type; these are parsed into a tree and deserialized 
+ * reflectively, as before.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class ClassifierAdapter<T extends Classifier> extends TypeAdapter<T> {
+
+	private final Class<T> d_class;
+	
+	private final SignatureAdapter d_signatureAdapter = new SignatureAdapter();
+	
+	private final ConfigAdapter d_configAdapter = new ConfigAdapter();
+	
+	private Gson d_legacyGson;
+	
+	public ClassifierAdapter(Class<T> a_class) {
+		d_class = a_class;
+	}
+	
+	@Override
+	public void write(JsonWriter a_out, T a_classifier) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_type").value(a_classifier.getType());
+		a_out.name("d_signature");
+		d_signatureAdapter.write(a_out, a_classifier.getSignature());
+		a_out.name("d_config");
+		d_configAdapter.write(a_out, a_classifier.getConfig() == null ? 
+				new ClassifierConfig() : a_classifier.getConfig());
+		a_classifier.writeJSON(a_out);
+		a_out.endObject();
+	}
+
+	@Override
+	public T read(JsonReader a_in) throws IOException {
+		a_in.beginObject();
+		if (!a_in.hasNext()) {
+			throw new JsonParseException("Classifier object is empty.");
+		}
+		String name = a_in.nextName();
+		if (!name.equals("d_type")) {
+			return readLegacy(name, a_in);
+		}
+		int type = a_in.nextInt();
+		
+		Signature signature = null;
+		ClassifierConfig config = null;
+		Classifier classifier = null;
+		while (a_in.hasNext()) {
+			name = a_in.nextName();
+			if (classifier == null && name.equals("d_signature")) {
+				signature = d_signatureAdapter.read(a_in);
+			} else if (classifier == null && name.equals("d_config")) {
+				config = d_configAdapter.read(a_in);
+			} else {
+				if (classifier == null) {
+					if (signature == null) {
+						throw new JsonParseException("Classifier state precedes its signature.");
+					}
+					classifier = create(type, signature, config == null ? new ClassifierConfig() : config);
+				}
+				if (!classifier.readJSONField(name, a_in)) {
+					a_in.skipValue();
+				}
+			}
+		}
+		a_in.endObject();
+		
+		if (classifier == null) {
+			if (signature == null) {
+				throw new JsonParseException("Classifier has no signature.");
+			}
+			classifier = create(type, signature, config == null ? new ClassifierConfig() : config);
+		}
+		return d_class.cast(classifier);
+	}
+	
+	private Classifier create(int a_type, Signature a_signature, ClassifierConfig a_config) {
+		Classifier classifier = ClassifierList.createClassifier(a_type, a_signature, a_config);
+		if (classifier.getType() != a_type || !d_class.isInstance(classifier)) {
+			throw new JsonParseException("Unexpected classifier type "+a_type+".");
+		}
+		return classifier;
+	}
+	
+	// The rest of the object, starting with a_firstName, was written by Gson's reflection.
+	private T readLegacy(String a_firstName, JsonReader a_in) throws IOException {
+		JsonParser parser = new JsonParser();
+		JsonObject object = new JsonObject();
+		object.add(a_firstName, parser.parse(a_in));
+		while (a_in.hasNext()) {
+			String name = a_in.nextName();
+			object.add(name, parser.parse(a_in));
+		}
+		a_in.endObject();
+		
+		if (!object.has("d_type")) {
+			throw new JsonParseException("Classifier object has no type.");
+		}
+		if (d_legacyGson == null) {
+			d_legacyGson = new Gson();
+		}
+		Class<? extends Classifier> legacyClass;
+		switch (object.get("d_type").getAsInt()) {
+			case Constants.TYPE_NAIVE_BAYES:
+				legacyClass = NaiveBayes.class;
+				break;
+			case Constants.TYPE_ID3:
+				if (!d_class.isAssignableFrom(ID3.class)) {
+					throw new JsonParseException("Unexpected classifier type "+object.get("d_type")+".");
+				}
+				return d_class.cast(readLegacyTree(object));
+			case Constants.TYPE_DENSITY_CLUSTER:
+				legacyClass = DensityClustering.class;
+				break;
+			case Constants.TYPE_ZERO_R:
+				legacyClass = ZeroR.class;
+				break;
+			default:
+				throw new JsonParseException("Unknown classifier type "+object.get("d_type")+".");
+		}
+		if (!d_class.isAssignableFrom(legacyClass)) {
+			throw new JsonParseException("Unexpected classifier type "+object.get("d_type")+".");
+		}
+		return d_class.cast(d_legacyGson.fromJson(object, legacyClass));
+	}
+	
+	// Gson used to write every node of an ID3 tree as a whole ID3 object, while the 
+	// classifier is now a flat tree. The nodes are converted to the current JSON 
+	// format, which the classifier then reads itself.
+	private ID3 readLegacyTree(JsonObject a_object) throws IOException {
+		try {
+			Signature signature = d_legacyGson.fromJson(a_object.get("d_signature"), Signature.class);
+			if (signature == null) {
+				throw new JsonParseException("Classifier has no signature.");
+			}
+			ClassifierConfig config = d_legacyGson.fromJson(a_object.get("d_config"), ClassifierConfig.class);
+			Classifier classifier = create(Constants.TYPE_ID3, signature, config == null ? new ClassifierConfig() : config);
+			classifier.readJSONField("d_tree", new JsonReader(new StringReader(convertLegacyNode(a_object).toString())));
+			return (ID3) classifier;
+		} catch (IllegalStateException e) {
+			throw new JsonParseException("Corrupt tree: "+e.getMessage());
+		} catch (ClassCastException e) {
+			throw new JsonParseException("Corrupt tree: "+e.getMessage());
+		}
+	}
+	
+	private static JsonObject convertLegacyNode(JsonObject a_node) {
+		JsonObject node = new JsonObject();
+		JsonElement majorValue = a_node.get("d_majorValue");
+		if (majorValue != null && majorValue.isJsonObject() && majorValue.getAsJsonObject().has("d_value")) {
+			node.add("d_majorValue", majorValue.getAsJsonObject().get("d_value"));
+		} else {
+			node.add("d_majorValue", JsonNull.INSTANCE);
+		}
+		JsonElement isLeaf = a_node.get("d_isLeaf");
+		if (isLeaf != null && !isLeaf.getAsBoolean()) {
+			node.add("d_bestFeatureIndex", a_node.get("d_bestFeatureIndex"));
+			JsonObject subtrees = new JsonObject();
+			for (Map.Entry<String, JsonElement> entry : a_node.getAsJsonObject("d_subtrees").entrySet()) {
+				subtrees.add(entry.getKey(), convertLegacyNode(entry.getValue().getAsJsonObject()));
+			}
+			node.add("d_subtrees", subtrees);
+		}
+		return node;
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.classifier.Classifier;
+
+/**
+ * Streams a ClassifierList as an object of named classifiers, in the same 
+ * layout as the reflection based serialization of earlier versions.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class ClassifierListAdapter extends TypeAdapter<ClassifierList> {
+
+	private final ClassifierAdapter<Classifier> d_classifierAdapter = 
+			new ClassifierAdapter<Classifier>(Classifier.class);
+	
+	@Override
+	public void write(JsonWriter a_out, ClassifierList a_list) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_namedClassifiers").beginObject();
+		for (Map.Entry<String, Classifier> entry : a_list.getClassifiers().entrySet()) {
+			a_out.name(entry.getKey());
+			d_classifierAdapter.write(a_out, entry.getValue());
+		}
+		a_out.endObject();
+		a_out.endObject();
+	}
+
+	@Override
+	public ClassifierList read(JsonReader a_in) throws IOException {
+		ClassifierList list = new ClassifierList();
+		
+		a_in.beginObject();
+		while (a_in.hasNext()) {
+			if (!a_in.nextName().equals("d_namedClassifiers")) {
+				a_in.skipValue();
+				continue;
+			}
+			a_in.beginObject();
+			while (a_in.hasNext()) {
+				String name = a_in.nextName();
+				list.putClassifier(name, d_classifierAdapter.read(a_in));
+			}
+			a_in.endObject();
+		}
+		a_in.endObject();
+		
+		return list;
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+
+/**
+ * Streams the parameters of a ClassifierConfig. As with the reflection based 
+ * serialization, numbers are read back as Doubles.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class ConfigAdapter extends TypeAdapter<ClassifierConfig> {
+
+	@Override
+	public void write(JsonWriter a_out, ClassifierConfig a_config) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_params").beginObject();
+		for (String param : a_config.getAllParams()) {
+			Object value = a_config.getParam(param);
+			a_out.name(param);
+			if (value instanceof Boolean) {
+				a_out.value((Boolean) value);
+			} else if (value instanceof Number) {
+				a_out.value((Number) value);
+			} else if (value instanceof String) {
+				a_out.value((String) value);
+			} else {
+				throw new JsonParseException("Parameter "+param+" of type "
+						+(value == null ? null : value.getClass().getName())+" cannot be saved.");
+			}
+		}
+		a_out.endObject();
+		a_out.endObject();
+	}
+
+	@Override
+	public ClassifierConfig read(JsonReader a_in) throws IOException {
+		ClassifierConfig config = new ClassifierConfig();
+		
+		a_in.beginObject();
+		while (a_in.hasNext()) {
+			if (!a_in.nextName().equals("d_params")) {
+				a_in.skipValue();
+				continue;
+			}
+			a_in.beginObject();
+			while (a_in.hasNext()) {
+				String param = a_in.nextName();
+				JsonToken token = a_in.peek();
+				if (token == JsonToken.BOOLEAN) {
+					config.addParam(param, a_in.nextBoolean());
+				} else if (token == JsonToken.NUMBER) {
+					config.addParam(param, a_in.nextDouble());
+				} else if (token == JsonToken.STRING) {
+					config.addParam(param, a_in.nextString());
+				} else {
+					a_in.skipValue();
+				}
+			}
+			a_in.endObject();
+		}
+		a_in.endObject();
+		
+		return config;
+	}
+}
@@ -0,0 +1,1084 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.ubhave.mltoolkit.utils.Dataset;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceSource;
+import com.ubhave.mltoolkit.utils.InstanceStream;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Loads training data from a CSV or ARFF file into Datasets. 
+ * 
+ * The signature is taken from the ARFF header, given with setSignature, or 
+ * inferred from a CSV file: a column is NUMERIC if all of its values are 
+ * numbers, and NOMINAL otherwise, with its categories in the order they 
+ * first appear. The class feature is the last column unless set otherwise, 
+ * and is always NOMINAL when inferred. Empty fields and "?" are missing values.
+ * 
+ * The file is parsed byte by byte from a buffer, nominal values are looked 
+ * up in per-feature dictionaries and numbers are converted in place, so no 
+ * object is created per value. The whole file is loaded with load(), or 
+ * read a chunk at a time with openChunks(). With more than one thread, 
+ * load() and the inference parse the file in parts, each starting at the 
+ * first line that begins in it.
+ *
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class DatasetLoader implements InstanceSource {
+
+	public static final int FORMAT_CSV = 0;
+
+	public static final int FORMAT_ARFF = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Parts smaller than this are not worth a thread of their own
+	private static final long MIN_PART_SIZE = 1 << 20;
+
+	private static final int CHUNK_ROWS = 65536;
+
+	private final File d_file;
+
+	private int d_format;
+
+	private byte d_delimiter = ',';
+
+	private boolean d_header = true;
+
+	private String d_className;
+
+	private int d_numThreads = 1;
+
+	private Signature d_signature;
+
+	// Dictionaries of the nominal features of the signature, null for numeric ones
+	private Categories[] d_categories;
+
+	// Where the first data line starts, -1 until the header is read
+	private long d_dataOffset = -1;
+
+	/**
+	 * Creates a loader of the file, with the format given by the extension.
+	 */
+	public DatasetLoader(File a_file) {
+		d_file = a_file;
+		d_format = a_file.getName().toLowerCase().endsWith(".arff") ? FORMAT_ARFF : FORMAT_CSV;
+	}
+
+	public void setFormat(int a_format) {
+		d_format = a_format;
+		d_dataOffset = -1;
+	}
+
+	/**
+	 * Sets the field delimiter of a CSV file, a comma by default.
+	 */
+	public void setDelimiter(char a_delimiter) {
+		d_delimiter = (byte) a_delimiter;
+		d_dataOffset = -1;
+	}
+
+	/**
+	 * Sets whether the first line of a CSV file holds the column names, 
+	 * true by default. Without it, columns are named by their index.
+	 */
+	public void setHeader(boolean a_header) {
+		d_header = a_header;
+		d_dataOffset = -1;
+	}
+
+	/**
+	 * Sets the signature the values are read with, instead of the one in the 
+	 * file header or inferred. Values of a nominal feature that are not among 
+	 * its categories are reported as errors.
+	 */
+	public void setSignature(Signature a_signature) {
+		d_signature = a_signature;
+		d_categories = null;
+	}
+
+	/**
+	 * Sets the name of the class feature, the last column by default.
+	 */
+	public void setClassFeature(String a_name) {
+		d_className = a_name;
+	}
+
+	/**
+	 * Sets the number of threads that parse the file, where zero stands 
+	 * for one per processor. The file is parsed by the calling thread by default.
+	 */
+	public void setNumThreads(int a_numThreads) {
+		d_numThreads = a_numThreads;
+	}
+
+	/**
+	 * Returns the signature the file is read with, inferring it if needed.
+	 */
+	public Signature getSignature() throws IOException {
+		prepare();
+		return d_signature;
+	}
+
+	/**
+	 * Loads all rows of the file into a new dataset.
+	 */
+	public Dataset load() throws IOException {
+		prepare();
+		FileInputStream stream = new FileInputStream(d_file);
+		try {
+			final FileChannel channel = stream.getChannel();
+			long[] bounds = partBounds(channel.size());
+			ArrayList<Callable<Dataset>> tasks = new ArrayList<Callable<Dataset>>();
+			for (int p=0; p<bounds.length-1; p++) {
+				final long start = bounds[p];
+				final long end = bounds[p+1];
+				tasks.add(new Callable<Dataset>() {
+					public Dataset call() throws IOException {
+						Dataset part = new Dataset(d_signature, CHUNK_ROWS);
+						RowParser parser = new RowParser(new LineReader(channel, start, end, d_dataOffset));
+						while (parser.readRows(part, Integer.MAX_VALUE) > 0);
+						return part;
+					}
+				});
+			}
+			ArrayList<Dataset> parts = runTasks(tasks);
+			Dataset dataset = parts.get(0);
+			for (int p=1; p<parts.size(); p++) {
+				dataset.addAll(parts.get(p));
+			}
+			return dataset;
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Opens the file for reading a chunk of rows at a time, so that files 
+	 * that do not fit in memory can be trained from chunk by chunk.
+	 */
+	public ChunkReader openChunks() throws IOException {
+		prepare();
+		return new ChunkReader();
+	}
+
+	/**
+	 * Opens a stream of the rows as instances, for classifiers that train 
+	 * from multi-pass sources, see Classifier.train(InstanceSource).
+	 */
+	public InstanceStream open() throws MLException {
+		try {
+			final ChunkReader reader = openChunks();
+			return new InstanceStream() {
+
+				private final Dataset d_chunk = new Dataset(d_signature, CHUNK_ROWS);
+
+				private int d_row;
+
+				public Instance next() throws MLException {
+					if (d_row == d_chunk.size()) {
+						d_row = 0;
+						try {
+							if (!reader.next(d_chunk, CHUNK_ROWS)) {
+								return null;
+							}
+						} catch (IOException e) {
+							throw new MLException(MLException.IO_ERROR, "Could not read "+d_file+": "+e.getMessage());
+						}
+					}
+					return d_chunk.getInstance(d_row++);
+				}
+
+				public void close() {
+					reader.close();
+				}
+			};
+		} catch (IOException e) {
+			throw new MLException(MLException.IO_ERROR, "Could not open "+d_file+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the rows of the file in order, a chunk at a time.
+	 */
+	public class ChunkReader {
+
+		private final FileInputStream d_stream;
+
+		private final RowParser d_parser;
+
+		ChunkReader() throws IOException {
+			d_stream = new FileInputStream(d_file);
+			FileChannel channel = d_stream.getChannel();
+			d_parser = new RowParser(new LineReader(channel, d_dataOffset, channel.size(), d_dataOffset));
+		}
+
+		/**
+		 * Refills the dataset, which has to have the signature of the loader, 
+		 * with at most a_maxRows next rows. Returns false once the file is exhausted.
+		 */
+		public boolean next(Dataset a_chunk, int a_maxRows) throws IOException {
+			a_chunk.clear();
+			return d_parser.readRows(a_chunk, a_maxRows) > 0;
+		}
+
+		public void close() {
+			try {
+				d_stream.close();
+			} catch (IOException e) {
+				// nothing was written, so nothing is lost
+			}
+		}
+	}
+
+	// Reads the header, and infers the signature if it was neither given nor in the header
+	private void prepare() throws IOException {
+		if (d_dataOffset >= 0 && d_signature != null && d_categories != null) {
+			return;
+		}
+		FileInputStream stream = new FileInputStream(d_file);
+		try {
+			FileChannel channel = stream.getChannel();
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<Feature> features = null;
+			if (d_format == FORMAT_ARFF) {
+				features = readArffHeader(channel, names);
+			} else {
+				readCsvHeader(channel, names);
+			}
+			if (d_signature == null) {
+				if (features == null) {
+					features = inferFeatures(channel, names);
+				}
+				d_signature = new Signature(features, classIndex(names));
+			} else if (d_signature.size() != names.size()) {
+				throw new IOException("The file has "+names.size()+" columns, the signature "+d_signature.size());
+			}
+			if (d_categories == null) {
+				d_categories = new Categories[d_signature.size()];
+				for (int i=0; i<d_categories.length; i++) {
+					Feature feature = d_signature.getFeatureAtIndex(i);
+					if (feature.getFeatureType() == Feature.NOMINAL) {
+						d_categories[i] = new Categories(feature.getValues());
+					}
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private int classIndex(ArrayList<String> a_names) throws IOException {
+		if (d_className == null) {
+			return a_names.size() - 1;
+		}
+		int index = a_names.indexOf(d_className);
+		if (index < 0) {
+			throw new IOException("No column named "+d_className);
+		}
+		return index;
+	}
+
+	private void readCsvHeader(FileChannel a_channel, ArrayList<String> a_names) throws IOException {
+		LineReader lines = new LineReader(a_channel, 0, a_channel.size(), 0);
+		FieldSplitter splitter = new FieldSplitter(d_delimiter, false);
+		while (lines.next()) {
+			if (lines.isBlank()) {
+				continue;
+			}
+			int numFields = splitter.split(lines);
+			for (int f=0; f<numFields; f++) {
+				a_names.add(d_header ? splitter.fieldString(lines.bytes(), f) : Integer.toString(f));
+			}
+			d_dataOffset = d_header ? lines.nextLineOffset() : lines.lineOffset();
+			return;
+		}
+		throw new IOException("The file is empty");
+	}
+
+	private ArrayList<Feature> readArffHeader(FileChannel a_channel, ArrayList<String> a_names) throws IOException {
+		LineReader lines = new LineReader(a_channel, 0, a_channel.size(), 0);
+		FieldSplitter splitter = new FieldSplitter((byte) ',', true);
+		ArrayList<Feature> features = new ArrayList<Feature>();
+		while (lines.next()) {
+			if (lines.isBlank() || lines.isComment()) {
+				continue;
+			}
+			String line = new String(lines.bytes(), lines.from(), lines.to() - lines.from(), "UTF-8").trim();
+			String keyword = line.split("\\s+", 2)[0].toLowerCase();
+			if (keyword.equals("@data")) {
+				d_dataOffset = lines.nextLineOffset();
+				return features;
+			}
+			if (!keyword.equals("@attribute")) {
+				// @relation and other declarations do not change how rows are read
+				continue;
+			}
+			String rest = line.substring(keyword.length()).trim();
+			int nameEnd;
+			String name;
+			if (rest.length() > 0 && (rest.charAt(0) == '\'' || rest.charAt(0) == '"')) {
+				nameEnd = rest.indexOf(rest.charAt(0), 1);
+				if (nameEnd < 0) {
+					throw new IOException(lines.describe()+": unterminated attribute name");
+				}
+				name = rest.substring(1, nameEnd++);
+			} else {
+				nameEnd = 0;
+				while (nameEnd < rest.length() && !Character.isWhitespace(rest.charAt(nameEnd)) && rest.charAt(nameEnd) != '{') {
+					nameEnd++;
+				}
+				name = rest.substring(0, nameEnd);
+			}
+			String type = rest.substring(nameEnd).trim();
+			a_names.add(name);
+			try {
+				if (type.startsWith("{")) {
+					if (!type.endsWith("}")) {
+						throw new IOException(lines.describe()+": unterminated category list");
+					}
+					ArrayList<String> categories = new ArrayList<String>();
+					byte[] list = type.substring(1, type.length() - 1).getBytes("UTF-8");
+					int numFields = splitter.split(list, 0, list.length, lines);
+					for (int f=0; f<numFields; f++) {
+						categories.add(splitter.fieldString(list, f));
+					}
+					features.add(new Feature(name, Feature.NOMINAL, categories));
+				} else {
+					String typeName = type.split("\\s+", 2)[0].toLowerCase();
+					if (!typeName.equals("numeric") && !typeName.equals("real") && !typeName.equals("integer")) {
+						throw new IOException(lines.describe()+": unsupported attribute type "+type);
+					}
+					features.add(new Feature(name, Feature.NUMERIC));
+				}
+			} catch (MLException e) {
+				throw new IOException(lines.describe()+": "+e.getMessage());
+			}
+		}
+		throw new IOException("No @data section");
+	}
+
+	// Finds out the type of every column in one pass, then the categories of the nominal ones in another
+	private ArrayList<Feature> inferFeatures(final FileChannel a_channel, ArrayList<String> a_names) throws IOException {
+		final int numColumns = a_names.size();
+		final int classIndex = classIndex(a_names);
+		final long[] bounds = partBounds(a_channel.size());
+
+		ArrayList<Callable<boolean[]>> typeTasks = new ArrayList<Callable<boolean[]>>();
+		for (int p=0; p<bounds.length-1; p++) {
+			final int part = p;
+			typeTasks.add(new Callable<boolean[]>() {
+				public boolean[] call() throws IOException {
+					boolean[] numeric = new boolean[numColumns];
+					for (int i=0; i<numColumns; i++) {
+						numeric[i] = i != classIndex;
+					}
+					LineReader lines = new LineReader(a_channel, bounds[part], bounds[part+1], d_dataOffset);
+					FieldSplitter splitter = new FieldSplitter(d_delimiter, false);
+					while (lines.next()) {
+						if (lines.isBlank()) {
+							continue;
+						}
+						splitter.splitRow(lines, numColumns);
+						byte[] bytes = lines.bytes();
+						for (int i=0; i<numColumns; i++) {
+							if (numeric[i] && !splitter.isMissing(bytes, i) && !splitter.isNumber(bytes, i)) {
+								numeric[i] = false;
+							}
+						}
+					}
+					return numeric;
+				}
+			});
+		}
+		final boolean[] numeric = new boolean[numColumns];
+		for (int i=0; i<numColumns; i++) {
+			numeric[i] = true;
+		}
+		for (boolean[] partNumeric : runTasks(typeTasks)) {
+			for (int i=0; i<numColumns; i++) {
+				numeric[i] &= partNumeric[i];
+			}
+		}
+
+		ArrayList<Callable<Categories[]>> categoryTasks = new ArrayList<Callable<Categories[]>>();
+		for (int p=0; p<bounds.length-1; p++) {
+			final int part = p;
+			categoryTasks.add(new Callable<Categories[]>() {
+				public Categories[] call() throws IOException {
+					Categories[] categories = new Categories[numColumns];
+					for (int i=0; i<numColumns; i++) {
+						if (!numeric[i]) {
+							categories[i] = new Categories(null);
+						}
+					}
+					LineReader lines = new LineReader(a_channel, bounds[part], bounds[part+1], d_dataOffset);
+					FieldSplitter splitter = new FieldSplitter(d_delimiter, false);
+					while (lines.next()) {
+						if (lines.isBlank()) {
+							continue;
+						}
+						splitter.splitRow(lines, numColumns);
+						byte[] bytes = lines.bytes();
+						for (int i=0; i<numColumns; i++) {
+							if (categories[i] != null && !splitter.isMissing(bytes, i)) {
+								categories[i].add(bytes, splitter.from(i), splitter.to(i));
+							}
+						}
+					}
+					return categories;
+				}
+			});
+		}
+		// Parts are merged in file order, so categories keep the order they first appear in
+		Categories[] categories = null;
+		for (Categories[] partCategories : runTasks(categoryTasks)) {
+			if (categories == null) {
+				categories = partCategories;
+				continue;
+			}
+			for (int i=0; i<numColumns; i++) {
+				if (categories[i] != null) {
+					categories[i].addAll(partCategories[i]);
+				}
+			}
+		}
+
+		ArrayList<Feature> features = new ArrayList<Feature>(numColumns);
+		try {
+			for (int i=0; i<numColumns; i++) {
+				if (numeric[i]) {
+					features.add(new Feature(a_names.get(i), Feature.NUMERIC));
+				} else {
+					features.add(new Feature(a_names.get(i), Feature.NOMINAL, categories[i].values()));
+				}
+			}
+		} catch (MLException e) {
+			throw new IOException(e.getMessage());
+		}
+		return features;
+	}
+
+	// Splits the data of the file into parts of about equal size, one per thread
+	private long[] partBounds(long a_fileSize) {
+		int numThreads = d_numThreads > 0 ? d_numThreads : Runtime.getRuntime().availableProcessors();
+		long dataSize = a_fileSize - d_dataOffset;
+		int numParts = (int) Math.max(1, Math.min(numThreads, dataSize / MIN_PART_SIZE));
+		long[] bounds = new long[numParts + 1];
+		for (int p=0; p<=numParts; p++) {
+			bounds[p] = d_dataOffset + dataSize * p / numParts;
+		}
+		return bounds;
+	}
+
+	// Runs the tasks, in parallel if there is more than one, and returns their results in order
+	private <T> ArrayList<T> runTasks(ArrayList<Callable<T>> a_tasks) throws IOException {
+		ArrayList<T> results = new ArrayList<T>(a_tasks.size());
+		try {
+			if (a_tasks.size() == 1) {
+				results.add(a_tasks.get(0).call());
+				return results;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(a_tasks.size(), new ThreadFactory() {
+				public Thread newThread(Runnable a_runnable) {
+					Thread thread = new Thread(a_runnable, "DatasetLoader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			try {
+				ArrayList<Future<T>> futures = new ArrayList<Future<T>>(a_tasks.size());
+				for (Callable<T> task : a_tasks) {
+					futures.add(executor.submit(task));
+				}
+				for (Future<T> future : futures) {
+					results.add(future.get());
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading "+d_file);
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	/**
+	 * Parses data lines into rows of a dataset.
+	 */
+	private final class RowParser {
+
+		private final LineReader d_lines;
+
+		private final FieldSplitter d_splitter;
+
+		private final int d_numColumns;
+
+		RowParser(LineReader a_lines) {
+			d_lines = a_lines;
+			d_splitter = new FieldSplitter(d_format == FORMAT_ARFF ? (byte) ',' : d_delimiter, d_format == FORMAT_ARFF);
+			d_numColumns = d_signature.size();
+		}
+
+		// Appends at most a_maxRows rows to the dataset and returns how many were appended
+		int readRows(Dataset a_dataset, int a_maxRows) throws IOException {
+			int numRows = 0;
+			while (numRows < a_maxRows && d_lines.next()) {
+				if (d_lines.isBlank() || (d_format == FORMAT_ARFF && d_lines.isComment())) {
+					continue;
+				}
+				byte[] bytes = d_lines.bytes();
+				if (d_format == FORMAT_ARFF && bytes[d_lines.firstNonBlank()] == '{') {
+					throw new IOException(d_lines.describe()+": sparse ARFF rows are not supported");
+				}
+				d_splitter.splitRow(d_lines, d_numColumns);
+				int row = a_dataset.addRow();
+				for (int i=0; i<d_numColumns; i++) {
+					if (d_splitter.isMissing(bytes, i)) {
+						continue;
+					}
+					int from = d_splitter.from(i);
+					int to = d_splitter.to(i);
+					if (d_categories[i] == null) {
+						double value = d_splitter.parseNumber(bytes, i);
+						if (value != value && !d_splitter.isNumber(bytes, i)) {
+							throw new IOException(d_lines.describe()+": "+d_splitter.fieldString(bytes, i)
+									+" is not a number ("+d_signature.getFeatureAtIndex(i).name()+")");
+						}
+						a_dataset.setNumeric(row, i, value);
+					} else {
+						int category = d_categories[i].find(bytes, from, to);
+						if (category < 0) {
+							throw new IOException(d_lines.describe()+": unknown category "+d_splitter.fieldString(bytes, i)
+									+" of "+d_signature.getFeatureAtIndex(i).name());
+						}
+						a_dataset.setNominal(row, i, category);
+					}
+				}
+				numRows++;
+			}
+			return numRows;
+		}
+	}
+
+	/**
+	 * Reads the lines that start in a range of the file through a buffer, 
+	 * which is grown if a line does not fit in it. A line that starts in 
+	 * the range is read whole, even if it ends past the range.
+	 */
+	private static final class LineReader {
+
+		private final FileChannel d_channel;
+
+		private final long d_end;
+
+		private byte[] d_bytes = new byte[BUFFER_SIZE];
+
+		// File offset of the first byte of the buffer
+		private long d_bufferOffset;
+
+		// Number of valid bytes in the buffer
+		private int d_fill;
+
+		// Where the next line starts in the buffer
+		private int d_next;
+
+		private boolean d_eof;
+
+		private int d_from;
+
+		private int d_to;
+
+		/**
+		 * A line starts at a_dataStart or right after a line feed, so the 
+		 * lines of a range that starts in the middle of one start after it.
+		 */
+		LineReader(FileChannel a_channel, long a_start, long a_end, long a_dataStart) throws IOException {
+			d_channel = a_channel;
+			d_end = a_end;
+			if (a_start > a_dataStart) {
+				d_bufferOffset = a_start - 1;
+				skipLine();
+			} else {
+				d_bufferOffset = a_start;
+			}
+		}
+
+		private void skipLine() throws IOException {
+			int scan = d_next;
+			while (true) {
+				while (scan < d_fill) {
+					if (d_bytes[scan++] == '\n') {
+						d_next = scan;
+						return;
+					}
+				}
+				if (d_eof) {
+					d_next = d_fill;
+					return;
+				}
+				scan -= d_next;
+				refill();
+			}
+		}
+
+		boolean next() throws IOException {
+			if (d_bufferOffset + d_next >= d_end) {
+				return false;
+			}
+			int scan = d_next;
+			while (true) {
+				while (scan < d_fill && d_bytes[scan] != '\n') {
+					scan++;
+				}
+				if (scan < d_fill || d_eof) {
+					break;
+				}
+				scan -= d_next;
+				refill();
+			}
+			if (scan == d_fill && scan == d_next) {
+				return false;
+			}
+			d_from = d_next;
+			d_to = scan;
+			d_next = Math.min(scan + 1, d_fill);
+			if (d_to > d_from && d_bytes[d_to - 1] == '\r') {
+				d_to--;
+			}
+			return true;
+		}
+
+		// Moves the rest of the buffer to its start, growing it if it is full, and reads more
+		private void refill() throws IOException {
+			if (d_next > 0) {
+				System.arraycopy(d_bytes, d_next, d_bytes, 0, d_fill - d_next);
+				d_bufferOffset += d_next;
+				d_fill -= d_next;
+				d_next = 0;
+			}
+			if (d_fill == d_bytes.length) {
+				byte[] bytes = new byte[d_bytes.length * 2];
+				System.arraycopy(d_bytes, 0, bytes, 0, d_fill);
+				d_bytes = bytes;
+			}
+			int read = d_channel.read(ByteBuffer.wrap(d_bytes, d_fill, d_bytes.length - d_fill), d_bufferOffset + d_fill);
+			if (read < 0) {
+				d_eof = true;
+			} else {
+				d_fill += read;
+			}
+		}
+
+		byte[] bytes() {
+			return d_bytes;
+		}
+
+		int from() {
+			return d_from;
+		}
+
+		int to() {
+			return d_to;
+		}
+
+		long lineOffset() {
+			return d_bufferOffset + d_from;
+		}
+
+		long nextLineOffset() {
+			return d_bufferOffset + d_next;
+		}
+
+		int firstNonBlank() {
+			int p = d_from;
+			while (p < d_to && (d_bytes[p] == ' ' || d_bytes[p] == '\t')) {
+				p++;
+			}
+			return p;
+		}
+
+		boolean isBlank() {
+			return firstNonBlank() == d_to;
+		}
+
+		boolean isComment() {
+			return d_bytes[firstNonBlank()] == '%';
+		}
+
+		String describe() {
+			return "Line at byte "+lineOffset();
+		}
+	}
+
+	/**
+	 * Splits a line into fields, in place. Quotes around a field are removed, 
+	 * and so are spaces around unquoted ones. Within a quoted field, a doubled 
+	 * quote (and in ARFF, a backslash) escapes the next character.
+	 */
+	private static final class FieldSplitter {
+
+		// 10^0 to 10^22 are exact doubles
+		private static final double[] POWERS_OF_TEN = new double[23];
+
+		static {
+			POWERS_OF_TEN[0] = 1;
+			for (int i=1; i<POWERS_OF_TEN.length; i++) {
+				POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+			}
+		}
+
+		private final byte d_delimiter;
+
+		private final boolean d_arff;
+
+		private int[] d_from = new int[16];
+
+		private int[] d_to = new int[16];
+
+		private boolean[] d_quoted = new boolean[16];
+
+		FieldSplitter(byte a_delimiter, boolean a_arff) {
+			d_delimiter = a_delimiter;
+			d_arff = a_arff;
+		}
+
+		int split(LineReader a_lines) throws IOException {
+			return split(a_lines.bytes(), a_lines.from(), a_lines.to(), a_lines);
+		}
+
+		void splitRow(LineReader a_lines, int a_numColumns) throws IOException {
+			int numFields = split(a_lines);
+			if (numFields != a_numColumns) {
+				throw new IOException(a_lines.describe()+": "+numFields+" fields instead of "+a_numColumns);
+			}
+		}
+
+		int split(byte[] b, int a_from, int a_to, LineReader a_lines) throws IOException {
+			int numFields = 0;
+			int p = a_from;
+			while (true) {
+				while (p < a_to && b[p] != d_delimiter && (b[p] == ' ' || b[p] == '\t')) {
+					p++;
+				}
+				int from, to;
+				boolean quoted = p < a_to && (b[p] == '"' || (d_arff && b[p] == '\''));
+				if (quoted) {
+					byte quote = b[p++];
+					from = p;
+					int w = p;
+					while (true) {
+						if (p >= a_to) {
+							throw new IOException(a_lines.describe()+": unterminated quote");
+						}
+						if (b[p] == quote) {
+							if (p + 1 < a_to && b[p+1] == quote) {
+								b[w++] = quote;
+								p += 2;
+								continue;
+							}
+							p++;
+							break;
+						}
+						if (d_arff && b[p] == '\\' && p + 1 < a_to) {
+							p++;
+						}
+						b[w++] = b[p++];
+					}
+					to = w;
+					while (p < a_to && b[p] != d_delimiter && (b[p] == ' ' || b[p] == '\t')) {
+						p++;
+					}
+					if (p < a_to && b[p] != d_delimiter) {
+						throw new IOException(a_lines.describe()+": text after a closing quote");
+					}
+				} else {
+					from = p;
+					while (p < a_to && b[p] != d_delimiter) {
+						p++;
+					}
+					to = p;
+					while (to > from && (b[to-1] == ' ' || b[to-1] == '\t')) {
+						to--;
+					}
+				}
+				if (numFields == d_from.length) {
+					grow();
+				}
+				d_from[numFields] = from;
+				d_to[numFields] = to;
+				d_quoted[numFields] = quoted;
+				numFields++;
+				if (p >= a_to) {
+					return numFields;
+				}
+				p++;
+			}
+		}
+
+		private void grow() {
+			int[] from = new int[d_from.length * 2];
+			int[] to = new int[d_from.length * 2];
+			boolean[] quoted = new boolean[d_from.length * 2];
+			System.arraycopy(d_from, 0, from, 0, d_from.length);
+			System.arraycopy(d_to, 0, to, 0, d_to.length);
+			System.arraycopy(d_quoted, 0, quoted, 0, d_quoted.length);
+			d_from = from;
+			d_to = to;
+			d_quoted = quoted;
+		}
+
+		int from(int a_field) {
+			return d_from[a_field];
+		}
+
+		int to(int a_field) {
+			return d_to[a_field];
+		}
+
+		boolean isMissing(byte[] b, int a_field) {
+			if (d_quoted[a_field]) {
+				return false;
+			}
+			int length = d_to[a_field] - d_from[a_field];
+			return length == 0 || (length == 1 && b[d_from[a_field]] == '?');
+		}
+
+		String fieldString(byte[] b, int a_field) throws UnsupportedEncodingException {
+			return new String(b, d_from[a_field], d_to[a_field] - d_from[a_field], "UTF-8");
+		}
+
+		boolean isNumber(byte[] b, int a_field) {
+			try {
+				Double.parseDouble(new String(b, d_from[a_field], d_to[a_field] - d_from[a_field], "ISO-8859-1"));
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			} catch (UnsupportedEncodingException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Converts a decimal number without creating objects, when the digits 
+		 * fit in a double exactly and the power of ten is exact too, in which 
+		 * case a single multiplication or division rounds correctly. Other 
+		 * numbers are converted by Double.parseDouble. Returns NaN for a field 
+		 * that is not a number.
+		 */
+		double parseNumber(byte[] b, int a_field) {
+			int p = d_from[a_field];
+			int to = d_to[a_field];
+			boolean negative = false;
+			if (p < to && (b[p] == '-' || b[p] == '+')) {
+				negative = b[p++] == '-';
+			}
+			long mantissa = 0;
+			int numDigits = 0;
+			int exponent = 0;
+			int start = p;
+			while (p < to && b[p] >= '0' && b[p] <= '9') {
+				if (numDigits < 18) {
+					mantissa = mantissa * 10 + (b[p] - '0');
+					if (mantissa > 0) {
+						numDigits++;
+					}
+				} else {
+					exponent++;
+				}
+				p++;
+			}
+			int intEnd = p;
+			if (p < to && b[p] == '.') {
+				p++;
+				while (p < to && b[p] >= '0' && b[p] <= '9') {
+					if (numDigits < 18) {
+						mantissa = mantissa * 10 + (b[p] - '0');
+						if (mantissa > 0) {
+							numDigits++;
+						}
+						exponent--;
+					}
+					p++;
+				}
+			}
+			boolean hasDigits = intEnd > start || p > intEnd + 1;
+			if (hasDigits && p < to && (b[p] == 'e' || b[p] == 'E')) {
+				p++;
+				boolean negativeExponent = false;
+				if (p < to && (b[p] == '-' || b[p] == '+')) {
+					negativeExponent = b[p++] == '-';
+				}
+				int expStart = p;
+				int explicit = 0;
+				while (p < to && b[p] >= '0' && b[p] <= '9' && explicit < 10000) {
+					explicit = explicit * 10 + (b[p++] - '0');
+				}
+				if (p == expStart) {
+					hasDigits = false;
+				}
+				exponent += negativeExponent ? -explicit : explicit;
+			}
+			if (hasDigits && p == to && numDigits < 18 && mantissa < (1L << 53)
+					&& exponent >= -22 && exponent <= 22) {
+				double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+				return negative ? -value : value;
+			}
+			try {
+				return Double.parseDouble(new String(b, d_from[a_field], d_to[a_field] - d_from[a_field], "ISO-8859-1"));
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			} catch (UnsupportedEncodingException e) {
+				return Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Category indices of a nominal feature, looked up by the UTF-8 bytes 
+	 * of the category in an open-addressing hash table.
+	 */
+	private static final class Categories {
+
+		private final ArrayList<String> d_values = new ArrayList<String>();
+
+		private final ArrayList<byte[]> d_keys = new ArrayList<byte[]>();
+
+		// Index of the category plus one in each slot, zero for an empty slot
+		private int[] d_slots = new int[16];
+
+		Categories(ArrayList<String> a_values) throws IOException {
+			if (a_values != null) {
+				for (String value : a_values) {
+					byte[] key = value.getBytes("UTF-8");
+					add(key, 0, key.length);
+				}
+			}
+		}
+
+		int find(byte[] b, int a_from, int a_to) {
+			int mask = d_slots.length - 1;
+			for (int slot = hash(b, a_from, a_to) & mask; d_slots[slot] != 0; slot = (slot + 1) & mask) {
+				byte[] key = d_keys.get(d_slots[slot] - 1);
+				if (equal(key, b, a_from, a_to)) {
+					return d_slots[slot] - 1;
+				}
+			}
+			return -1;
+		}
+
+		// Adds the category unless it is already there, and returns its index
+		int add(byte[] b, int a_from, int a_to) throws UnsupportedEncodingException {
+			int index = find(b, a_from, a_to);
+			if (index >= 0) {
+				return index;
+			}
+			byte[] key = new byte[a_to - a_from];
+			System.arraycopy(b, a_from, key, 0, key.length);
+			d_keys.add(key);
+			d_values.add(new String(key, "UTF-8"));
+			if (d_keys.size() * 2 > d_slots.length) {
+				d_slots = new int[d_slots.length * 2];
+				for (int i=0; i<d_keys.size(); i++) {
+					insert(d_keys.get(i), i);
+				}
+			} else {
+				insert(key, d_keys.size() - 1);
+			}
+			return d_keys.size() - 1;
+		}
+
+		void addAll(Categories a_other) throws UnsupportedEncodingException {
+			for (byte[] key : a_other.d_keys) {
+				add(key, 0, key.length);
+			}
+		}
+
+		private void insert(byte[] a_key, int a_index) {
+			int mask = d_slots.length - 1;
+			int slot = hash(a_key, 0, a_key.length) & mask;
+			while (d_slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			d_slots[slot] = a_index + 1;
+		}
+
+		ArrayList<String> values() {
+			return d_values;
+		}
+
+		private static int hash(byte[] b, int a_from, int a_to) {
+			int hash = 0x811C9DC5;
+			for (int p=a_from; p<a_to; p++) {
+				hash = (hash ^ b[p]) * 0x01000193;
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+		private static boolean equal(byte[] a_key, byte[] b, int a_from, int a_to) {
+			if (a_key.length != a_to - a_from) {
+				return false;
+			}
+			for (int i=0; i<a_key.length; i++) {
+				if (a_key[i] != b[a_from + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.MLException;
+
+/**
+ * Streams a Feature as its name, type and list of categories. 
+ * The category index is rebuilt on reading, rather than stored.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class FeatureAdapter extends TypeAdapter<Feature> {
+
+	@Override
+	public void write(JsonWriter a_out, Feature a_feature) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_type").value(a_feature.getFeatureType());
+		a_out.name("d_name").value(a_feature.name());
+		if (a_feature.getFeatureType() == Feature.NOMINAL) {
+			a_out.name("d_categories").beginArray();
+			for (String category : a_feature.getValues()) {
+				a_out.value(category);
+			}
+			a_out.endArray();
+		}
+		a_out.endObject();
+	}
+
+	@Override
+	public Feature read(JsonReader a_in) throws IOException {
+		int type = Feature.NUMERIC;
+		String name = null;
+		ArrayList<String> categories = null;
+		
+		a_in.beginObject();
+		while (a_in.hasNext()) {
+			String field = a_in.nextName();
+			if (field.equals("d_type")) {
+				type = a_in.nextInt();
+			} else if (field.equals("d_name")) {
+				name = a_in.nextString();
+			} else if (field.equals("d_categories")) {
+				categories = new ArrayList<String>();
+				a_in.beginArray();
+				while (a_in.hasNext()) {
+					categories.add(a_in.nextString());
+				}
+				a_in.endArray();
+			} else {
+				a_in.skipValue();
+			}
+		}
+		a_in.endObject();
+		
+		try {
+			return type == Feature.NOMINAL ? new Feature(name, type, categories) : new Feature(name, type);
+		} catch (MLException e) {
+			throw new JsonParseException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+import com.ubhave.mltoolkit.utils.Value;
+
+/**
+ * Encodes instances that comply with a signature in a compact binary form:
+ * for every feature a tag byte, followed by the index of the category for 
+ * a nominal value, or the double for a numeric value. Missing values are 
+ * only a tag. Buffers have to be in little-endian order, like the snapshots.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class InstanceCodec {
+
+	private static final int TAG_NOMINAL = Value.NOMINAL_VALUE;
+	private static final int TAG_NUMERIC = Value.NUMERIC_VALUE;
+	private static final int TAG_MISSING = Value.MISSING_VALUE;
+	
+	private final Signature d_signature;
+	
+	private final ArrayList<String>[] d_categories;
+	
+	@SuppressWarnings("unchecked")
+	public InstanceCodec(Signature a_signature) {
+		d_signature = a_signature;
+		// Arrays of a generic type cannot be created, only cast to, and the array never leaves the codec
+		d_categories = (ArrayList<String>[]) new ArrayList<?>[a_signature.size()];
+		for (int i=0; i<d_categories.length; i++) {
+			Feature feature = a_signature.getFeatureAtIndex(i);
+			if (feature.getFeatureType() == Feature.NOMINAL) {
+				d_categories[i] = feature.getValues();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes an encoded instance takes at most.
+	 */
+	public int maxEncodedLength() {
+		return d_categories.length * 9;
+	}
+	
+	/**
+	 * Writes a training instance to the buffer. The instance is checked for 
+	 * compliance with the signature, and nominal values have to be among 
+	 * the categories of their feature.
+	 */
+	public void encode(Instance a_instance, ByteBuffer a_out) throws MLException {
+		d_signature.validate(a_instance, true);
+		for (int i=0; i<d_categories.length; i++) {
+			Value value = a_instance.getValueAtIndex(i);
+			if (value.getValueType() == Value.MISSING_VALUE) {
+				a_out.put((byte) TAG_MISSING);
+			} else if (d_categories[i] == null) {
+				a_out.put((byte) TAG_NUMERIC);
+				a_out.putDouble((Double) value.getValue());
+			} else {
+				int category = d_categories[i].indexOf(value.getValue());
+				if (category < 0) {
+					throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
+							"Value "+value.getValue()+" is not a category of feature "
+							+d_signature.getFeatureAtIndex(i).name());
+				}
+				a_out.put((byte) TAG_NOMINAL);
+				a_out.putInt(category);
+			}
+		}
+	}
+	
+	/**
+	 * Reads an instance written by encode. Throws an MLException if the 
+	 * encoded values do not fit the signature.
+	 */
+	public Instance decode(ByteBuffer a_in) throws MLException {
+		Instance instance = new Instance(d_categories.length);
+		try {
+			for (int i=0; i<d_categories.length; i++) {
+				int tag = a_in.get();
+				if (tag == TAG_MISSING) {
+					instance.addValue(new Value(null, Value.MISSING_VALUE));
+				} else if (tag == TAG_NUMERIC && d_categories[i] == null) {
+					instance.addValue(new Value(a_in.getDouble(), Value.NUMERIC_VALUE));
+				} else if (tag == TAG_NOMINAL && d_categories[i] != null) {
+					int category = a_in.getInt();
+					if (category < 0 || category >= d_categories[i].size()) {
+						throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
+								"Invalid category index "+category+" of feature "+i);
+					}
+					instance.addValue(new Value(d_categories[i].get(category), Value.NOMINAL_VALUE));
+				} else {
+					throw new MLException(MLException.INCOMPATIBLE_INSTANCE, 
+							"Invalid value tag "+tag+" of feature "+i);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new MLException(MLException.INCOMPATIBLE_INSTANCE, "Encoded instance is truncated.");
+		}
+		return instance;
+	}
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.InstanceSource;
+import com.ubhave.mltoolkit.utils.InstanceStream;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * File of training instances. The file starts with a header (magic number, 
+ * format version and signature), followed by the instances as encoded by 
+ * InstanceCodec. Training sets that do not fit in memory are written to such 
+ * a file one instance at a time, and classifiers train from it through 
+ * streams that hold only a buffer of it in memory, see Classifier.train.
+ *
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class InstanceFile implements InstanceSource {
+
+	// "MLTI" in little-endian order
+	public static final int MAGIC = 0x49544C4D;
+
+	public static final int VERSION = 1;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final File d_file;
+	
+	private final Signature d_signature;
+	
+	// Where the instances start
+	private final long d_dataOffset;
+	
+	/**
+	 * Opens an existing file of instances, of which only the header is read.
+	 */
+	public InstanceFile(File a_file) throws IOException {
+		FileInputStream stream = new FileInputStream(a_file);
+		try {
+			SnapshotReader in = new SnapshotReader(stream.getChannel());
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not an instance file.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported instance file version "+version);
+			}
+			d_signature = ModelSnapshot.readSignature(in);
+			d_dataOffset = in.position();
+		} finally {
+			stream.close();
+		}
+		d_file = a_file;
+	}
+	
+	/**
+	 * Creates a file for instances that comply with the signature, replacing 
+	 * an existing one. The instances are added through the returned writer.
+	 */
+	public static Writer create(File a_file, Signature a_signature) throws IOException {
+		return new Writer(a_file, a_signature);
+	}
+	
+	public Signature getSignature() {
+		return d_signature;
+	}
+	
+	public InstanceStream open() throws MLException {
+		try {
+			return new Reader();
+		} catch (IOException e) {
+			throw new MLException(MLException.IO_ERROR, "Could not open "+d_file+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Reads the instances through a buffer that always holds at least one 
+	 * whole encoded instance, unless the file ends.
+	 */
+	private class Reader implements InstanceStream {
+		
+		private final FileInputStream d_stream;
+		
+		private final FileChannel d_channel;
+		
+		private final ByteBuffer d_buffer;
+		
+		private final InstanceCodec d_codec;
+		
+		private boolean d_ended;
+		
+		Reader() throws IOException {
+			d_stream = new FileInputStream(d_file);
+			d_channel = d_stream.getChannel();
+			d_channel.position(d_dataOffset);
+			d_codec = new InstanceCodec(d_signature);
+			d_buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, d_codec.maxEncodedLength()))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			d_buffer.limit(0);
+		}
+		
+		public Instance next() throws MLException {
+			if (!d_ended && d_buffer.remaining() < d_codec.maxEncodedLength()) {
+				try {
+					fill();
+				} catch (IOException e) {
+					throw new MLException(MLException.IO_ERROR, "Could not read "+d_file+": "+e.getMessage());
+				}
+			}
+			if (!d_buffer.hasRemaining()) {
+				return null;
+			}
+			return d_codec.decode(d_buffer);
+		}
+		
+		private void fill() throws IOException {
+			d_buffer.compact();
+			while (d_buffer.hasRemaining()) {
+				if (d_channel.read(d_buffer) < 0) {
+					d_ended = true;
+					break;
+				}
+			}
+			d_buffer.flip();
+		}
+		
+		public void close() {
+			try {
+				d_stream.close();
+			} catch (IOException e) {
+				// nothing was written, so nothing is lost
+			}
+		}
+	}
+	
+	/**
+	 * Appends instances to a new file, through a buffer. The file is complete once closed.
+	 */
+	public static class Writer {
+		
+		private final FileOutputStream d_stream;
+		
+		private final SnapshotWriter d_out;
+		
+		private final InstanceCodec d_codec;
+		
+		private final ByteBuffer d_record;
+		
+		private Writer(File a_file, Signature a_signature) throws IOException {
+			d_stream = new FileOutputStream(a_file);
+			d_out = new SnapshotWriter(d_stream.getChannel());
+			d_codec = new InstanceCodec(a_signature);
+			d_record = ByteBuffer.allocate(d_codec.maxEncodedLength()).order(ByteOrder.LITTLE_ENDIAN);
+			try {
+				d_out.writeInt(MAGIC);
+				d_out.writeInt(VERSION);
+				ModelSnapshot.writeSignature(d_out, a_signature);
+			} catch (IOException e) {
+				d_stream.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Appends a training instance, which has to comply with the signature.
+		 */
+		public void append(Instance a_instance) throws MLException, IOException {
+			d_record.clear();
+			d_codec.encode(a_instance, d_record);
+			d_record.flip();
+			d_out.writeRaw(d_record);
+		}
+		
+		public void close() throws IOException {
+			try {
+				d_out.flush();
+			} finally {
+				d_stream.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams primitive arrays to and from JSON arrays without boxing.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class JsonArrays {
+
+	public static void writeDoubleArray(JsonWriter a_out, double[] a_values) throws IOException {
+		a_out.beginArray();
+		for (double value : a_values) {
+			a_out.value(value);
+		}
+		a_out.endArray();
+	}
+	
+	public static double[] readDoubleArray(JsonReader a_in) throws IOException {
+		double[] values = new double[16];
+		int size = 0;
+		a_in.beginArray();
+		while (a_in.hasNext()) {
+			if (size == values.length) {
+				double[] grown = new double[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = a_in.nextDouble();
+		}
+		a_in.endArray();
+		double[] result = new double[size];
+		System.arraycopy(values, 0, result, 0, size);
+		return result;
+	}
+	
+	public static void writeIntArray(JsonWriter a_out, int[] a_values) throws IOException {
+		a_out.beginArray();
+		for (int value : a_values) {
+			a_out.value(value);
+		}
+		a_out.endArray();
+	}
+	
+	public static int[] readIntArray(JsonReader a_in) throws IOException {
+		int[] values = new int[16];
+		int size = 0;
+		a_in.beginArray();
+		while (a_in.hasNext()) {
+			if (size == values.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = a_in.nextInt();
+		}
+		a_in.endArray();
+		int[] result = new int[size];
+		System.arraycopy(values, 0, result, 0, size);
+		return result;
+	}
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.classifier.Classifier;
+import com.ubhave.mltoolkit.classifier.DensityClustering;
+import com.ubhave.mltoolkit.classifier.ID3;
+import com.ubhave.mltoolkit.classifier.NaiveBayes;
+import com.ubhave.mltoolkit.classifier.ZeroR;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Signature;
+import com.ubhave.mltoolkit.utils.Value;
+
+/**
+ * JSON (de)serialization of classifiers with hand-written streaming adapters,
+ * so that neither reflection nor an intermediate string or tree is needed. 
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class JsonSnapshot {
+
+	private static final ClassifierListAdapter LIST_ADAPTER = new ClassifierListAdapter();
+	
+	/**
+	 * Creates a Gson instance that uses the streaming adapters for all 
+	 * classifiers and the types they are built of.
+	 */
+	public static Gson createGson() {
+		return new GsonBuilder()
+			.registerTypeAdapter(ClassifierList.class, new ClassifierListAdapter().nullSafe())
+			.registerTypeAdapter(Classifier.class, new ClassifierAdapter<Classifier>(Classifier.class).nullSafe())
+			.registerTypeAdapter(NaiveBayes.class, new ClassifierAdapter<NaiveBayes>(NaiveBayes.class).nullSafe())
+			.registerTypeAdapter(ID3.class, new ClassifierAdapter<ID3>(ID3.class).nullSafe())
+			.registerTypeAdapter(DensityClustering.class, 
+					new ClassifierAdapter<DensityClustering>(DensityClustering.class).nullSafe())
+			.registerTypeAdapter(ZeroR.class, new ClassifierAdapter<ZeroR>(ZeroR.class).nullSafe())
+			.registerTypeAdapter(Signature.class, new SignatureAdapter().nullSafe())
+			.registerTypeAdapter(Feature.class, new FeatureAdapter().nullSafe())
+			.registerTypeAdapter(Value.class, new ValueAdapter().nullSafe())
+			.registerTypeAdapter(ClassifierConfig.class, new ConfigAdapter().nullSafe())
+			.create();
+	}
+	
+	public static void write(Writer a_writer, ClassifierList a_list) throws IOException {
+		JsonWriter out = new JsonWriter(a_writer);
+		LIST_ADAPTER.write(out, a_list);
+		out.flush();
+	}
+	
+	public static ClassifierList read(Reader a_reader) throws IOException {
+		return LIST_ADAPTER.read(new JsonReader(a_reader));
+	}
+}
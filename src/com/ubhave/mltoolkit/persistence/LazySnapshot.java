@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.classifier.Classifier;
+
+/**
+ * Registers the classifiers of a snapshot file as stored classifiers, reading 
+ * only the index of the snapshot. Each classifier is read from its record when 
+ * it is first requested, so the time it takes to open a snapshot depends on the 
+ * classifiers that are used rather than on all the classifiers that are saved.
+ * 
+ * The file is opened again for each classifier that is read. Snapshot files are 
+ * replaced by renaming a new file over them, and only once their classifiers have
+ * been read, see MachineLearningManager.saveToPersistent.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class LazySnapshot implements ClassifierList.Loader {
+
+	private final File d_file;
+	
+	private final HashMap<String, ModelSnapshot.IndexEntry> d_index;
+	
+	private LazySnapshot(File a_file, HashMap<String, ModelSnapshot.IndexEntry> a_index) {
+		d_file = a_file;
+		d_index = a_index;
+	}
+	
+	/**
+	 * Adds the classifiers of the snapshot to the list as stored classifiers, and 
+	 * puts the generation of the snapshot in a_generations under the name of each.
+	 * Throws an IOException if the snapshot cannot be read, or if it has no index, 
+	 * see ModelSnapshot.readIndex.
+	 */
+	public static void open(File a_file, ClassifierList a_classifiers, Map<String, Long> a_generations) throws IOException {
+		HashMap<String, ModelSnapshot.IndexEntry> index = new HashMap<String, ModelSnapshot.IndexEntry>();
+		long generation;
+		FileInputStream stream = new FileInputStream(a_file);
+		try {
+			generation = ModelSnapshot.readIndex(stream.getChannel(), index);
+		} finally {
+			stream.close();
+		}
+		
+		LazySnapshot snapshot = new LazySnapshot(a_file, index);
+		for (Map.Entry<String, ModelSnapshot.IndexEntry> entry : index.entrySet()) {
+			a_classifiers.putStoredClassifier(entry.getKey(), entry.getValue().getType(), snapshot);
+			a_generations.put(entry.getKey(), generation);
+		}
+	}
+	
+	public Classifier load(String a_name) throws IOException {
+		ModelSnapshot.IndexEntry entry = d_index.get(a_name);
+		if (entry == null) {
+			throw new IOException("Snapshot has no classifier "+a_name);
+		}
+		FileInputStream stream = new FileInputStream(d_file);
+		try {
+			return ModelSnapshot.readClassifier(stream.getChannel(), entry);
+		} finally {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ubhave.mltoolkit.classifier.Classifier;
+import com.ubhave.mltoolkit.classifier.MappedClassifier;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Read-only model file, meant to be memory-mapped. The file starts with a header
+ * (magic number, format version, type tag, signature and configuration), followed
+ * by the tables the classifier classifies from, see Classifier.writeMapped.
+ *
+ * A mapped model is classified straight from the page cache, so mapping it takes
+ * about the same time regardless of its size, the tables take no heap space, and
+ * processes that map the same file share its pages.
+ *
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class MappedModel {
+
+	// "MLTR" in little-endian order
+	public static final int MAGIC = 0x52544C4D;
+
+	public static final int VERSION = 1;
+
+	/**
+	 * Writes the model file of the classifier. The file is written next to the
+	 * target and renamed once complete, so a file that is mapped elsewhere is
+	 * never seen half-written.
+	 */
+	public static void write(Classifier a_classifier, File a_file) throws IOException {
+		File tmpFile = new File(a_file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmpFile);
+		try {
+			SnapshotWriter out = new SnapshotWriter(stream.getChannel());
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(a_classifier.getType());
+			ModelSnapshot.writeSignature(out, a_classifier.getSignature());
+			ModelSnapshot.writeConfig(out, a_classifier.getConfig());
+			a_classifier.writeMapped(out);
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		if (!tmpFile.renameTo(a_file)) {
+			tmpFile.delete();
+			throw new IOException("Could not rename "+tmpFile+" to "+a_file);
+		}
+	}
+
+	/**
+	 * Maps the model file and returns a read-only classifier backed by it.
+	 * Only the header is read, the mapping stays valid after the file is closed.
+	 */
+	public static MappedClassifier map(File a_file) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(a_file, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			SnapshotReader in = new SnapshotReader(channel);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a mapped model file.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported mapped model version "+version);
+			}
+			int type = in.readInt();
+			Signature signature = ModelSnapshot.readSignature(in);
+			ClassifierConfig config = ModelSnapshot.readConfig(in);
+
+			long tablesOffset = in.position();
+			MappedByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, tablesOffset, channel.size() - tablesOffset);
+			return MappedClassifier.create(type, signature, config, tables);
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.classifier.Classifier;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Compact binary snapshot of named classifiers. A snapshot starts with a header
+ * (magic number, format version, generation and the number of classifiers), 
+ * followed by a record per classifier: its name, type tag, signature, configuration 
+ * and finally the classifier state. Counts, centroids and other tables are written
+ * as little-endian primitive arrays, see SnapshotWriter.
+ * 
+ * The records are followed by an index, which holds the name, type tag, offset 
+ * and length of each record, and ends with the offset of the index and the 
+ * magic number. The index lets single classifiers be read on demand, see readIndex.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class ModelSnapshot {
+
+	// "MLTK" in little-endian order
+	public static final int MAGIC = 0x4B544C4D;
+	
+	// Version 2 added the generation, version 1 snapshots are of generation 0.
+	// Version 3 added the index, version 4 the reservoirs of DensityClustering,
+	// version 5 the window of NaiveBayes, version 6 the numeric splits of ID3.
+	public static final int VERSION = 6;
+	
+	// Offset of the index and the magic number
+	private static final int FOOTER = 12;
+	
+	// Type tags of configuration parameters
+	private static final int PARAM_BOOLEAN = 0;
+	private static final int PARAM_INTEGER = 1;
+	private static final int PARAM_LONG = 2;
+	private static final int PARAM_DOUBLE = 3;
+	private static final int PARAM_FLOAT = 4;
+	private static final int PARAM_STRING = 5;
+	
+	/**
+	 * Returns the name of the file that holds the snapshot of the named classifier alone.
+	 */
+	public static String fileName(String a_name) throws IOException {
+		return URLEncoder.encode(a_name, "UTF-8") + Constants.CLASSIFIER_SHARD_SUFFIX;
+	}
+	
+	public static void write(WritableByteChannel a_channel, Map<String, Classifier> a_classifiers) throws IOException {
+		write(a_channel, a_classifiers, 0);
+	}
+	
+	/**
+	 * Writes a snapshot of the given generation. The generation tells which 
+	 * update journals were started after the snapshot, see UpdateJournal.
+	 */
+	public static void write(WritableByteChannel a_channel, Map<String, Classifier> a_classifiers, long a_generation) throws IOException {
+		write(a_channel, a_classifiers, a_generation, null);
+	}
+	
+	/**
+	 * Told about every classifier record written to a snapshot.
+	 */
+	public interface RecordListener {
+		
+		public void recordWritten(String a_name, long a_bytes, long a_nanos);
+	}
+	
+	/**
+	 * Writes a snapshot of the given generation, and tells the listener, if 
+	 * any, how long each classifier record is and how long it took to write.
+	 */
+	public static void write(WritableByteChannel a_channel, Map<String, Classifier> a_classifiers, long a_generation, 
+			RecordListener a_listener) throws IOException {
+		SnapshotWriter out = new SnapshotWriter(a_channel);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(a_generation);
+		out.writeInt(a_classifiers.size());
+		ArrayList<IndexEntry> index = new ArrayList<IndexEntry>(a_classifiers.size());
+		for (Map.Entry<String, Classifier> entry : a_classifiers.entrySet()) {
+			long start = System.nanoTime();
+			long position = out.position();
+			writeClassifier(out, entry.getKey(), entry.getValue());
+			index.add(new IndexEntry(entry.getKey(), entry.getValue().getType(), VERSION, position, out.position() - position));
+			if (a_listener != null) {
+				a_listener.recordWritten(entry.getKey(), out.position() - position, System.nanoTime() - start);
+			}
+		}
+		
+		long indexOffset = out.position();
+		for (IndexEntry entry : index) {
+			out.writeString(entry.getName());
+			out.writeInt(entry.getType());
+			out.writeLong(entry.d_offset);
+			out.writeLong(entry.d_length);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(MAGIC);
+		out.flush();
+	}
+	
+	public static HashMap<String, Classifier> read(ReadableByteChannel a_channel) throws IOException {
+		HashMap<String, Classifier> classifiers = new HashMap<String, Classifier>();
+		read(a_channel, classifiers);
+		return classifiers;
+	}
+	
+	/**
+	 * Reads the classifiers of a snapshot into the map and returns the generation of the snapshot.
+	 */
+	public static long read(ReadableByteChannel a_channel, Map<String, Classifier> a_classifiers) throws IOException {
+		SnapshotReader in = new SnapshotReader(a_channel);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a classifier snapshot.");
+		}
+		int version = in.readInt();
+		if (version > VERSION) {
+			throw new IOException("Unsupported snapshot version "+version);
+		}
+		in.setVersion(version);
+		long generation = version >= 2 ? in.readLong() : 0;
+		int numClassifiers = in.readInt();
+		for (int i=0; i<numClassifiers; i++) {
+			String name = in.readString();
+			a_classifiers.put(name, readClassifier(in));
+		}
+		return generation;
+	}
+	
+	/**
+	 * The location of a classifier record in a snapshot file.
+	 */
+	public static class IndexEntry {
+		
+		private final String d_name;
+		
+		private final int d_type;
+		
+		private final int d_version;
+		
+		private final long d_offset;
+		
+		private final long d_length;
+		
+		IndexEntry(String a_name, int a_type, int a_version, long a_offset, long a_length) {
+			d_name = a_name;
+			d_type = a_type;
+			d_version = a_version;
+			d_offset = a_offset;
+			d_length = a_length;
+		}
+		
+		public String getName() {
+			return d_name;
+		}
+		
+		public int getType() {
+			return d_type;
+		}
+	}
+	
+	/**
+	 * Reads the index of a snapshot file into the map and returns the generation 
+	 * of the snapshot, without reading any classifier. Throws an IOException if the 
+	 * snapshot has no index, because it was written by an earlier version.
+	 */
+	public static long readIndex(FileChannel a_channel, Map<String, IndexEntry> a_index) throws IOException {
+		long size = a_channel.size();
+		SnapshotReader in = new SnapshotReader(new RangeChannel(a_channel, 0, size));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a classifier snapshot.");
+		}
+		int version = in.readInt();
+		if (version < 3 || version > VERSION) {
+			throw new IOException("Snapshot version "+version+" has no index.");
+		}
+		long generation = in.readLong();
+		int numClassifiers = in.readInt();
+		
+		if (size < FOOTER) {
+			throw new EOFException("Snapshot ended unexpectedly.");
+		}
+		in = new SnapshotReader(new RangeChannel(a_channel, size - FOOTER, FOOTER));
+		long indexOffset = in.readLong();
+		if (in.readInt() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER) {
+			throw new IOException("Corrupt snapshot: invalid index.");
+		}
+		in = new SnapshotReader(new RangeChannel(a_channel, indexOffset, size - FOOTER - indexOffset));
+		for (int i=0; i<numClassifiers; i++) {
+			String name = in.readString();
+			int type = in.readInt();
+			long offset = in.readLong();
+			long length = in.readLong();
+			if (offset < 0 || length < 0 || offset + length > indexOffset) {
+				throw new IOException("Corrupt snapshot: invalid record of "+name);
+			}
+			a_index.put(name, new IndexEntry(name, type, version, offset, length));
+		}
+		return generation;
+	}
+	
+	/**
+	 * Reads the classifier record that the index entry points to. Reads do not 
+	 * move the position of the channel, so records can be read concurrently.
+	 */
+	public static Classifier readClassifier(FileChannel a_channel, IndexEntry a_entry) throws IOException {
+		SnapshotReader in = new SnapshotReader(new RangeChannel(a_channel, a_entry.d_offset, a_entry.d_length));
+		in.setVersion(a_entry.d_version);
+		if (!in.readString().equals(a_entry.getName())) {
+			throw new IOException("Corrupt snapshot: index does not match the record of "+a_entry.getName());
+		}
+		Classifier classifier = readClassifier(in);
+		if (classifier.getType() != a_entry.getType()) {
+			throw new IOException("Corrupt snapshot: index does not match the record of "+a_entry.getName());
+		}
+		return classifier;
+	}
+	
+	// Reads a range of a file, without moving the position of its channel.
+	private static class RangeChannel implements ReadableByteChannel {
+		
+		private final FileChannel d_channel;
+		
+		private long d_position;
+		
+		private final long d_end;
+		
+		RangeChannel(FileChannel a_channel, long a_offset, long a_length) {
+			d_channel = a_channel;
+			d_position = a_offset;
+			d_end = a_offset + a_length;
+		}
+		
+		public int read(ByteBuffer a_buffer) throws IOException {
+			if (d_position >= d_end) {
+				return -1;
+			}
+			int limit = a_buffer.limit();
+			if (a_buffer.remaining() > d_end - d_position) {
+				a_buffer.limit(a_buffer.position() + (int) (d_end - d_position));
+			}
+			try {
+				int read = d_channel.read(a_buffer, d_position);
+				if (read > 0) {
+					d_position += read;
+				}
+				return read;
+			} finally {
+				a_buffer.limit(limit);
+			}
+		}
+		
+		public boolean isOpen() {
+			return d_channel.isOpen();
+		}
+		
+		public void close() {
+		}
+	}
+	
+	public static void writeClassifier(SnapshotWriter a_out, String a_name, Classifier a_classifier) throws IOException {
+		a_out.writeString(a_name);
+		a_out.writeInt(a_classifier.getType());
+		writeSignature(a_out, a_classifier.getSignature());
+		writeConfig(a_out, a_classifier.getConfig());
+		a_classifier.writeState(a_out);
+	}
+	
+	// Reads a classifier record, after its name.
+	public static Classifier readClassifier(SnapshotReader a_in) throws IOException {
+		int type = a_in.readInt();
+		Signature signature = readSignature(a_in);
+		ClassifierConfig config = readConfig(a_in);
+		Classifier classifier = ClassifierList.createClassifier(type, signature, config);
+		if (classifier.getType() != type) {
+			throw new IOException("Unknown classifier type "+type);
+		}
+		classifier.readState(a_in);
+		return classifier;
+	}
+	
+	public static void writeSignature(SnapshotWriter a_out, Signature a_signature) throws IOException {
+		a_out.writeInt(a_signature.getClassIndex());
+		a_out.writeInt(a_signature.size());
+		for (Feature feature : a_signature.getFeatures()) {
+			a_out.writeString(feature.name());
+			a_out.writeByte(feature.getFeatureType());
+			if (feature.getFeatureType() == Feature.NOMINAL) {
+				ArrayList<String> categories = feature.getValues();
+				a_out.writeInt(categories.size());
+				for (String category : categories) {
+					a_out.writeString(category);
+				}
+			}
+		}
+	}
+	
+	public static Signature readSignature(SnapshotReader a_in) throws IOException {
+		int classIndex = a_in.readInt();
+		int numFeatures = a_in.readInt();
+		ArrayList<Feature> features = new ArrayList<Feature>(numFeatures);
+		try {
+			for (int i=0; i<numFeatures; i++) {
+				String name = a_in.readString();
+				int type = a_in.readByte();
+				if (type == Feature.NOMINAL) {
+					int numCategories = a_in.readInt();
+					ArrayList<String> categories = new ArrayList<String>(numCategories);
+					for (int j=0; j<numCategories; j++) {
+						categories.add(a_in.readString());
+					}
+					features.add(new Feature(name, type, categories));
+				} else {
+					features.add(new Feature(name, type));
+				}
+			}
+		} catch (MLException e) {
+			throw new IOException("Corrupt snapshot: "+e.getMessage());
+		}
+		return new Signature(features, classIndex);
+	}
+	
+	public static void writeConfig(SnapshotWriter a_out, ClassifierConfig a_config) throws IOException {
+		a_out.writeInt(a_config.getAllParams().size());
+		for (String param : a_config.getAllParams()) {
+			Object value = a_config.getParam(param);
+			a_out.writeString(param);
+			if (value instanceof Boolean) {
+				a_out.writeByte(PARAM_BOOLEAN);
+				a_out.writeBoolean((Boolean) value);
+			} else if (value instanceof Integer) {
+				a_out.writeByte(PARAM_INTEGER);
+				a_out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				a_out.writeByte(PARAM_LONG);
+				a_out.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				a_out.writeByte(PARAM_DOUBLE);
+				a_out.writeDouble((Double) value);
+			} else if (value instanceof Float) {
+				a_out.writeByte(PARAM_FLOAT);
+				a_out.writeDouble((Float) value);
+			} else if (value instanceof String) {
+				a_out.writeByte(PARAM_STRING);
+				a_out.writeString((String) value);
+			} else {
+				throw new IOException("Parameter "+param+" of type "
+						+(value == null ? null : value.getClass().getName())+" cannot be saved.");
+			}
+		}
+	}
+	
+	public static ClassifierConfig readConfig(SnapshotReader a_in) throws IOException {
+		ClassifierConfig config = new ClassifierConfig();
+		int numParams = a_in.readInt();
+		for (int i=0; i<numParams; i++) {
+			String param = a_in.readString();
+			int tag = a_in.readByte();
+			switch (tag) {
+				case PARAM_BOOLEAN: config.addParam(param, a_in.readBoolean()); break;
+				case PARAM_INTEGER: config.addParam(param, a_in.readInt()); break;
+				case PARAM_LONG: config.addParam(param, a_in.readLong()); break;
+				case PARAM_DOUBLE: config.addParam(param, a_in.readDouble()); break;
+				case PARAM_FLOAT: config.addParam(param, (float) a_in.readDouble()); break;
+				case PARAM_STRING: config.addParam(param, a_in.readString()); break;
+				default: throw new IOException("Corrupt snapshot: unknown parameter type "+tag);
+			}
+		}
+		return config;
+	}
+}
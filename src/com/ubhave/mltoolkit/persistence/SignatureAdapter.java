@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Streams a Signature as its list of features and the class index.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class SignatureAdapter extends TypeAdapter<Signature> {
+
+	private final FeatureAdapter d_featureAdapter = new FeatureAdapter();
+	
+	@Override
+	public void write(JsonWriter a_out, Signature a_signature) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_features").beginArray();
+		for (Feature feature : a_signature.getFeatures()) {
+			d_featureAdapter.write(a_out, feature);
+		}
+		a_out.endArray();
+		a_out.name("d_classIndex").value(a_signature.getClassIndex());
+		a_out.endObject();
+	}
+
+	@Override
+	public Signature read(JsonReader a_in) throws IOException {
+		ArrayList<Feature> features = new ArrayList<Feature>();
+		int classIndex = -1;
+		
+		a_in.beginObject();
+		while (a_in.hasNext()) {
+			String field = a_in.nextName();
+			if (field.equals("d_features")) {
+				a_in.beginArray();
+				while (a_in.hasNext()) {
+					features.add(d_featureAdapter.read(a_in));
+				}
+				a_in.endArray();
+			} else if (field.equals("d_classIndex")) {
+				classIndex = a_in.nextInt();
+			} else {
+				a_in.skipValue();
+			}
+		}
+		a_in.endObject();
+		
+		return classIndex < 0 ? new Signature(features) : new Signature(features, classIndex);
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads what a SnapshotWriter wrote, from a channel through a fixed size buffer.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class SnapshotReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	// Guards against allocating huge arrays because of a corrupt length.
+	private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE / 8;
+	
+	private final ReadableByteChannel d_channel;
+	
+	private final ByteBuffer d_buffer;
+	
+	private long d_read;
+	
+	private int d_version;
+	
+	public SnapshotReader(ReadableByteChannel a_channel) {
+		d_channel = a_channel;
+		d_buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		d_buffer.limit(0);
+		d_read = 0;
+	}
+	
+	private void ensure(int a_bytes) throws IOException {
+		if (d_buffer.remaining() >= a_bytes) {
+			return;
+		}
+		d_buffer.compact();
+		while (d_buffer.position() < a_bytes) {
+			int read = d_channel.read(d_buffer);
+			if (read < 0) {
+				d_buffer.flip();
+				throw new EOFException("Snapshot ended unexpectedly.");
+			}
+			d_read += read;
+		}
+		d_buffer.flip();
+	}
+	
+	/**
+	 * Returns the format version of the snapshot being read, which tells 
+	 * classifiers what their state holds, see Classifier.readState.
+	 */
+	public int getVersion() {
+		return d_version;
+	}
+	
+	public void setVersion(int a_version) {
+		d_version = a_version;
+	}
+	
+	/**
+	 * Returns the number of bytes consumed from the channel so far.
+	 */
+	public long position() {
+		return d_read - d_buffer.remaining();
+	}
+	
+	private int readLength() throws IOException {
+		int length = readInt();
+		if (length < 0 || length > MAX_ARRAY_LENGTH) {
+			throw new IOException("Corrupt snapshot: invalid array length "+length);
+		}
+		return length;
+	}
+	
+	public int readByte() throws IOException {
+		ensure(1);
+		return d_buffer.get();
+	}
+	
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	
+	public int readInt() throws IOException {
+		ensure(4);
+		return d_buffer.getInt();
+	}
+	
+	public long readLong() throws IOException {
+		ensure(8);
+		return d_buffer.getLong();
+	}
+	
+	public double readDouble() throws IOException {
+		ensure(8);
+		return d_buffer.getDouble();
+	}
+	
+	public byte[] readBytes() throws IOException {
+		byte[] bytes = new byte[readLength()];
+		readFully(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Fills the array with the next bytes, which are not length-prefixed.
+	 */
+	public void readFully(byte[] a_bytes) throws IOException {
+		int read = 0;
+		while (read < a_bytes.length) {
+			ensure(1);
+			int chunk = Math.min(d_buffer.remaining(), a_bytes.length - read);
+			d_buffer.get(a_bytes, read, chunk);
+			read += chunk;
+		}
+	}
+	
+	public String readString() throws IOException {
+		return new String(readBytes(), "UTF-8");
+	}
+	
+	public int[] readIntArray() throws IOException {
+		int[] values = new int[readLength()];
+		int read = 0;
+		while (read < values.length) {
+			ensure(4);
+			int chunk = Math.min(d_buffer.remaining() / 4, values.length - read);
+			d_buffer.asIntBuffer().get(values, read, chunk);
+			d_buffer.position(d_buffer.position() + chunk * 4);
+			read += chunk;
+		}
+		return values;
+	}
+	
+	public double[] readDoubleArray() throws IOException {
+		double[] values = new double[readLength()];
+		int read = 0;
+		while (read < values.length) {
+			ensure(8);
+			int chunk = Math.min(d_buffer.remaining() / 8, values.length - read);
+			d_buffer.asDoubleBuffer().get(values, read, chunk);
+			d_buffer.position(d_buffer.position() + chunk * 8);
+			read += chunk;
+		}
+		return values;
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes primitives and primitive arrays in little-endian order to a channel,
+ * through a fixed size buffer. Arrays are written in bulk and prefixed with 
+ * their length. Strings are written as length-prefixed UTF-8.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class SnapshotWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final WritableByteChannel d_channel;
+	
+	private final ByteBuffer d_buffer;
+	
+	private long d_flushed;
+	
+	public SnapshotWriter(WritableByteChannel a_channel) {
+		d_channel = a_channel;
+		d_buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		d_flushed = 0;
+	}
+	
+	private void ensure(int a_bytes) throws IOException {
+		if (d_buffer.remaining() < a_bytes) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Writes out everything buffered so far. 
+	 */
+	public void flush() throws IOException {
+		d_buffer.flip();
+		while (d_buffer.hasRemaining()) {
+			d_flushed += d_channel.write(d_buffer);
+		}
+		d_buffer.clear();
+	}
+	
+	/**
+	 * Returns the number of bytes written, including those not flushed yet.
+	 */
+	public long position() {
+		return d_flushed + d_buffer.position();
+	}
+	
+	public void writeByte(int a_value) throws IOException {
+		ensure(1);
+		d_buffer.put((byte) a_value);
+	}
+	
+	public void writeBoolean(boolean a_value) throws IOException {
+		writeByte(a_value ? 1 : 0);
+	}
+	
+	public void writeInt(int a_value) throws IOException {
+		ensure(4);
+		d_buffer.putInt(a_value);
+	}
+	
+	public void writeLong(long a_value) throws IOException {
+		ensure(8);
+		d_buffer.putLong(a_value);
+	}
+	
+	public void writeDouble(double a_value) throws IOException {
+		ensure(8);
+		d_buffer.putDouble(a_value);
+	}
+	
+	/**
+	 * Writes the remaining bytes of the buffer as they are, without a length.
+	 */
+	public void writeRaw(ByteBuffer a_bytes) throws IOException {
+		ByteBuffer bytes = a_bytes.duplicate();
+		while (bytes.hasRemaining()) {
+			ensure(1);
+			int chunk = Math.min(d_buffer.remaining(), bytes.remaining());
+			ByteBuffer part = bytes.duplicate();
+			part.limit(part.position() + chunk);
+			d_buffer.put(part);
+			bytes.position(bytes.position() + chunk);
+		}
+	}
+	
+	public void writeBytes(byte[] a_bytes) throws IOException {
+		writeInt(a_bytes.length);
+		int written = 0;
+		while (written < a_bytes.length) {
+			ensure(1);
+			int chunk = Math.min(d_buffer.remaining(), a_bytes.length - written);
+			d_buffer.put(a_bytes, written, chunk);
+			written += chunk;
+		}
+	}
+	
+	public void writeString(String a_value) throws IOException {
+		try {
+			writeBytes(a_value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+	
+	public void writeIntArray(int[] a_values) throws IOException {
+		writeInt(a_values.length);
+		int written = 0;
+		while (written < a_values.length) {
+			ensure(4);
+			int chunk = Math.min(d_buffer.remaining() / 4, a_values.length - written);
+			d_buffer.asIntBuffer().put(a_values, written, chunk);
+			d_buffer.position(d_buffer.position() + chunk * 4);
+			written += chunk;
+		}
+	}
+	
+	public void writeDoubleArray(double[] a_values) throws IOException {
+		writeInt(a_values.length);
+		int written = 0;
+		while (written < a_values.length) {
+			ensure(8);
+			int chunk = Math.min(d_buffer.remaining() / 8, a_values.length - written);
+			d_buffer.asDoubleBuffer().put(a_values, written, chunk);
+			d_buffer.position(d_buffer.position() + chunk * 8);
+			written += chunk;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.ubhave.mltoolkit.ClassifierList;
+import com.ubhave.mltoolkit.classifier.Classifier;
+import com.ubhave.mltoolkit.classifier.OnlineClassifier;
+import com.ubhave.mltoolkit.utils.ClassifierConfig;
+import com.ubhave.mltoolkit.utils.Constants;
+import com.ubhave.mltoolkit.utils.Feature;
+import com.ubhave.mltoolkit.utils.Instance;
+import com.ubhave.mltoolkit.utils.MLException;
+import com.ubhave.mltoolkit.utils.Signature;
+
+/**
+ * Append-only journal of the instances an online classifier was updated with
+ * since the last snapshot. The journal starts with a header (magic number, 
+ * format version, the generation of the snapshot it follows, and the name, type, 
+ * signature and configuration of the classifier), followed by a record per update:
+ * the length and CRC32 of the payload, then the payload itself, which is a 
+ * sequence number and the instance as encoded by InstanceCodec.
+ * 
+ * A journal is only replayed onto a snapshot of the same generation; journals 
+ * of older generations are already contained in the snapshot. Each classifier
+ * is saved to a snapshot of its own, with its own generation. Replay stops at 
+ * the first incomplete or corrupt record, which is where a write was interrupted.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class UpdateJournal {
+
+	// "MLTJ" in little-endian order
+	public static final int MAGIC = 0x4A544C4D;
+	
+	public static final int VERSION = 1;
+	
+	// Record length and checksum
+	private static final int RECORD_HEADER = 8;
+	
+	private final File d_file;
+	
+	private final String d_name;
+	
+	private final InstanceCodec d_codec;
+	
+	private final FileOutputStream d_stream;
+	
+	private final FileChannel d_channel;
+	
+	private final ByteBuffer d_record;
+	
+	private final CRC32 d_crc;
+	
+	// Grows to the largest batch appended so far
+	private ByteBuffer d_batch;
+	
+	private long d_sequence;
+	
+	private boolean d_failed;
+	
+	private UpdateJournal(File a_file, String a_name, Signature a_signature, FileOutputStream a_stream, long a_sequence) {
+		d_file = a_file;
+		d_name = a_name;
+		d_codec = new InstanceCodec(a_signature);
+		d_stream = a_stream;
+		d_channel = a_stream.getChannel();
+		d_record = ByteBuffer.allocate(RECORD_HEADER + 8 + d_codec.maxEncodedLength()).order(ByteOrder.LITTLE_ENDIAN);
+		d_crc = new CRC32();
+		d_sequence = a_sequence;
+		d_failed = false;
+	}
+	
+	/**
+	 * Returns the name of the file that holds the journal of the named classifier.
+	 */
+	public static String fileName(String a_name) throws IOException {
+		return URLEncoder.encode(a_name, "UTF-8") + Constants.CLASSIFIER_JOURNAL_SUFFIX;
+	}
+	
+	/**
+	 * Starts an empty journal for the classifier, replacing the file if it exists.
+	 */
+	public static UpdateJournal create(File a_file, String a_name, Classifier a_classifier, long a_generation) throws IOException {
+		FileOutputStream stream = new FileOutputStream(a_file);
+		try {
+			SnapshotWriter out = new SnapshotWriter(stream.getChannel());
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(a_generation);
+			out.writeString(a_name);
+			out.writeInt(a_classifier.getType());
+			ModelSnapshot.writeSignature(out, a_classifier.getSignature());
+			ModelSnapshot.writeConfig(out, a_classifier.getConfig());
+			out.flush();
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+		return new UpdateJournal(a_file, a_name, a_classifier.getSignature(), stream, 0);
+	}
+	
+	/**
+	 * Replays the journal onto the classifier of the same name in the list, which 
+	 * was restored from a snapshot of the generation given for its name, or of 
+	 * generation 0 if there is none. If the list holds no such classifier, it is 
+	 * created from the journal header. Returns the journal, opened for further 
+	 * updates, or null if the journal was stale, unreadable, or written for a 
+	 * classifier of another type or signature, in which case the file is deleted.
+	 * 
+	 * If the list holds the classifier as stored, but it could not be loaded, 
+	 * null is returned and the journal is left as it is, so that neither the 
+	 * stored classifier nor its updates are lost.
+	 */
+	public static UpdateJournal recover(File a_file, ClassifierList a_classifiers, Map<String, Long> a_generations) throws IOException {
+		FileInputStream is = new FileInputStream(a_file);
+		String name;
+		Classifier classifier;
+		long sequence = 0;
+		long validLength;
+		try {
+			SnapshotReader in = new SnapshotReader(is.getChannel());
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					a_file.delete();
+					return null;
+				}
+				long generation = in.readLong();
+				name = in.readString();
+				Long expected = a_generations.get(name);
+				if (generation != (expected == null ? 0 : expected.longValue())) {
+					a_file.delete();
+					return null;
+				}
+				int type = in.readInt();
+				Signature signature = ModelSnapshot.readSignature(in);
+				ClassifierConfig config = ModelSnapshot.readConfig(in);
+				
+				classifier = a_classifiers.getClassifier(name);
+				if (classifier == null) {
+					if (a_classifiers.isStored(name)) {
+						return null;
+					}
+					classifier = ClassifierList.createClassifier(type, signature, config);
+					if (classifier.getType() != type) {
+						throw new IOException("Unknown classifier type "+type);
+					}
+				} else if (classifier.getType() != type || !sameSignature(classifier.getSignature(), signature)) {
+					throw new IOException("Journal does not match classifier "+name);
+				}
+				if (!(classifier instanceof OnlineClassifier)) {
+					throw new IOException("Classifier "+name+" does not support updates.");
+				}
+			} catch (IOException e) {
+				a_file.delete();
+				return null;
+			}
+			a_classifiers.putClassifier(name, classifier);
+			validLength = in.position();
+			
+			InstanceCodec codec = new InstanceCodec(classifier.getSignature());
+			int maxLength = 8 + codec.maxEncodedLength();
+			CRC32 crc = new CRC32();
+			while (true) {
+				byte[] payload;
+				int checksum;
+				try {
+					int length = in.readInt();
+					if (length < 8 || length > maxLength) {
+						break;
+					}
+					checksum = in.readInt();
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(payload);
+				ByteBuffer record = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+				if ((int) crc.getValue() != checksum || record.getLong() != sequence) {
+					break;
+				}
+				try {
+					((OnlineClassifier) classifier).update(codec.decode(record));
+				} catch (MLException e) {
+					// The classifier rejected this instance when it was first applied as well
+				}
+				sequence++;
+				validLength = in.position();
+			}
+		} finally {
+			is.close();
+		}
+		
+		// The replayed updates are classified with from the start
+		classifier.publishUpdates();
+		
+		// Cut off the interrupted record, so that new records follow the valid ones
+		if (validLength < a_file.length()) {
+			RandomAccessFile file = new RandomAccessFile(a_file, "rw");
+			try {
+				file.setLength(validLength);
+			} finally {
+				file.close();
+			}
+		}
+		return new UpdateJournal(a_file, name, classifier.getSignature(), new FileOutputStream(a_file, true), sequence);
+	}
+	
+	private static boolean sameSignature(Signature a_first, Signature a_second) {
+		if (a_first.size() != a_second.size() || a_first.getClassIndex() != a_second.getClassIndex()) {
+			return false;
+		}
+		for (int i=0; i<a_first.size(); i++) {
+			Feature first = a_first.getFeatureAtIndex(i);
+			Feature second = a_second.getFeatureAtIndex(i);
+			if (first.getFeatureType() != second.getFeatureType() || !first.name().equals(second.name())
+					|| first.getFeatureType() == Feature.NOMINAL && !first.getValues().equals(second.getValues())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Appends a training instance. Throws an MLException, without writing anything,
+	 * if the instance does not comply with the signature of the classifier. After a 
+	 * failed write the journal refuses further records, as they could not be replayed.
+	 */
+	public synchronized void append(Instance a_instance) throws MLException, IOException {
+		if (d_failed) {
+			throw new IOException("Journal "+d_file.getName()+" failed earlier.");
+		}
+		d_record.clear();
+		encodeRecord(a_instance, d_sequence, d_record);
+		d_record.flip();
+		write(d_record);
+		d_sequence++;
+	}
+	
+	/**
+	 * Appends a batch of training instances with a single write. Instances that 
+	 * do not comply with the signature are left out, and their exceptions are put 
+	 * in a_rejected, at the same index.
+	 */
+	public synchronized void append(List<Instance> a_instances, MLException[] a_rejected) throws IOException {
+		if (d_failed) {
+			throw new IOException("Journal "+d_file.getName()+" failed earlier.");
+		}
+		int capacity = a_instances.size() * d_record.capacity();
+		if (d_batch == null || d_batch.capacity() < capacity) {
+			d_batch = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		d_batch.clear();
+		long sequence = d_sequence;
+		for (int i=0; i<a_instances.size(); i++) {
+			try {
+				encodeRecord(a_instances.get(i), sequence, d_batch);
+				sequence++;
+			} catch (MLException e) {
+				a_rejected[i] = e;
+			}
+		}
+		d_batch.flip();
+		write(d_batch);
+		d_sequence = sequence;
+	}
+	
+	// Encodes a record at the position of the buffer, or nothing if the instance is rejected.
+	private void encodeRecord(Instance a_instance, long a_sequence, ByteBuffer a_out) throws MLException {
+		int start = a_out.position();
+		a_out.position(start + RECORD_HEADER);
+		a_out.putLong(a_sequence);
+		try {
+			d_codec.encode(a_instance, a_out);
+		} catch (MLException e) {
+			a_out.position(start);
+			throw e;
+		}
+		
+		int length = a_out.position() - start - RECORD_HEADER;
+		d_crc.reset();
+		d_crc.update(a_out.array(), start + RECORD_HEADER, length);
+		a_out.putInt(start, length);
+		a_out.putInt(start + 4, (int) d_crc.getValue());
+	}
+	
+	private void write(ByteBuffer a_records) throws IOException {
+		try {
+			while (a_records.hasRemaining()) {
+				d_channel.write(a_records);
+			}
+		} catch (IOException e) {
+			d_failed = true;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Forces the records to the storage device. Records reach the file system 
+	 * as they are appended, so they survive the process being killed without this.
+	 */
+	public synchronized void sync() throws IOException {
+		d_channel.force(false);
+	}
+	
+	public synchronized void close() throws IOException {
+		d_stream.close();
+	}
+	
+	/**
+	 * Closes the journal and deletes its file.
+	 */
+	public synchronized void delete() throws IOException {
+		d_stream.close();
+		d_file.delete();
+	}
+	
+	public String getName() {
+		return d_name;
+	}
+	
+	/**
+	 * Returns the number of records in the journal.
+	 */
+	public synchronized long size() {
+		return d_sequence;
+	}
+}
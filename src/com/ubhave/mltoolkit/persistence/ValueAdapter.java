@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.persistence;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.ubhave.mltoolkit.utils.Value;
+
+/**
+ * Streams a Value as its type and, unless it is missing, its content.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class ValueAdapter extends TypeAdapter<Value> {
+
+	@Override
+	public void write(JsonWriter a_out, Value a_value) throws IOException {
+		a_out.beginObject();
+		a_out.name("d_type").value(a_value.getValueType());
+		if (a_value.getValueType() == Value.NOMINAL_VALUE) {
+			a_out.name("d_value").value((String) a_value.getValue());
+		} else if (a_value.getValueType() == Value.NUMERIC_VALUE) {
+			a_out.name("d_value").value((Double) a_value.getValue());
+		}
+		a_out.endObject();
+	}
+
+	@Override
+	public Value read(JsonReader a_in) throws IOException {
+		int type = Value.MISSING_VALUE;
+		Object content = null;
+		
+		a_in.beginObject();
+		while (a_in.hasNext()) {
+			String field = a_in.nextName();
+			if (field.equals("d_type")) {
+				type = a_in.nextInt();
+			} else if (field.equals("d_value") && a_in.peek() == JsonToken.NUMBER) {
+				content = a_in.nextDouble();
+			} else if (field.equals("d_value") && a_in.peek() == JsonToken.STRING) {
+				content = a_in.nextString();
+			} else {
+				a_in.skipValue();
+			}
+		}
+		a_in.endObject();
+		
+		return new Value(content, type);
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.utils;
+
+/**
+ * Thrown when an instance does not comply with the signature of a classifier.
+ * Either the number of values is wrong, in which case the feature index is 
+ * NO_FEATURE and expected/actual hold the number of values, or the value at 
+ * the feature index has a wrong type, in which case expected/actual hold 
+ * the expected feature type and the actual value type. 
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class ComplianceException extends MLException {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int NO_FEATURE = -1;
+	
+	private final int d_featureIndex;
+	
+	private final int d_expected;
+	
+	private final int d_actual;
+	
+	public ComplianceException(int a_featureIndex, int a_expected, int a_actual) {
+		super(INCOMPATIBLE_INSTANCE, a_featureIndex == NO_FEATURE ? 
+				"Expected number of features: "+a_expected+" got "+a_actual : 
+				"Feature "+a_featureIndex+" expects type "+a_expected+" got value type "+a_actual);
+		d_featureIndex = a_featureIndex;
+		d_expected = a_expected;
+		d_actual = a_actual;
+	}
+	
+	public int getFeatureIndex() {
+		return d_featureIndex;
+	}
+	
+	public int getExpected() {
+		return d_expected;
+	}
+	
+	public int getActual() {
+		return d_actual;
+	}
+}
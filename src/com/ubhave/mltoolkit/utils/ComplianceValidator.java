@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.utils;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that instances comply with a signature. The validator is compiled 
+ * once per signature into the expected number of values and a mask of 
+ * value types accepted at each position, so that a check neither allocates 
+ * nor logs. Failures are reported through a ComplianceException that tells 
+ * which value, if any, broke the signature.
+ * 
+ * Instances that are used for training should have the exact same features as 
+ * the signature. Those that are about to be classified should have one feature
+ * less -- the class feature.
+ * 
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public final class ComplianceValidator {
+
+	// Bit (1 << Value type) is set for every value type accepted at the index.
+	private final int[] d_typeMasks;
+	
+	private final int d_arity;
+	
+	ComplianceValidator(Signature a_signature) {
+		d_arity = a_signature.size();
+		d_typeMasks = new int[d_arity];
+		for (int i=0; i<d_arity; i++) {
+			// Feature.NOMINAL and Feature.NUMERIC match Value.NOMINAL_VALUE and Value.NUMERIC_VALUE
+			d_typeMasks[i] = (1 << a_signature.getFeatureAtIndex(i).getFeatureType()) 
+					| (1 << Value.MISSING_VALUE);
+		}
+	}
+	
+	public int getArity(boolean a_training) {
+		return a_training ? d_arity : d_arity - 1;
+	}
+	
+	public boolean isCompliant(Instance a_instance, boolean a_training) {
+		int size = a_instance.size();
+		if (size != getArity(a_training)) {
+			return false;
+		}
+		for (int i=0; i<size; i++) {
+			if ((d_typeMasks[i] & (1 << a_instance.getValueAtIndex(i).getValueType())) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public void validate(Instance a_instance, boolean a_training) throws ComplianceException {
+		int size = a_instance.size();
+		if (size != getArity(a_training)) {
+			throw new ComplianceException(ComplianceException.NO_FEATURE, getArity(a_training), size);
+		}
+		for (int i=0; i<size; i++) {
+			int valueType = a_instance.getValueAtIndex(i).getValueType();
+			if ((d_typeMasks[i] & (1 << valueType)) == 0) {
+				throw new ComplianceException(i, Integer.numberOfTrailingZeros(d_typeMasks[i]), valueType);
+			}
+		}
+	}
+	
+	/**
+	 * Validates a whole batch up front, so that the batch can afterwards 
+	 * be processed in trusted mode, i.e. without checking each instance again.
+	 */
+	public void validateAll(ArrayList<Instance> a_instances, boolean a_training) throws ComplianceException {
+		for (int i=0; i<a_instances.size(); i++) {
+			validate(a_instances.get(i), a_training);
+		}
+	}
+}
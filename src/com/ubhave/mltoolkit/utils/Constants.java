@@ -30,6 +30,20 @@ public class Constants {
 	public static final int TYPE_DENSITY_CLUSTER = 1004;
 	
 	public static final String CLASSIFIER_STORAGE_FILE = "classifiers.json";
+	
+	// Snapshot of all classifiers, written by earlier versions
+	public static final String CLASSIFIER_SNAPSHOT_FILE = "classifiers.bin";
+	
+	public static final String CLASSIFIER_JOURNAL_SUFFIX = ".journal";
+	
+	// Snapshot of a single classifier
+	public static final String CLASSIFIER_SHARD_SUFFIX = ".model";
+	
+	// Minutes between background compactions of update journals into the snapshots
+	public static final long DEFAULT_COMPACTION_PERIOD = 15;
+	
+	// Trainings and updates a classifier can have waiting to run in the background
+	public static final int MAX_PENDING_TRAINING = 10000;
 
 	// Config params
 	
@@ -40,11 +54,40 @@ public class Constants {
 	public static final double DEFAULT_MAX_CLUSTER_DISTANCE = 1; // in km if GPS
 	public static final double DEFAULT_MIN_INCLUSION_PERCENT = 50.0; 
 	
+	// Number of points per label that the density of an update is judged against
+	public static final String RESERVOIR_SIZE = "reservoirSize";
+	
+	public static final int DEFAULT_RESERVOIR_SIZE = 200;
+	
+	// Number of threads used for training, zero for one per processor
+	public static final String TRAINING_THREADS = "trainingThreads";
+	
+	public static final int DEFAULT_TRAINING_THREADS = 0;
+	
+	// Milliseconds between publications of the parameters that NaiveBayes classifies 
+	// with, while updates arrive. Classifications may miss the updates of the last
+	// interval. With zero, every classification after an update publishes anew.
+	public static final String PUBLISH_INTERVAL = "publishInterval";
+	
+	public static final long DEFAULT_PUBLISH_INTERVAL = 100;
+	
 	// Naive Bayes
 	public static final String LAPLACE_SMOOTHING = "laplaceSmoothing";
 	
 	public static final boolean DEFAULT_LAPLACE_SMOOTHING = true;
 	
+	// Forgetting of old instances. With a decay factor below one, the weight of
+	// every instance is multiplied by the factor with each later instance. A window 
+	// keeps the last windowSize instances, or if not set, the instances of the last 
+	// windowDuration milliseconds, in windowBuckets buckets; it takes precedence over decay.
+	public static final String DECAY_FACTOR = "decayFactor";
+	public static final String WINDOW_SIZE = "windowSize";
+	public static final String WINDOW_DURATION = "windowDuration";
+	public static final String WINDOW_BUCKETS = "windowBuckets";
+	
+	public static final double DEFAULT_DECAY_FACTOR = 1.0;
+	public static final int DEFAULT_WINDOW_BUCKETS = 10;
+	
 	
 
 	
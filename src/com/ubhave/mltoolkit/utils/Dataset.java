@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2013, University of Birmingham, UK
+ * Veljko Pejovic,  <v.pejovic@cs.bham.ac.uk>
+ * 
+ * 
+ * This library was developed as part of the EPSRC Ubhave (Ubiquitous and Social
+ * Computing for Positive Behaviour Change) Project. For more information, please visit
+ * http://www.ubhave.org
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with
+ * or without fee is hereby granted, provided that the above copyright notice and this
+ * permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ ******************************************************************************/
+package com.ubhave.mltoolkit.utils;
+
+import java.util.ArrayList;
+
+/**
+ * Dataset is a columnar, primitive-backed collection of training rows that
+ * comply with a signature. Numeric columns are stored as double arrays,
+ * nominal columns as arrays of category indices (as given by the Feature),
+ * and missing values are tracked in a per-column bitmap.
+ *
+ * Unlike a list of Instances, a Dataset does not hold an object per value,
+ * thus it is the preferred way of passing large training sets to classifiers.
+ *
+ * @author Veljko Pejovic, University of Birmingham, UK <v.pejovic@cs.bham.ac.uk>
+ *
+ */
+public class Dataset {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final Signature d_signature;
+
+	private final int[] d_featureTypes;
+
+	// Only one of these is allocated for each column, depending on the feature type.
+	private double[][] d_numericColumns;
+
+	private int[][] d_nominalColumns;
+
+	// One bit per row for every column, set if the value is missing.
+	private long[][] d_missing;
+
+	private int d_size;
+
+	private int d_capacity;
+
+	public Dataset(Signature a_signature, int a_capacity) {
+		d_signature = a_signature;
+		d_size = 0;
+		d_capacity = Math.max(a_capacity, 1);
+
+		int numFeatures = a_signature.size();
+		d_featureTypes = new int[numFeatures];
+		d_numericColumns = new double[numFeatures][];
+		d_nominalColumns = new int[numFeatures][];
+		d_missing = new long[numFeatures][];
+
+		for (int i=0; i<numFeatures; i++) {
+			d_featureTypes[i] = a_signature.getFeatureAtIndex(i).getFeatureType();
+			if (d_featureTypes[i] == Feature.NUMERIC) {
+				d_numericColumns[i] = new double[d_capacity];
+			} else {
+				d_nominalColumns[i] = new int[d_capacity];
+			}
+			d_missing[i] = new long[wordsFor(d_capacity)];
+		}
+	}
+
+	public Dataset(Signature a_signature) {
+		this(a_signature, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Encodes a list of training instances into a new dataset. Every instance
+	 * is checked for compliance with the signature exactly once.
+	 */
+	public static Dataset fromInstances(Signature a_signature, ArrayList<Instance> a_instances) throws MLException {
+		Dataset dataset = new Dataset(a_signature, a_instances.size());
+		for (Instance instance : a_instances) {
+			dataset.addInstance(instance);
+		}
+		return dataset;
+	}
+
+	private static int wordsFor(int a_rows) {
+		return (a_rows + 63) >>> 6;
+	}
+
+	private void ensureCapacity(int a_rows) {
+		if (a_rows <= d_capacity) {
+			return;
+		}
+		int newCapacity = Math.max(a_rows, d_capacity + (d_capacity >> 1) + 1);
+		for (int i=0; i<d_featureTypes.length; i++) {
+			if (d_numericColumns[i] != null) {
+				double[] column = new double[newCapacity];
+				System.arraycopy(d_numericColumns[i], 0, column, 0, d_size);
+				d_numericColumns[i] = column;
+			} else {
+				int[] column = new int[newCapacity];
+				System.arraycopy(d_nominalColumns[i], 0, column, 0, d_size);
+				d_nominalColumns[i] = column;
+			}
+			long[] bitmap = new long[wordsFor(newCapacity)];
+			System.arraycopy(d_missing[i], 0, bitmap, 0, d_missing[i].length);
+			d_missing[i] = bitmap;
+		}
+		d_capacity = newCapacity;
+	}
+
+	/**
+	 * Appends an empty row and returns its index. All values of the new row
+	 * are marked as missing until they are set.
+	 */
+	public int addRow() {
+		ensureCapacity(d_size + 1);
+		int row = d_size++;
+		for (int i=0; i<d_featureTypes.length; i++) {
+			d_missing[i][row >>> 6] |= (1L << row);
+		}
+		return row;
+	}
+
+	/**
+	 * Appends a training instance. The instance has to comply with the
+	 * signature of the dataset, including the class feature.
+	 */
+	public int addInstance(Instance a_instance) throws MLException {
+		d_signature.validate(a_instance, true);
+		int row = addRow();
+		for (int i=0; i<d_featureTypes.length; i++) {
+			Value value = a_instance.getValueAtIndex(i);
+			if (value.getValueType() == Value.MISSING_VALUE) {
+				continue;
+			}
+			if (d_featureTypes[i] == Feature.NUMERIC) {
+				setNumeric(row, i, (Double) value.getValue());
+			} else {
+				setNominal(row, i, d_signature.getFeatureAtIndex(i).indexOfCategory((String) value.getValue()));
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Appends all rows of another dataset with the same signature,
+	 * e.g. one of the parts a file was loaded in.
+	 */
+	public void addAll(Dataset a_other) {
+		int offset = d_size;
+		int numRows = a_other.d_size;
+		ensureCapacity(offset + numRows);
+		for (int i=0; i<d_featureTypes.length; i++) {
+			if (d_numericColumns[i] != null) {
+				System.arraycopy(a_other.d_numericColumns[i], 0, d_numericColumns[i], offset, numRows);
+			} else {
+				System.arraycopy(a_other.d_nominalColumns[i], 0, d_nominalColumns[i], offset, numRows);
+			}
+			for (int row=0; row<numRows; row++) {
+				int target = offset + row;
+				if (a_other.isMissing(row, i)) {
+					d_missing[i][target >>> 6] |= (1L << target);
+				} else {
+					d_missing[i][target >>> 6] &= ~(1L << target);
+				}
+			}
+		}
+		d_size += numRows;
+	}
+
+	/**
+	 * Removes all rows, keeping the allocated capacity, so that the dataset 
+	 * can be refilled, e.g. with the next chunk of a stream.
+	 */
+	public void clear() {
+		// addRow marks all values of a row as missing, so the bitmaps need no clearing
+		d_size = 0;
+	}
+
+	public void setNumeric(int a_row, int a_feature, double a_value) {
+		d_numericColumns[a_feature][a_row] = a_value;
+		d_missing[a_feature][a_row >>> 6] &= ~(1L << a_row);
+	}
+
+	public void setNominal(int a_row, int a_feature, int a_categoryIndex) {
+		d_nominalColumns[a_feature][a_row] = a_categoryIndex;
+		d_missing[a_feature][a_row >>> 6] &= ~(1L << a_row);
+	}
+
+	public void setMissing(int a_row, int a_feature) {
+		d_missing[a_feature][a_row >>> 6] |= (1L << a_row);
+	}
+
+	public boolean isMissing(int a_row, int a_feature) {
+		return (d_missing[a_feature][a_row >>> 6] & (1L << a_row)) != 0;
+	}
+
+	public double getNumeric(int a_row, int a_feature) {
+		return d_numericColumns[a_feature][a_row];
+	}
+
+	public int getNominal(int a_row, int a_feature) {
+		return d_nominalColumns[a_feature][a_row];
+	}
+
+	/**
+	 * Returns the backing array of a numeric column. Only the first size()
+	 * entries are valid, and missing entries have to be checked with isMissing.
+	 */
+	public double[] getNumericColumn(int a_feature) {
+		return d_numericColumns[a_feature];
+	}
+
+	/**
+	 * Returns the backing array of category indices of a nominal column.
+	 * Only the first size() entries are valid.
+	 */
+	public int[] getNominalColumn(int a_feature) {
+		return d_nominalColumns[a_feature];
+	}
+
+	/**
+	 * Rebuilds the row as an Instance. Meant for interoperability
+	 * with code that still works with Values, not for bulk processing.
+	 */
+	public Instance getInstance(int a_row) {
+		Instance instance = new Instance(d_featureTypes.length);
+		for (int i=0; i<d_featureTypes.length; i++) {
+			if (isMissing(a_row, i)) {
+				instance.addValue(new Value(null, Value.MISSING_VALUE));
+			} else if (d_featureTypes[i] == Feature.NUMERIC) {
+				instance.addValue(new Value(d_numericColumns[i][a_row], Value.NUMERIC_VALUE));
+			} else {
+				instance.addValue(new Value(d_signature.getFeatureAtIndex(i).categoryOfIndex(d_nominalColumns[i][a_row]),
+						Value.NOMINAL_VALUE));
+			}
+		}
+		return instance;
+	}
+
+	public Signature getSignature() {
+		return d_signature;
+	}
+
+	public int size() {
+		return d_size;
+	}
+}
@@ -106,6 +106,14 @@ public class Feature {
 		
 	}
 	
+	/**
+	 * Returns the index of the category, or -1 if the feature has no such category.
+	 */
+	public int findCategory(String value){
+		Integer index = d_categoryIndex.get(value);
+		return index == null ? -1 : index;
+	}
+
 	public String categoryOfIndex(int index){
 		return d_categories.get(index);
 	}
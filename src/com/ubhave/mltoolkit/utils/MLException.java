@@ -27,6 +27,7 @@ public class MLException extends Exception {
 	public static final int INCOMPATIBLE_INSTANCE = 101;
 	public static final int INVALID_PARAMETER = 102;
 	public static final int INVALID_STATE = 103;
+	public static final int IO_ERROR = 104;
 	
 	public static final int CLASSIFIER_EXISTS = 200;
 	
@@ -22,9 +22,6 @@
 package com.ubhave.mltoolkit.utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-
-import android.util.Log;
 
 /**
  * Signature defines features used by a classifier, their names and the 
@@ -37,11 +34,11 @@ import android.util.Log;
  */
 public class Signature {
 
-	private static final String TAG = "Signature";
-	
 	private ArrayList<Feature> d_features;
 	   
     private int d_classIndex;		
+    
+    private transient ComplianceValidator d_validator;
 
 	public Signature(ArrayList<Feature> a_features, int a_classIndex){
 		d_features = a_features;
@@ -55,6 +52,7 @@ public class Signature {
 	
 	public void setClassIndex(int a_classIndex){
 		d_classIndex = a_classIndex;
+		d_validator = null;
 	}
 	
 	public int getClassIndex(){
@@ -77,33 +75,53 @@ public class Signature {
 		return d_features.size();
 	}
 	
+	/**
+	 * Returns the compliance validator of the signature. The validator is built
+	 * on first use and rebuilt only if the class index changes.
+	 */
+	public ComplianceValidator getValidator() {
+		ComplianceValidator validator = d_validator;
+		if (validator == null) {
+			validator = new ComplianceValidator(this);
+			d_validator = validator;
+		}
+		return validator;
+	}
+	
 	public boolean checkCompliance(Instance a_instance, boolean a_training) {
-		Log.d(TAG, "checkInstanceCompliance");
-		int checkSize = a_instance.size();
-		
-		// Instances that are used for training should have the exact same features as the signature.
-		// Those that are about to be classified, should have one feature less -- the class feature.
-		if (!a_training) {
-			checkSize++;
+		return getValidator().isCompliant(a_instance, a_training);	
+	}
+	
+	/**
+	 * Same as checkCompliance, but reports which value broke the signature. 
+	 */
+	public void validate(Instance a_instance, boolean a_training) throws ComplianceException {
+		getValidator().validate(a_instance, a_training);
+	}
+	
+	/**
+	 * Returns whether the other signature has the same features, with the same 
+	 * categories in the same order, and the same class feature.
+	 */
+	public boolean matches(Signature a_other) {
+		if (a_other == this) {
+			return true;
 		}
-		
-		if (checkSize != this.getFeatures().size()){
-			Log.d(TAG, "Expected number of features: "+this.getFeatures().size()+" got "+checkSize);
-			for (int i=0; i<a_instance.size(); i++){
-				Log.d(TAG, "instance value "+a_instance.getValueAtIndex(i).getValue());				
-			}
+		if (a_other.size() != size() || a_other.getClassIndex() != d_classIndex) {
 			return false;
 		}
-		
-		for (int i=0; i<a_instance.size(); i++){
-			Log.d(TAG, "instance type: "+a_instance.getValueAtIndex(i).getValueType()+" feature type: "+this.getFeatureAtIndex(i).getFeatureType());
-			
-			if (this.getFeatureAtIndex(i).getFeatureType() != a_instance.getValueAtIndex(i).getValueType()
-					&& (a_instance.getValueAtIndex(i).getValueType() != Value.MISSING_VALUE)){
+		for (int i=0; i<size(); i++) {
+			Feature feature = getFeatureAtIndex(i);
+			Feature otherFeature = a_other.getFeatureAtIndex(i);
+			if (!feature.name().equals(otherFeature.name()) 
+					|| feature.getFeatureType() != otherFeature.getFeatureType()) {
+				return false;
+			}
+			if (feature.getFeatureType() == Feature.NOMINAL && !feature.getValues().equals(otherFeature.getValues())) {
 				return false;
 			}
 		}
-		return true;	
+		return true;
 	}
 	
 	@Override